@@ -0,0 +1,111 @@
+package com.github.ddth.com.redir;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.RateLimiter;
+
+/**
+ * {@link RateLimiter} that adapts its rate to the observed Redis write
+ * latency (additive increase, multiplicative decrease).
+ * 
+ * <p>
+ * Outputs report the latency of each block write (see
+ * {@link RedisDirectory#setRateLimiter(org.apache.lucene.store.IOContext.Context, RateLimiter)}
+ * ). Once per adjustment interval, the average latency is compared with the
+ * target latency: if above, the rate is multiplied by the decrease factor;
+ * otherwise, the rate is increased by {@code 1/20} of the max rate.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class AdaptiveRateLimiter extends RateLimiter.SimpleRateLimiter {
+
+    public final static long DEFAULT_ADJUST_INTERVAL_MS = 100;
+    public final static double DEFAULT_DECREASE_FACTOR = 0.5;
+
+    private final double minMBPerSec, maxMBPerSec;
+    private final long targetLatencyMicros;
+    private long adjustIntervalMs = DEFAULT_ADJUST_INTERVAL_MS;
+    private double decreaseFactor = DEFAULT_DECREASE_FACTOR;
+
+    private long windowStart = System.nanoTime();
+    private long windowLatencyMicros = 0, windowSamples = 0;
+
+    /**
+     * 
+     * @param minMBPerSec
+     *            the rate never drops below this value
+     * @param maxMBPerSec
+     *            initial and max rate
+     * @param targetLatencyMs
+     *            the rate decreases when average write latency of a block
+     *            exceeds this value
+     */
+    public AdaptiveRateLimiter(double minMBPerSec, double maxMBPerSec, double targetLatencyMs) {
+        super(maxMBPerSec);
+        this.minMBPerSec = Math.min(minMBPerSec, maxMBPerSec);
+        this.maxMBPerSec = maxMBPerSec;
+        this.targetLatencyMicros = (long) (targetLatencyMs * 1000);
+    }
+
+    public double getMinMBPerSec() {
+        return minMBPerSec;
+    }
+
+    public double getMaxMBPerSec() {
+        return maxMBPerSec;
+    }
+
+    public long getTargetLatencyMicros() {
+        return targetLatencyMicros;
+    }
+
+    /**
+     * The rate is adjusted (at most) once per this period.
+     * 
+     * @return
+     */
+    public long getAdjustIntervalMs() {
+        return adjustIntervalMs;
+    }
+
+    public AdaptiveRateLimiter setAdjustIntervalMs(long adjustIntervalMs) {
+        this.adjustIntervalMs = Math.max(1, adjustIntervalMs);
+        return this;
+    }
+
+    public double getDecreaseFactor() {
+        return decreaseFactor;
+    }
+
+    public AdaptiveRateLimiter setDecreaseFactor(double decreaseFactor) {
+        this.decreaseFactor = Math.max(0.01, Math.min(decreaseFactor, 1));
+        return this;
+    }
+
+    /**
+     * Records the write latency of a block.
+     * 
+     * @param latencyMicros
+     */
+    synchronized public void recordLatency(long latencyMicros) {
+        windowLatencyMicros += latencyMicros;
+        windowSamples++;
+        long now = System.nanoTime();
+        if (now - windowStart >= TimeUnit.MILLISECONDS.toNanos(adjustIntervalMs)) {
+            double rate = getMBPerSec();
+            if (windowLatencyMicros / windowSamples > targetLatencyMicros) {
+                rate = Math.max(minMBPerSec, rate * decreaseFactor);
+            } else {
+                rate = Math.min(maxMBPerSec, rate + maxMBPerSec / 20);
+            }
+            if (rate != getMBPerSec()) {
+                setMBPerSec(rate);
+            }
+            windowStart = now;
+            windowLatencyMicros = 0;
+            windowSamples = 0;
+        }
+    }
+}
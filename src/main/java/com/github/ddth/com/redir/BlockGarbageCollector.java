@@ -0,0 +1,506 @@
+package com.github.ddth.com.redir;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.ddth.com.redir.internal.LuaScripts;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+/**
+ * Incremental garbage collector for a {@link RedisDirectory}'s storage.
+ * 
+ * <p>
+ * Scans the file data hash with {@code HSCAN} in throttled batches (only field
+ * names and value lengths are transferred) and removes:
+ * </p>
+ * <ul>
+ * <li>{@code id:blockNum} blocks whose file id is not referenced by any entry
+ * of the metadata hash (left behind by crashed writers or interrupted
+ * deletes),</li>
+ * <li>content-addressed blocks and packs without any reference,</li>
+ * <li>lock entries whose timestamp is older than {@link #getStaleLockMs()} (if
+ * enabled).</li>
+ * </ul>
+ * 
+ * <p>
+ * Files being created, copied or promoted concurrently are never affected:
+ * they are registered as pending before their blocks are written (see
+ * {@link RedisDirectory#getHashPendingFiles()}), and blocks of pending files
+ * are kept for {@link #getPendingGraceMs()}. Registrations older than that
+ * are considered abandoned and removed, releasing the block references
+ * recorded by abandoned content-addressed files. In addition, a block is removed
+ * only if it is found orphaned by two consecutive runs: the first run after
+ * creating the collector only marks candidates.
+ * </p>
+ * 
+ * <p>
+ * Note: do not collect a file data hash shared by several metadata hashes
+ * (e.g. snapshots sharing file data) unless all blocks are content-addressed
+ * or packed;
+ * {@code id:blockNum} blocks of the other namespaces would be seen as
+ * orphans.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class BlockGarbageCollector {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(BlockGarbageCollector.class);
+
+    public final static int DEFAULT_BATCH_SIZE = 1000;
+    public final static int DEFAULT_DATA_BATCH_SIZE = 64;
+    public final static long DEFAULT_BATCH_PAUSE_MS = 10;
+    public final static long DEFAULT_PENDING_GRACE_MS = 3600000;
+
+    private RedisDirectory redisDir;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int dataBatchSize = DEFAULT_DATA_BATCH_SIZE;
+    private long batchPauseMs = DEFAULT_BATCH_PAUSE_MS;
+    private long staleLockMs = 0;
+    private long pendingGraceMs = DEFAULT_PENDING_GRACE_MS;
+
+    private Set<String> candidates = new HashSet<String>();
+    private ScheduledExecutorService scheduler;
+
+    private Result lastResult;
+    private AtomicLong totalBlocksRemoved = new AtomicLong();
+    private AtomicLong totalBytesReclaimed = new AtomicLong();
+    private AtomicLong totalStaleLocksRemoved = new AtomicLong();
+
+    public BlockGarbageCollector(RedisDirectory redisDir) {
+        this.redisDir = redisDir;
+    }
+
+    /**
+     * Number of hash entries fetched per {@code HSCAN} call.
+     * 
+     * @return
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public BlockGarbageCollector setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    /**
+     * Number of file data hash entries scanned per call. Kept small: the scan
+     * script loads each value (up to a block) to compute its length.
+     * 
+     * @return
+     */
+    public int getDataBatchSize() {
+        return dataBatchSize;
+    }
+
+    public BlockGarbageCollector setDataBatchSize(int dataBatchSize) {
+        this.dataBatchSize = Math.max(1, dataBatchSize);
+        return this;
+    }
+
+    /**
+     * Pause between two batches, to throttle the load put on Redis.
+     * 
+     * @return
+     */
+    public long getBatchPauseMs() {
+        return batchPauseMs;
+    }
+
+    public BlockGarbageCollector setBatchPauseMs(long batchPauseMs) {
+        this.batchPauseMs = Math.max(0, batchPauseMs);
+        return this;
+    }
+
+    /**
+     * Locks not refreshed for this long are removed ({@code 0}: never remove
+     * locks). Should be several times {@link RedisDirectory#LOCK_HEARTBEAT_MS}
+     * : a held lock is refreshed once per heartbeat period by its holder, so
+     * only locks of dead (or long paused) holders get that old.
+     * 
+     * @return
+     */
+    public long getStaleLockMs() {
+        return staleLockMs;
+    }
+
+    public BlockGarbageCollector setStaleLockMs(long staleLockMs) {
+        this.staleLockMs = Math.max(0, staleLockMs);
+        return this;
+    }
+
+    /**
+     * Blocks of files registered as pending (see
+     * {@link RedisDirectory#getHashPendingFiles()}) less than this long ago
+     * are kept even if no metadata references them; older registrations
+     * (left by crashed or abandoned writers) are removed. Should exceed the
+     * time needed to write, copy or promote the largest file.
+     * 
+     * @return
+     */
+    public long getPendingGraceMs() {
+        return pendingGraceMs;
+    }
+
+    public BlockGarbageCollector setPendingGraceMs(long pendingGraceMs) {
+        this.pendingGraceMs = Math.max(0, pendingGraceMs);
+        return this;
+    }
+
+    /**
+     * Result of the last run.
+     * 
+     * @return {@code null} if not run yet
+     */
+    public Result getLastResult() {
+        return lastResult;
+    }
+
+    public long getTotalBlocksRemoved() {
+        return totalBlocksRemoved.get();
+    }
+
+    public long getTotalBytesReclaimed() {
+        return totalBytesReclaimed.get();
+    }
+
+    public long getTotalStaleLocksRemoved() {
+        return totalStaleLocksRemoved.get();
+    }
+
+    /*----------------------------------------------------------------------*/
+    /**
+     * Runs the collector periodically in a background thread.
+     * 
+     * @param intervalMs
+     * @return
+     */
+    synchronized public BlockGarbageCollector start(long intervalMs) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "redir-gc-" + redisDir.getHashFileData());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runOnce();
+                    } catch (Exception e) {
+                        LOGGER.warn(e.getMessage(), e);
+                    }
+                }
+            }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Stops the background thread.
+     */
+    synchronized public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Runs one full collection pass.
+     * 
+     * @return
+     * @throws InterruptedException
+     */
+    synchronized public Result runOnce() throws InterruptedException {
+        long t1 = System.currentTimeMillis();
+        Result result = new Result();
+        removeExpiredPendingFiles(t1, result);
+        Set<String> liveIds = scanMetadata(result);
+        Set<String> newCandidates = new HashSet<String>();
+        final byte[] HASH_FILE_DATA = redisDir.getHashFileData().getBytes();
+        final byte[] HASH_BLOCK_REFS = redisDir.getHashBlockRefs().getBytes();
+        final byte[] HASH_PENDING_FILES = redisDir.getHashPendingFiles().getBytes();
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            Map<String, Long> orphans = new HashMap<String, Long>();
+            List<byte[]> contentBlocks = new ArrayList<byte[]>();
+            Map<String, List<String>> orphanIds = new HashMap<String, List<String>>();
+            try (Jedis jedis = redisDir.getJedis()) {
+                List<?> scan = (List<?>) LuaScripts.eval(jedis, LuaScripts.HSCAN_LENGTHS,
+                        Arrays.asList(HASH_FILE_DATA), Arrays.asList(cursor.getBytes(),
+                                String.valueOf(dataBatchSize).getBytes()));
+                cursor = new String((byte[]) scan.get(0), StandardCharsets.UTF_8);
+                List<?> entries = (List<?>) scan.get(1);
+                for (int i = 0, n = entries.size(); i < n; i += 2) {
+                    String field = new String((byte[]) entries.get(i), StandardCharsets.UTF_8);
+                    long length = ((Long) entries.get(i + 1)).longValue();
+                    result.blocksScanned++;
+                    result.bytesScanned += length;
+                    if (field.startsWith(RedisDirectory.CONTENT_BLOCK_PREFIX)
+                            || field.startsWith(RedisDirectory.PACK_PREFIX)) {
+                        contentBlocks.add(field.getBytes());
+                        orphans.put(field, length);
+                    } else {
+                        int sep = field.lastIndexOf(':');
+                        String id = sep > 0 ? field.substring(0, sep) : null;
+                        if (id != null && !liveIds.contains(id)) {
+                            orphans.put(field, length);
+                            List<String> fields = orphanIds.get(id);
+                            if (fields == null) {
+                                fields = new ArrayList<String>();
+                                orphanIds.put(id, fields);
+                            }
+                            fields.add(field);
+                        }
+                    }
+                }
+                if (contentBlocks.size() > 0) {
+                    List<byte[]> refs = jedis.hmget(HASH_BLOCK_REFS,
+                            contentBlocks.toArray(new byte[contentBlocks.size()][]));
+                    for (int i = 0, n = contentBlocks.size(); i < n; i++) {
+                        byte[] ref = refs.get(i);
+                        if (ref != null && Long.parseLong(new String(ref)) > 0) {
+                            orphans.remove(new String(contentBlocks.get(i)));
+                        }
+                    }
+                }
+                if (orphanIds.size() > 0) {
+                    // read after the scan: a file is registered as pending
+                    // before its blocks are written
+                    List<String> ids = new ArrayList<String>(orphanIds.keySet());
+                    byte[][] fields = new byte[ids.size()][];
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = ids.get(i).getBytes();
+                    }
+                    List<byte[]> pending = jedis.hmget(HASH_PENDING_FILES, fields);
+                    long now = System.currentTimeMillis();
+                    for (int i = 0; i < fields.length; i++) {
+                        if (isPending(pending.get(i), now)) {
+                            for (String field : orphanIds.get(ids.get(i))) {
+                                orphans.remove(field);
+                            }
+                        }
+                    }
+                }
+
+                List<byte[]> toRemove = new ArrayList<byte[]>();
+                for (Entry<String, Long> orphan : orphans.entrySet()) {
+                    if (candidates.contains(orphan.getKey())) {
+                        toRemove.add(orphan.getKey().getBytes());
+                        result.bytesReclaimed += orphan.getValue().longValue();
+                    } else {
+                        newCandidates.add(orphan.getKey());
+                    }
+                }
+                if (toRemove.size() > 0) {
+                    // content-addressed blocks/packs may have been referenced again
+                    // meanwhile, the script re-checks references server-side
+                    Object removed = LuaScripts.eval(jedis, LuaScripts.HDEL_UNREFERENCED,
+                            Arrays.asList(HASH_FILE_DATA, HASH_BLOCK_REFS), toRemove);
+                    result.blocksRemoved += ((Long) removed).longValue();
+                }
+            }
+            if (batchPauseMs > 0 && !"0".equals(cursor)) {
+                Thread.sleep(batchPauseMs);
+            }
+        } while (!"0".equals(cursor));
+
+        candidates = newCandidates;
+        result.orphanCandidates = newCandidates.size();
+        result.durationMs = System.currentTimeMillis() - t1;
+        totalBlocksRemoved.addAndGet(result.blocksRemoved);
+        totalBytesReclaimed.addAndGet(result.bytesReclaimed);
+        totalStaleLocksRemoved.addAndGet(result.staleLocksRemoved);
+        lastResult = result;
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("GC [" + redisDir.getHashDirectoryMetadata() + "/"
+                    + redisDir.getHashFileData() + "]: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * Timestamp of a pending file registration ({@code timestamp:fileDataHash}).
+     * 
+     * @param registration
+     * @return
+     */
+    private static long registeredAt(byte[] registration) {
+        String value = new String(registration, StandardCharsets.UTF_8);
+        int sep = value.indexOf(':');
+        try {
+            return Long.parseLong(sep > 0 ? value.substring(0, sep) : value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private boolean isPending(byte[] registration, long now) {
+        return registration != null && now - registeredAt(registration) < pendingGraceMs;
+    }
+
+    /**
+     * Removes pending file registrations older than
+     * {@link #getPendingGraceMs()}, releasing the block references recorded
+     * by abandoned content-addressed files of this collector's file data hash.
+     * 
+     * @param now
+     * @param result
+     * @throws InterruptedException
+     */
+    private void removeExpiredPendingFiles(long now, Result result)
+            throws InterruptedException {
+        final byte[] HASH_PENDING_FILES = redisDir.getHashPendingFiles().getBytes();
+        final byte[] HASH_FILE_DATA = redisDir.getHashFileData().getBytes();
+        final byte[] HASH_BLOCK_REFS = redisDir.getHashBlockRefs().getBytes();
+        final String FILE_DATA_TAG = ":" + redisDir.getHashFileData();
+        // expired registrations (id -> registration), block reference records
+        // (id -> fields)
+        Map<String, String> expired = new HashMap<String, String>();
+        Map<String, List<byte[]>> records = new HashMap<String, List<byte[]>>();
+        ScanParams params = new ScanParams().count(batchSize);
+        byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        do {
+            try (Jedis jedis = redisDir.getJedis()) {
+                ScanResult<Entry<byte[], byte[]>> scan = jedis.hscan(HASH_PENDING_FILES, cursor,
+                        params);
+                cursor = scan.getCursorAsBytes();
+                for (Entry<byte[], byte[]> entry : scan.getResult()) {
+                    String field = new String(entry.getKey(), StandardCharsets.UTF_8);
+                    int sep = field.indexOf(':');
+                    if (sep > 0) {
+                        String id = field.substring(0, sep);
+                        List<byte[]> fields = records.get(id);
+                        if (fields == null) {
+                            fields = new ArrayList<byte[]>();
+                            records.put(id, fields);
+                        }
+                        fields.add(entry.getKey());
+                    } else if (!isPending(entry.getValue(), now)) {
+                        expired.put(field, new String(entry.getValue(), StandardCharsets.UTF_8));
+                    }
+                }
+            }
+            if (batchPauseMs > 0 && !"0".equals(new String(cursor))) {
+                Thread.sleep(batchPauseMs);
+            }
+        } while (!"0".equals(new String(cursor)));
+        for (Entry<String, String> entry : expired.entrySet()) {
+            List<byte[]> fields = records.get(entry.getKey());
+            if (fields != null && !entry.getValue().endsWith(FILE_DATA_TAG)) {
+                // references held on another namespace's blocks
+                continue;
+            }
+            List<byte[]> args = new ArrayList<byte[]>();
+            // re-checked server-side: a promoted file registers its id again
+            args.add(String.valueOf(now - pendingGraceMs).getBytes());
+            args.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            if (fields != null) {
+                args.addAll(fields);
+            }
+            try (Jedis jedis = redisDir.getJedis()) {
+                Object released = LuaScripts.eval(jedis, LuaScripts.RELEASE_PENDING_FILE,
+                        Arrays.asList(HASH_PENDING_FILES, HASH_FILE_DATA, HASH_BLOCK_REFS), args);
+                if (released instanceof Long && ((Long) released).longValue() >= 0) {
+                    result.abandonedFilesRemoved++;
+                    result.blockRefsReleased += ((Long) released).longValue();
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects ids of all live files, removing stale locks along the way.
+     * 
+     * @param result
+     * @return
+     * @throws InterruptedException
+     */
+    private Set<String> scanMetadata(Result result) throws InterruptedException {
+        final byte[] HASH_METADATA = redisDir.getHashDirectoryMetadata().getBytes();
+        Set<String> liveIds = new HashSet<String>();
+        ScanParams params = new ScanParams().count(batchSize);
+        byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        do {
+            try (Jedis jedis = redisDir.getJedis()) {
+                ScanResult<Entry<byte[], byte[]>> scan = jedis.hscan(HASH_METADATA, cursor, params);
+                cursor = scan.getCursorAsBytes();
+                long now = System.currentTimeMillis();
+                for (Entry<byte[], byte[]> entry : scan.getResult()) {
+                    FileInfo fileInfo = FileInfo.newInstance(entry.getValue());
+                    if (fileInfo == null) {
+                        continue;
+                    }
+                    if (staleLockMs > 0 && fileInfo.isLock() && fileInfo.timestamp() > 0
+                            && now - fileInfo.timestamp() > staleLockMs) {
+                        Object removed = LuaScripts.eval(jedis, LuaScripts.HDEL_IF_EQUALS,
+                                Arrays.asList(HASH_METADATA),
+                                Arrays.asList(entry.getKey(), entry.getValue()));
+                        if (removed instanceof Long && ((Long) removed).longValue() > 0) {
+                            result.staleLocksRemoved++;
+                            LOGGER.warn("Removed stale lock [" + fileInfo.name() + "/"
+                                    + fileInfo.id() + "], last refreshed at "
+                                    + fileInfo.timestamp());
+                        }
+                        continue;
+                    }
+                    liveIds.add(fileInfo.id());
+                }
+            }
+            if (batchPauseMs > 0 && !"0".equals(new String(cursor))) {
+                Thread.sleep(batchPauseMs);
+            }
+        } while (!"0".equals(new String(cursor)));
+        return liveIds;
+    }
+
+    /**
+     * Result of a collection pass.
+     */
+    public static class Result {
+        public long blocksScanned, bytesScanned;
+        public long blocksRemoved, bytesReclaimed;
+        public long orphanCandidates;
+        public long staleLocksRemoved;
+        public long abandonedFilesRemoved, blockRefsReleased;
+        public long durationMs;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "blocks scanned: " + blocksScanned + " (" + bytesScanned + " bytes)"
+                    + ", blocks removed: " + blocksRemoved + " (" + bytesReclaimed + " bytes)"
+                    + ", orphan candidates: " + orphanCandidates + ", stale locks removed: "
+                    + staleLocksRemoved + ", abandoned files removed: " + abandonedFilesRemoved
+                    + " (" + blockRefsReleased + " block refs released), in " + durationMs
+                    + " ms";
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.ddth.com.redir;
+
+import java.util.Collection;
+
+/**
+ * Notified of new commits of a {@link RedisDirectory}, see
+ * {@link CommitSubscriber}.
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public interface CommitListener {
+    /**
+     * Called when a new commit is available. Called from the subscriber's
+     * thread: long tasks (e.g. reopening readers) should be handed over to
+     * another thread.
+     * 
+     * @param generation
+     *            generation of the commit
+     * @param segmentsFileName
+     *            name of the commit's {@code segments_N} file
+     * @param files
+     *            names of the files referenced by the commit, excluding the
+     *            {@code segments_N} file
+     */
+    public void onCommit(long generation, String segmentsFileName, Collection<String> files);
+}
@@ -0,0 +1,228 @@
+package com.github.ddth.com.redir;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.SegmentInfos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Listens to commit events of a {@link RedisDirectory} (see
+ * {@link RedisDirectory#setPublishCommits(boolean)}) and notifies
+ * {@link CommitListener}s, so that readers can be refreshed as soon as a new
+ * commit is available, without polling.
+ * 
+ * <p>
+ * Events are received in a background thread, which holds one connection of
+ * the directory's pool while subscribed. Pub/sub delivery is best-effort:
+ * after each (re)subscription, the latest commit is read from the directory
+ * and notified if newer than the last notified one, so commits published
+ * while disconnected are not missed. Listeners are notified of increasing
+ * generations only.
+ * </p>
+ * 
+ * <pre>
+ * CommitSubscriber subscriber = new CommitSubscriber(redisDir);
+ * subscriber.addListener(new CommitListener() {
+ *     public void onCommit(long generation, String segmentsFileName,
+ *             Collection&lt;String&gt; files) {
+ *         // e.g. trigger SearcherManager.maybeRefresh() in another thread
+ *     }
+ * });
+ * subscriber.start();
+ * ...
+ * subscriber.stop();
+ * </pre>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class CommitSubscriber {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(CommitSubscriber.class);
+
+    public final static long DEFAULT_RECONNECT_DELAY_MS = 1000;
+
+    private RedisDirectory redisDir;
+    private long reconnectDelayMs = DEFAULT_RECONNECT_DELAY_MS;
+    private List<CommitListener> listeners = new CopyOnWriteArrayList<CommitListener>();
+    private long lastGeneration = -1;
+
+    private volatile boolean running = false;
+    private Thread thread;
+    private PubSub pubSub;
+
+    public CommitSubscriber(RedisDirectory redisDir) {
+        this.redisDir = redisDir;
+    }
+
+    /**
+     * Delay before re-subscribing after the connection has been lost.
+     * 
+     * @return
+     */
+    public long getReconnectDelayMs() {
+        return reconnectDelayMs;
+    }
+
+    public CommitSubscriber setReconnectDelayMs(long reconnectDelayMs) {
+        this.reconnectDelayMs = Math.max(0, reconnectDelayMs);
+        return this;
+    }
+
+    public CommitSubscriber addListener(CommitListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    public CommitSubscriber removeListener(CommitListener listener) {
+        listeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * Generation of the last notified commit.
+     * 
+     * @return {@code -1} if no commit has been notified yet
+     */
+    synchronized public long getLastGeneration() {
+        return lastGeneration;
+    }
+
+    /*----------------------------------------------------------------------*/
+    /**
+     * Subscribes to commit events in a background thread.
+     * 
+     * @return
+     */
+    synchronized public CommitSubscriber start() {
+        if (thread == null) {
+            running = true;
+            pubSub = new PubSub();
+            thread = new Thread("redir-commits-" + redisDir.getCommitChannel()) {
+                @Override
+                public void run() {
+                    subscribeLoop();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Unsubscribes and stops the background thread.
+     */
+    synchronized public void stop() {
+        if (thread != null) {
+            running = false;
+            try {
+                pubSub.unsubscribe();
+            } catch (Exception e) {
+                // not subscribed (yet)
+            }
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private void subscribeLoop() {
+        final byte[] CHANNEL = redisDir.getCommitChannel().getBytes();
+        while (running) {
+            try (Jedis jedis = redisDir.getJedis()) {
+                jedis.subscribe(pubSub, CHANNEL);
+            } catch (Exception e) {
+                if (running) {
+                    LOGGER.warn("Subscription to [" + new String(CHANNEL) + "] lost: "
+                            + e.getMessage(), e);
+                }
+            }
+            if (running && reconnectDelayMs > 0) {
+                try {
+                    Thread.sleep(reconnectDelayMs);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the latest commit from the directory and notifies it if newer
+     * than the last notified one.
+     */
+    private void resync() {
+        try {
+            SegmentInfos sis = SegmentInfos.readLatestCommit(redisDir);
+            notifyListeners(sis.getGeneration(), sis.getSegmentsFileName(), sis.files(false));
+        } catch (IndexNotFoundException e) {
+            // no commit yet
+        } catch (Exception e) {
+            LOGGER.warn("Cannot read latest commit: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parses a commit event published by {@link RedisDirectory} and notifies
+     * it.
+     * 
+     * @param message
+     */
+    void onCommitEvent(byte[] message) {
+        String[] tokens = new String(message, StandardCharsets.UTF_8).split("\n");
+        if (!RedisDirectory.isSegmentsFile(tokens[0])) {
+            LOGGER.warn("Invalid commit event [" + tokens[0] + "]");
+            return;
+        }
+        long generation = SegmentInfos.generationFromSegmentsFileName(tokens[0]);
+        List<String> files = new ArrayList<String>(tokens.length - 1);
+        for (int i = 1; i < tokens.length; i++) {
+            files.add(tokens[i]);
+        }
+        notifyListeners(generation, tokens[0], files);
+    }
+
+    synchronized private void notifyListeners(long generation, String segmentsFileName,
+            Collection<String> files) {
+        if (generation <= lastGeneration) {
+            return;
+        }
+        lastGeneration = generation;
+        for (CommitListener listener : listeners) {
+            try {
+                listener.onCommit(generation, segmentsFileName, files);
+            } catch (Exception e) {
+                LOGGER.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    private class PubSub extends BinaryJedisPubSub {
+        @Override
+        public void onSubscribe(byte[] channel, int subscribedChannels) {
+            if (!running) {
+                unsubscribe();
+                return;
+            }
+            resync();
+        }
+
+        @Override
+        public void onMessage(byte[] channel, byte[] message) {
+            try {
+                onCommitEvent(message);
+            } catch (Exception e) {
+                LOGGER.warn(e.getMessage(), e);
+            }
+        }
+    }
+}
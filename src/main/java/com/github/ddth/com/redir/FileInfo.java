@@ -1,5 +1,7 @@
 package com.github.ddth.com.redir;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -48,6 +50,12 @@ public class FileInfo extends BaseBo {
     private final static String ATTR_NAME = "filename";
     private final static String ATTR_SIZE = "filesize";
     private final static String ATTR_ID = "fileid";
+    private final static String ATTR_BLOCKS = "blocks";
+    private final static String ATTR_LOCK = "lock";
+    private final static String ATTR_TIMESTAMP = "timestamp";
+    private final static String ATTR_PACK = "pack";
+    private final static String ATTR_PACK_OFFSET = "packoffset";
+    private final static String ATTR_TIER = "tier";
 
     public byte[] asBytes() {
         Map<?, ?> data = toMap();
@@ -82,4 +90,202 @@ public class FileInfo extends BaseBo {
         return (FileInfo) setAttribute(ATTR_ID, id);
     }
 
+    /**
+     * Content hashes of the file's blocks, in block order ({@code null} if the
+     * file's blocks are keyed by file id).
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    @JsonIgnore
+    @SuppressWarnings("unchecked")
+    public List<String> blocks() {
+        return getAttribute(ATTR_BLOCKS, List.class);
+    }
+
+    /**
+     * 
+     * @param blocks
+     * @return
+     * @since 0.1.3
+     */
+    public FileInfo blocks(List<String> blocks) {
+        return (FileInfo) setAttribute(ATTR_BLOCKS, blocks);
+    }
+
+    /**
+     * Is this file stored as a list of content-addressed blocks?
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    @JsonIgnore
+    public boolean isContentAddressed() {
+        return blocks() != null && !isPacked() && !isTiered();
+    }
+
+    /**
+     * Appends a block's content hash to the block list.
+     * 
+     * @param hash
+     * @return
+     * @since 0.1.3
+     */
+    public FileInfo addBlock(String hash) {
+        List<String> blocks = blocks();
+        if (blocks == null) {
+            blocks = new ArrayList<String>();
+            blocks(blocks);
+        }
+        blocks.add(hash);
+        return this;
+    }
+
+    /**
+     * Gets content hash of a block.
+     * 
+     * @param blockNum
+     * @return {@code null} if the file is not content-addressed or block does
+     *         not exist
+     * @since 0.1.3
+     */
+    public String blockHash(int blockNum) {
+        List<String> blocks = blocks();
+        return blocks != null && blockNum >= 0 && blockNum < blocks.size() ? blocks.get(blockNum)
+                : null;
+    }
+
+    /**
+     * Is this entry a lock (rather than a file)?
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    @JsonIgnore
+    public boolean isLock() {
+        Boolean result = getAttribute(ATTR_LOCK, Boolean.class);
+        return result != null && result.booleanValue();
+    }
+
+    /**
+     * 
+     * @param lock
+     * @return
+     * @since 0.1.3
+     */
+    public FileInfo lock(boolean lock) {
+        return (FileInfo) setAttribute(ATTR_LOCK, lock);
+    }
+
+    /**
+     * Timestamp (UNIX epoch in milliseconds) of the last update, {@code 0} if
+     * not available.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    @JsonIgnore
+    public long timestamp() {
+        Long result = getAttribute(ATTR_TIMESTAMP, Long.class);
+        return result != null ? result.longValue() : 0;
+    }
+
+    /**
+     * 
+     * @param timestamp
+     * @return
+     * @since 0.1.3
+     */
+    public FileInfo timestamp(long timestamp) {
+        return (FileInfo) setAttribute(ATTR_TIMESTAMP, timestamp);
+    }
+
+    /**
+     * Key of the pack the file's content is stored in ({@code null} if the
+     * file is stored in its own blocks).
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    @JsonIgnore
+    public String pack() {
+        return getAttribute(ATTR_PACK, String.class);
+    }
+
+    /**
+     * 
+     * @param pack
+     * @return
+     * @since 0.1.3
+     */
+    public FileInfo pack(String pack) {
+        return (FileInfo) setAttribute(ATTR_PACK, pack);
+    }
+
+    /**
+     * Is this file stored inside a pack?
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    @JsonIgnore
+    public boolean isPacked() {
+        return pack() != null;
+    }
+
+    /**
+     * Offset of the file's content inside its pack.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    @JsonIgnore
+    public long packOffset() {
+        Long result = getAttribute(ATTR_PACK_OFFSET, Long.class);
+        return result != null ? result.longValue() : 0;
+    }
+
+    /**
+     * 
+     * @param packOffset
+     * @return
+     * @since 0.1.3
+     */
+    public FileInfo packOffset(long packOffset) {
+        return (FileInfo) setAttribute(ATTR_PACK_OFFSET, packOffset);
+    }
+
+    /**
+     * Key of the object holding the file's content in the directory's
+     * {@link TierStore} ({@code null} if the file is stored in Redis).
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    @JsonIgnore
+    public String tier() {
+        return getAttribute(ATTR_TIER, String.class);
+    }
+
+    /**
+     * 
+     * @param tier
+     * @return
+     * @since 0.1.3
+     */
+    public FileInfo tier(String tier) {
+        return (FileInfo) setAttribute(ATTR_TIER, tier);
+    }
+
+    /**
+     * Has this file been demoted to the directory's {@link TierStore}?
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    @JsonIgnore
+    public boolean isTiered() {
+        return tier() != null;
+    }
+
 }
@@ -0,0 +1,180 @@
+package com.github.ddth.com.redir;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link TierStore} on a local (or mounted) file system: each object is a
+ * file under a root directory.
+ * 
+ * <p>
+ * Objects are written to a temporary file then atomically moved into place.
+ * Recently read files are kept open (positional reads are thread-safe).
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class FsTierStore implements TierStore {
+
+    public final static int DEFAULT_MAX_OPEN_FILES = 256;
+
+    private Path root;
+    private final Map<String, FileChannel> openFiles;
+
+    /**
+     * 
+     * @param root
+     *            created if it does not exist
+     * @throws IOException
+     */
+    public FsTierStore(Path root) throws IOException {
+        this(root, DEFAULT_MAX_OPEN_FILES);
+    }
+
+    /**
+     * 
+     * @param root
+     *            created if it does not exist
+     * @param maxOpenFiles
+     *            max number of files kept open
+     * @throws IOException
+     */
+    public FsTierStore(Path root, final int maxOpenFiles) throws IOException {
+        this.root = Files.createDirectories(root);
+        this.openFiles = new LinkedHashMap<String, FileChannel>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileChannel> eldest) {
+                if (size() > maxOpenFiles) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    private Path path(String key) {
+        if (key.indexOf('/') >= 0 || key.indexOf('\\') >= 0 || key.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid object key [" + key + "]");
+        }
+        return root.resolve(key);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(String key, InputStream in, long length) throws IOException {
+        Path target = path(key);
+        Path tmp = Files.createTempFile(root, "." + key, ".tmp");
+        try {
+            long copied = Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            if (copied != length) {
+                throw new EOFException("Object [" + key + "]: expected " + length
+                        + " bytes, got " + copied);
+            }
+            forget(key);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private FileChannel channel(String key) throws IOException {
+        synchronized (openFiles) {
+            FileChannel channel = openFiles.get(key);
+            if (channel == null || !channel.isOpen()) {
+                try {
+                    channel = FileChannel.open(path(key), StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    throw new FileNotFoundException("Object [" + key + "] not found!");
+                }
+                openFiles.put(key, channel);
+            }
+            return channel;
+        }
+    }
+
+    private void forget(String key) {
+        synchronized (openFiles) {
+            FileChannel channel = openFiles.remove(key);
+            if (channel != null) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void read(String key, long position, byte[] dest, int offset, int length)
+            throws IOException {
+        try {
+            readFully(key, channel(key), position, dest, offset, length);
+        } catch (ClosedChannelException e) {
+            // closed by eviction meanwhile
+            readFully(key, channel(key), position, dest, offset, length);
+        }
+    }
+
+    private static void readFully(String key, FileChannel channel, long position, byte[] dest,
+            int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dest, offset, length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position() - offset);
+            if (n < 0) {
+                throw new EOFException("Object [" + key + "]: read past EOF");
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete(String key) throws IOException {
+        forget(key);
+        Files.deleteIfExists(path(key));
+    }
+
+    /**
+     * Closes all open files.
+     */
+    public void close() {
+        synchronized (openFiles) {
+            for (FileChannel channel : openFiles.values()) {
+                closeQuietly(channel);
+            }
+            openFiles.clear();
+        }
+    }
+}
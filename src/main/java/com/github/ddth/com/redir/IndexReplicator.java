@@ -0,0 +1,459 @@
+package com.github.ddth.com.redir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replicates committed index files of a {@link RedisDirectory} to another
+ * {@link Directory} (typically a {@link RedisDirectory} on a Redis server in
+ * another data center), asynchronously.
+ * 
+ * <p>
+ * Each run reads the latest commit of the source and:
+ * </p>
+ * <ul>
+ * <li>copies the files it references that the target does not have yet,
+ * {@link #getParallelism()} files at a time (files of the same name and
+ * length are considered identical: Lucene files are write-once),</li>
+ * <li>copies the commit file ({@code segments_N}) last, so the target always
+ * holds a complete commit,</li>
+ * <li>deletes target files the commit no longer references (older commits,
+ * merged-away segments, leftovers of interrupted runs).</li>
+ * </ul>
+ * 
+ * <p>
+ * Uncommitted files, merge temporary files and older commits are never
+ * copied. Progress is kept by the target itself: an interrupted run is
+ * resumed by the next one, files already copied are not copied again.
+ * </p>
+ * 
+ * <p>
+ * Runs are triggered by commit events when registered as a
+ * {@link CommitListener} of a {@link CommitSubscriber}, and periodically
+ * (see {@link #start(long)}) to catch up with missed events.
+ * </p>
+ * 
+ * <pre>
+ * IndexReplicator replicator = new IndexReplicator(redisDir, drRedisDir).start(60000);
+ * new CommitSubscriber(redisDir).addListener(replicator).start();
+ * ...
+ * long lagMs = replicator.getLagMs();
+ * </pre>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class IndexReplicator implements CommitListener {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(IndexReplicator.class);
+
+    public final static int DEFAULT_PARALLELISM = 4;
+
+    private RedisDirectory source;
+    private Directory target;
+    private int parallelism = DEFAULT_PARALLELISM;
+
+    private volatile long sourceGeneration = -1, replicatedGeneration = -1;
+    /* time the oldest not yet replicated commit was seen, 0 if none */
+    private volatile long pendingSince = 0;
+    /* generations not yet replicated -> time first seen, guarded by this */
+    private final TreeMap<Long, Long> firstSeen = new TreeMap<Long, Long>();
+    private volatile Result lastResult;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService copyExecutor;
+    private final Object runLock = new Object();
+    private final AtomicBoolean runScheduled = new AtomicBoolean(false);
+
+    public IndexReplicator(RedisDirectory source, Directory target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    public RedisDirectory getSource() {
+        return source;
+    }
+
+    public Directory getTarget() {
+        return target;
+    }
+
+    /**
+     * Max number of files copied concurrently.
+     * 
+     * @return
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    synchronized public IndexReplicator setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        if (copyExecutor != null) {
+            copyExecutor.shutdown();
+            copyExecutor = null;
+        }
+        return this;
+    }
+
+    /**
+     * Generation of the latest commit seen on the source.
+     * 
+     * @return {@code -1} if none seen yet
+     */
+    public long getSourceGeneration() {
+        return sourceGeneration;
+    }
+
+    /**
+     * Generation of the latest commit completely replicated to the target.
+     * 
+     * @return {@code -1} if none yet
+     */
+    public long getReplicatedGeneration() {
+        return replicatedGeneration;
+    }
+
+    /**
+     * Replication lag: time since the oldest commit seen on the source but
+     * not replicated yet was seen.
+     * 
+     * @return {@code 0} if the target is up to date
+     */
+    public long getLagMs() {
+        long since = pendingSince;
+        return since > 0 ? Math.max(0, System.currentTimeMillis() - since) : 0;
+    }
+
+    /**
+     * Result of the last run.
+     * 
+     * @return {@code null} if not run yet
+     */
+    public Result getLastResult() {
+        return lastResult;
+    }
+
+    /*----------------------------------------------------------------------*/
+    /**
+     * Runs replication in a background thread, periodically and on commit
+     * events (see {@link #onCommit(long, String, Collection)}).
+     * 
+     * @param intervalMs
+     *            {@code 0}: on commit events only
+     * @return
+     */
+    synchronized public IndexReplicator start(long intervalMs) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "redir-replicator-" + source.getHashFileData());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            if (intervalMs > 0) {
+                scheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        runQuietly();
+                    }
+                }, 0, intervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Stops the background thread.
+     */
+    synchronized public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (copyExecutor != null) {
+            copyExecutor.shutdownNow();
+            copyExecutor = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Schedules a run in the background thread (if started), unless one is
+     * already scheduled.
+     * </p>
+     */
+    @Override
+    public void onCommit(long generation, String segmentsFileName, Collection<String> files) {
+        seen(generation);
+        ScheduledExecutorService scheduler;
+        synchronized (this) {
+            scheduler = this.scheduler;
+        }
+        if (scheduler != null && runScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runScheduled.set(false);
+                        runQuietly();
+                    }
+                });
+            } catch (Exception e) {
+                // stopped meanwhile
+                runScheduled.set(false);
+            }
+        }
+    }
+
+    private void seen(long generation) {
+        synchronized (this) {
+            if (generation > sourceGeneration) {
+                sourceGeneration = generation;
+            }
+            if (generation > replicatedGeneration && !firstSeen.containsKey(generation)) {
+                firstSeen.put(generation, System.currentTimeMillis());
+                pendingSince = firstSeen.firstEntry().getValue();
+            }
+        }
+    }
+
+    private void runQuietly() {
+        try {
+            runOnce();
+        } catch (Exception e) {
+            LOGGER.warn("Replication of [" + source.getHashDirectoryMetadata() + "] failed: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    synchronized private ExecutorService getCopyExecutor() {
+        if (copyExecutor == null) {
+            final AtomicInteger COUNTER = new AtomicInteger();
+            copyExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "redir-replicator-copy-"
+                            + source.getHashFileData() + "-" + COUNTER.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return copyExecutor;
+    }
+
+    /**
+     * Replicates the latest commit of the source once.
+     * 
+     * @return
+     * @throws IOException
+     */
+    public Result runOnce() throws IOException {
+        synchronized (runLock) {
+            return doRun();
+        }
+    }
+
+    private Result doRun() throws IOException {
+        long t1 = System.currentTimeMillis();
+        Result result = new Result();
+        SegmentInfos sis;
+        try {
+            sis = SegmentInfos.readLatestCommit(source);
+        } catch (IndexNotFoundException e) {
+            lastResult = result;
+            return result;
+        }
+        result.generation = sis.getGeneration();
+        seen(result.generation);
+
+        Collection<String> files = sis.files(false);
+        if (source.getMetadataPrefetchTtlMs() > 0) {
+            source.prefetchFileInfos(files);
+        }
+        if (target instanceof RedisDirectory
+                && ((RedisDirectory) target).getMetadataPrefetchTtlMs() > 0) {
+            ((RedisDirectory) target).prefetchFileInfos(files);
+        }
+        List<String> toCopy = new ArrayList<String>();
+        for (String name : files) {
+            long targetLength = lengthOf(target, name);
+            if (targetLength >= 0 && targetLength == source.fileLength(name)) {
+                result.filesSkipped++;
+                continue;
+            }
+            if (targetLength >= 0) {
+                // leftover of an interrupted run
+                target.deleteFile(name);
+            }
+            toCopy.add(name);
+        }
+        try {
+            copyAll(toCopy, result);
+            // commit file last: the target only sees complete commits
+            String segmentsFileName = sis.getSegmentsFileName();
+            if (lengthOf(target, segmentsFileName) < 0) {
+                target.sync(files);
+                copy(segmentsFileName, result);
+                target.sync(Collections.singleton(segmentsFileName));
+            }
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            // commit superseded while copying (files deleted by the index
+            // writer): the next run replicates the newer commit
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Commit [" + sis.getSegmentsFileName() + "] superseded: "
+                        + e.getMessage());
+            }
+            result.superseded = true;
+            result.durationMs = System.currentTimeMillis() - t1;
+            lastResult = result;
+            return result;
+        }
+
+        // delete what the replicated commit no longer references
+        Set<String> keep = new HashSet<String>(sis.files(true));
+        for (String name : target.listAll()) {
+            if (!keep.contains(name) && !IndexWriter.WRITE_LOCK_NAME.equals(name)) {
+                try {
+                    target.deleteFile(name);
+                    result.filesDeleted++;
+                } catch (FileNotFoundException | NoSuchFileException e) {
+                    // deleted meanwhile
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (result.generation > replicatedGeneration) {
+                replicatedGeneration = result.generation;
+            }
+            // lag of the oldest generation still not replicated, since first
+            // seen
+            firstSeen.headMap(replicatedGeneration, true).clear();
+            pendingSince = firstSeen.isEmpty() ? 0 : firstSeen.firstEntry().getValue();
+        }
+        result.durationMs = System.currentTimeMillis() - t1;
+        lastResult = result;
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Replication [" + source.getHashDirectoryMetadata() + "]: " + result);
+        }
+        return result;
+    }
+
+    private void copyAll(List<String> names, final Result result) throws IOException {
+        if (names.size() < 2 || parallelism < 2) {
+            for (String name : names) {
+                copy(name, result);
+            }
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(names.size());
+        ExecutorService executor = getCopyExecutor();
+        for (final String name : names) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    copy(name, result);
+                    return null;
+                }
+            }));
+        }
+        IOException error = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<Void> f : futures) {
+                    f.cancel(true);
+                }
+                throw new InterruptedIOException(e.getMessage());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (error == null) {
+                    error = cause instanceof IOException ? (IOException) cause
+                            : new IOException(cause);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void copy(String name, Result result) throws IOException {
+        target.copyFrom(source, name, name, IOContext.DEFAULT);
+        result.filesCopied.incrementAndGet();
+        result.bytesCopied.addAndGet(source.fileLength(name));
+    }
+
+    /**
+     * 
+     * @param dir
+     * @param name
+     * @return {@code -1} if the file does not exist
+     * @throws IOException
+     */
+    private static long lengthOf(Directory dir, String name) throws IOException {
+        try {
+            return dir.fileLength(name);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Result of a run.
+     */
+    public static class Result {
+        public long generation = -1;
+        public final AtomicLong filesCopied = new AtomicLong(), bytesCopied = new AtomicLong();
+        public long filesSkipped, filesDeleted;
+        public boolean superseded;
+        public long durationMs;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "generation: " + generation + (superseded ? " (superseded)" : "") + ", copied: "
+                    + filesCopied + " files (" + bytesCopied + " bytes), skipped: "
+                    + filesSkipped + ", deleted: " + filesDeleted + ", in " + durationMs
+                    + " ms";
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.github.ddth.com.redir;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * I/O accounting of a unit of work (e.g. a query): Redis calls and time,
+ * fetched blocks and bytes (per file), cache hits.
+ * 
+ * <p>
+ * Usage:
+ * </p>
+ * 
+ * <pre>
+ * IoStats stats = IoStats.start();
+ * try {
+ *     searcher.search(query, 10);
+ * } finally {
+ *     IoStats.stop();
+ * }
+ * System.out.println(stats);
+ * </pre>
+ * 
+ * <p>
+ * Stats are bound to the current thread. Work executed by other threads (e.g.
+ * an {@code IndexSearcher} with an executor) is accounted if the stats are
+ * propagated to them with {@link #attach(IoStats)}.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class IoStats {
+
+    private final static ThreadLocal<IoStats> CURRENT = new ThreadLocal<IoStats>();
+
+    /**
+     * Starts accounting I/O of the current thread to new stats.
+     * 
+     * @return
+     */
+    public static IoStats start() {
+        IoStats stats = new IoStats();
+        CURRENT.set(stats);
+        return stats;
+    }
+
+    /**
+     * Stops accounting I/O of the current thread.
+     * 
+     * @return the stats that were bound to the current thread, {@code null}
+     *         if none
+     */
+    public static IoStats stop() {
+        IoStats stats = CURRENT.get();
+        CURRENT.remove();
+        return stats;
+    }
+
+    /**
+     * Stats bound to the current thread.
+     * 
+     * @return {@code null} if I/O of the current thread is not accounted
+     */
+    public static IoStats current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds stats to the current thread (e.g. a worker thread executing part
+     * of a query).
+     * 
+     * @param stats
+     *            {@code null} to unbind
+     * @return the stats previously bound to the current thread, to be restored
+     *         with another call of this method
+     */
+    public static IoStats attach(IoStats stats) {
+        IoStats previous = CURRENT.get();
+        if (stats != null) {
+            CURRENT.set(stats);
+        } else {
+            CURRENT.remove();
+        }
+        return previous;
+    }
+
+    /*----------------------------------------------------------------------*/
+    private final AtomicLong redisCalls = new AtomicLong(), redisTimeNanos = new AtomicLong();
+    private final AtomicLong blocksFetched = new AtomicLong(), bytesFetched = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong(), metadataLookups = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> blocksFetchedByFile = new ConcurrentHashMap<String, AtomicLong>(
+            16);
+
+    /**
+     * Number of Redis calls made to read data and metadata.
+     * 
+     * @return
+     */
+    public long getRedisCalls() {
+        return redisCalls.get();
+    }
+
+    /**
+     * Total time spent in Redis calls.
+     * 
+     * @return
+     */
+    public long getRedisTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(redisTimeNanos.get());
+    }
+
+    /**
+     * Number of blocks (and packs) fetched from Redis.
+     * 
+     * @return
+     */
+    public long getBlocksFetched() {
+        return blocksFetched.get();
+    }
+
+    public long getBytesFetched() {
+        return bytesFetched.get();
+    }
+
+    /**
+     * Number of blocks (and packs) served by in-memory caches.
+     * 
+     * @return
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Number of file metadata fetched from Redis.
+     * 
+     * @return
+     */
+    public long getMetadataLookups() {
+        return metadataLookups.get();
+    }
+
+    /**
+     * Number of blocks fetched from Redis, per file name.
+     * 
+     * @return
+     */
+    public Map<String, Long> getBlocksFetchedByFile() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Entry<String, AtomicLong> entry : blocksFetchedByFile.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    void recordFetch(String fileName, int numBlocks, long numBytes, long nanos) {
+        redisCalls.incrementAndGet();
+        redisTimeNanos.addAndGet(nanos);
+        blocksFetched.addAndGet(numBlocks);
+        bytesFetched.addAndGet(numBytes);
+        AtomicLong counter = blocksFetchedByFile.get(fileName);
+        if (counter == null) {
+            AtomicLong existing = blocksFetchedByFile.putIfAbsent(fileName,
+                    counter = new AtomicLong());
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        counter.addAndGet(numBlocks);
+    }
+
+    void recordCacheHits(int numBlocks) {
+        cacheHits.addAndGet(numBlocks);
+    }
+
+    void recordMetadataLookup(long nanos) {
+        redisCalls.incrementAndGet();
+        redisTimeNanos.addAndGet(nanos);
+        metadataLookups.incrementAndGet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "redis calls: " + getRedisCalls() + " (" + getRedisTimeMs() + " ms)"
+                + ", blocks fetched: " + getBlocksFetched() + " (" + getBytesFetched()
+                + " bytes), cache hits: " + getCacheHits() + ", metadata lookups: "
+                + getMetadataLookups() + ", by file: " + getBlocksFetchedByFile();
+    }
+}
@@ -1,18 +1,39 @@
 package com.github.ddth.com.redir;
 
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.CRC32;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.BaseDirectory;
 import org.apache.lucene.store.Directory;
@@ -20,14 +41,30 @@ import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.store.RateLimiter;
+import org.apache.lucene.store.LockObtainFailedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.ddth.com.redir.internal.AccessTracker;
+import com.github.ddth.com.redir.internal.BlockCache;
+import com.github.ddth.com.redir.internal.BlockLoader;
+import com.github.ddth.com.redir.internal.BufferPool;
+import com.github.ddth.com.redir.internal.ConnectionAffinity;
+import com.github.ddth.com.redir.internal.FileInfoCache;
+import com.github.ddth.com.redir.internal.HedgedReader;
+import com.github.ddth.com.redir.internal.IoExecutor;
+import com.github.ddth.com.redir.internal.LuaScripts;
 import com.github.ddth.com.redir.internal.RedisLockFactory;
+import com.github.ddth.com.redir.internal.WriteCoalescer;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
 
 /**
  * Redis implementation of {@link Directory}.
@@ -39,26 +76,228 @@ public class RedisDirectory extends BaseDirectory {
 
     public final static int BLOCK_SIZE = 64 * 1024; // 64Kb
 
+    /**
+     * {@code BLOCK_SIZE == 1 << BLOCK_SHIFT}
+     * 
+     * @since 0.1.3
+     */
+    private final static int BLOCK_SHIFT = 16;
+
+    /**
+     * Max number of blocks copied by one server-side script call.
+     * 
+     * @since 0.1.3
+     */
+    private final static int COPY_BATCH_BLOCKS = 16;
+
+    /**
+     * Max number of blocks removed by one {@code HDEL} command.
+     * 
+     * @since 0.1.3
+     */
+    private final static int DELETE_BATCH_BLOCKS = 1024;
+
+    /**
+     * Number of metadata entries fetched per {@code HSCAN} call when listing
+     * files.
+     * 
+     * @since 0.1.3
+     */
+    private final static int LIST_BATCH_SIZE = 1000;
+
+    /**
+     * A held lock refreshes its timestamp once per this period, from a
+     * background task running until the lock is closed, see
+     * {@link BlockGarbageCollector#setStaleLockMs(long)}.
+     * 
+     * @since 0.1.3
+     */
+    public final static long LOCK_HEARTBEAT_MS = 60000;
+
     private Logger LOGGER = LoggerFactory.getLogger(RedisDirectory.class);
+    private Logger SLOW_LOGGER = LoggerFactory.getLogger(RedisDirectory.class.getName() + ".slow");
 
     public final static String DEFAULT_HASH_FILE_DATA = "file_data";
     public final static String DEFAULT_HASH_DIRECTORY_METADATA = "directory_metadata";
+    /**
+     * Suffix of the default name of the block reference hash, see
+     * {@link #getHashBlockRefs()}.
+     */
+    public final static String DEFAULT_HASH_BLOCK_REFS = "block_refs";
+    public final static String DEFAULT_HASH_PENDING_FILES = "pending_files";
+
+    /**
+     * Prefix of content-addressed block keys in the file data hash.
+     * 
+     * @since 0.1.3
+     */
+    public final static String CONTENT_BLOCK_PREFIX = "@";
+
+    /**
+     * Prefix of pack keys in the file data hash.
+     * 
+     * @since 0.1.3
+     */
+    public final static String PACK_PREFIX = "#";
 
     private byte[] hashFileData = DEFAULT_HASH_FILE_DATA.getBytes();
     private byte[] hashDirectoryMetadata = DEFAULT_HASH_DIRECTORY_METADATA.getBytes();
+    private byte[] hashBlockRefs = defaultHashBlockRefs(DEFAULT_HASH_FILE_DATA).getBytes();
+    private boolean hashBlockRefsSet = false;
+    private byte[] hashPendingFiles = DEFAULT_HASH_PENDING_FILES.getBytes();
+
+    private boolean contentAddressed = false;
+
+    public final static int DEFAULT_SEQUENTIAL_READ_AHEAD_BLOCKS = 16;
+    public final static int DEFAULT_BULK_WRITE_BATCH_BLOCKS = 8;
+
+    private int sequentialReadAheadBlocks = DEFAULT_SEQUENTIAL_READ_AHEAD_BLOCKS;
+    private int bulkWriteBatchBlocks = DEFAULT_BULK_WRITE_BATCH_BLOCKS;
+
+    /**
+     * Extensions of small files read by every query: terms index, field
+     * infos, norms/doc values metadata, segment infos, live docs.
+     * 
+     * @since 0.1.3
+     */
+    public final static Set<String> DEFAULT_PIN_EXTENSIONS = Collections
+            .unmodifiableSet(new HashSet<String>(
+                    Arrays.asList("tip", "fnm", "nvm", "dvm", "si", "liv")));
+
+    private Set<String> pinExtensions = DEFAULT_PIN_EXTENSIONS;
+    private long pinMaxBytes = 0;
+    private BlockCache blockCache;
+    private ConcurrentMap<IOContext.Context, RateLimiter> rateLimiters = new ConcurrentHashMap<IOContext.Context, RateLimiter>(
+            4);
+
+    public final static int DEFAULT_PACK_CACHE_SIZE = 64;
+
+    private int packThreshold = 0;
+    private BlockCache packCache = new BlockCache(DEFAULT_PACK_CACHE_SIZE);
+
+    /**
+     * A segment's buffered small files are written to a pack once they reach
+     * this size.
+     * 
+     * @since 0.1.3
+     */
+    public final static int PACK_BUFFER_MAX_BYTES = 1024 * 1024;
+
+    /*
+     * segment name -> small files of the segment closed but not written yet,
+     * see writePackedFile(...)
+     */
+    private ConcurrentMap<String, PackBuffer> packBuffers = new ConcurrentHashMap<String, PackBuffer>();
+
+    public final static int DEFAULT_TIMEOUT_MS = 10000;
+    public final static long DEFAULT_MIN_HEDGE_DELAY_MS = 1;
+
+    private long readTimeoutMs = 0;
+    private double hedgePercentile = 0;
+    private long minHedgeDelayMs = DEFAULT_MIN_HEDGE_DELAY_MS;
+    private JedisPool replicaPool;
+    private HedgedReader hedgedReader = new HedgedReader();
+
+    private FileInfoCache fileInfoCache = new FileInfoCache();
+    private boolean prefetchSegmentMetadata = false;
+    /* files of the last listing, by segment; consumed by metadata prefetches */
+    private volatile ConcurrentMap<String, List<String>> listedSegmentFiles = new ConcurrentHashMap<String, List<String>>(
+            16);
+    private long slowOpThresholdMs = 0;
+
+    public final static int DEFAULT_IO_CONCURRENCY = 8;
+
+    private int ioConcurrency = DEFAULT_IO_CONCURRENCY;
+    private volatile IoExecutor ioExecutor;
+
+    private boolean coalesceReads = true;
+    private BlockLoader blockLoader = new BlockLoader(new BlockLoader.Fetcher() {
+        @Override
+        public List<byte[]> fetch(List<String> keys) throws IOException {
+            final byte[][] FIELDS = new byte[keys.size()][];
+            for (int i = 0; i < FIELDS.length; i++) {
+                FIELDS[i] = keys.get(i).getBytes();
+            }
+            return read(new HedgedReader.Command<List<byte[]>>() {
+                @Override
+                public List<byte[]> execute(Jedis jedis) {
+                    return FIELDS.length == 1 ? Arrays.asList(jedis.hget(hashFileData, FIELDS[0]))
+                            : jedis.hmget(hashFileData, FIELDS);
+                }
+
+                @Override
+                public boolean isComplete(List<byte[]> result) {
+                    return !result.contains(null);
+                }
+            });
+        }
+    }, DEFAULT_IO_CONCURRENCY);
+
+    private boolean coalesceWrites = true;
+    private WriteCoalescer writeCoalescer = new WriteCoalescer(new WriteCoalescer.Writer() {
+        @Override
+        public void write(List<WriteCoalescer.Op> ops) {
+            hsetAll(ops);
+        }
+    }, DEFAULT_IO_CONCURRENCY);
+
+    public final static int DEFAULT_WRITE_BUFFER_POOL_SIZE = 64;
+
+    private BufferPool writeBufferPool = new BufferPool(BLOCK_SIZE, DEFAULT_WRITE_BUFFER_POOL_SIZE);
+
+    private boolean connectionAffinity = false;
+    private long connectionIdleMs = ConnectionAffinity.DEFAULT_IDLE_MS;
+    private volatile ConnectionAffinity affinity;
+
+    private ScheduledExecutorService lockHeartbeat;
+
+    private boolean publishCommits = false;
+    private String commitChannel;
+
+    private TierStore tierStore;
+    private AccessTracker accessTracker = new AccessTracker();
 
     private String redisHost = "localhost";
     private int redisPort = 6379;
     private String redisPassword;
+    private int timeoutMs = DEFAULT_TIMEOUT_MS;
     private JedisPool jedisPool;
     private boolean myOwnPool = false;
 
     /*----------------------------------------------------------------------*/
     public RedisDirectory(String redisHost, int redisPort, String redisPassword) {
+        this(redisHost, redisPort, redisPassword, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * 
+     * @param redisHost
+     * @param redisPort
+     * @param redisPassword
+     * @param timeoutMs
+     *            connection and socket timeout of the directory's own pool
+     * @since 0.1.3
+     */
+    public RedisDirectory(String redisHost, int redisPort, String redisPassword, int timeoutMs) {
         super(RedisLockFactory.INSTANCE);
         this.redisHost = redisHost;
         this.redisPort = redisPort;
         this.redisPassword = redisPassword;
+        this.timeoutMs = timeoutMs;
+        init();
+    }
+
+    /**
+     * Creates a {@link RedisDirectory} on top of an existing {@link JedisPool}.
+     * The pool is not destroyed by {@link #destroy()}.
+     * 
+     * @param jedisPool
+     * @since 0.1.3
+     */
+    public RedisDirectory(JedisPool jedisPool) {
+        super(RedisLockFactory.INSTANCE);
+        this.jedisPool = jedisPool;
+        this.myOwnPool = false;
         init();
     }
 
@@ -73,6 +312,9 @@ public class RedisDirectory extends BaseDirectory {
 
     public RedisDirectory setHashFileData(String hashFileData) {
         this.hashFileData = hashFileData.getBytes();
+        if (!hashBlockRefsSet) {
+            this.hashBlockRefs = defaultHashBlockRefs(hashFileData).getBytes();
+        }
         return this;
     }
 
@@ -90,218 +332,1799 @@ public class RedisDirectory extends BaseDirectory {
         return this;
     }
 
-    public String getRedisHost() {
-        return redisHost;
+    /**
+     * Name of Redis hash to store reference counts of content-addressed
+     * blocks and packs of the file data hash. Defaults to
+     * {@code <file data hash>:}{@value #DEFAULT_HASH_BLOCK_REFS}, so that
+     * namespaces with different file data hashes never add up counts of the
+     * same block.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public String getHashBlockRefs() {
+        return new String(hashBlockRefs);
     }
 
-    public RedisDirectory setRedisHost(String redisHost) {
-        this.redisHost = redisHost;
+    /**
+     * Must be used with only one file data hash: counts are per block key,
+     * not per file data hash.
+     * 
+     * @param hashBlockRefs
+     * @return
+     * @since 0.1.3
+     */
+    public RedisDirectory setHashBlockRefs(String hashBlockRefs) {
+        this.hashBlockRefs = hashBlockRefs.getBytes();
+        this.hashBlockRefsSet = true;
         return this;
     }
 
-    public int getRedisPort() {
-        return redisPort;
+    /**
+     * Default name of the block reference hash of a file data hash.
+     * 
+     * @param hashFileData
+     * @return
+     * @since 0.1.3
+     */
+    public static String defaultHashBlockRefs(String hashFileData) {
+        return hashFileData + ":" + DEFAULT_HASH_BLOCK_REFS;
     }
 
-    public RedisDirectory setRedisPort(int redisPort) {
-        this.redisPort = redisPort;
+    /**
+     * Name of Redis hash where ids of files are registered (with a timestamp
+     * and the file data hash they write to) before their blocks are written,
+     * and unregistered once their metadata is final: files being created,
+     * copied or promoted may have blocks in the file data hash before their
+     * metadata is visible, {@link BlockGarbageCollector} does not remove them.
+     * Content-addressed files also record here each block reference they
+     * acquire ({@code id:blockNum} fields), until their block list is
+     * written. Registrations left by crashed writers are removed by the
+     * collector, which also releases their recorded block references.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public String getHashPendingFiles() {
+        return new String(hashPendingFiles);
+    }
+
+    /**
+     * 
+     * @param hashPendingFiles
+     * @return
+     * @since 0.1.3
+     */
+    public RedisDirectory setHashPendingFiles(String hashPendingFiles) {
+        this.hashPendingFiles = hashPendingFiles.getBytes();
         return this;
     }
 
-    public String getRedisPassword() {
-        return redisPassword;
+    /**
+     * Are newly created files stored as content-addressed blocks?
+     * 
+     * <p>
+     * In content-addressed mode, blocks are keyed by the hash of their content
+     * and reference-counted, so identical blocks (across files and across
+     * directories sharing the same file data hash) are stored only once.
+     * Existing files keep the layout they were written with.
+     * </p>
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public boolean isContentAddressed() {
+        return contentAddressed;
     }
 
-    public RedisDirectory setRedisPassword(String redisPassword) {
-        this.redisPassword = redisPassword;
+    /**
+     * 
+     * @param contentAddressed
+     * @return
+     * @since 0.1.3
+     */
+    public RedisDirectory setContentAddressed(boolean contentAddressed) {
+        this.contentAddressed = contentAddressed;
         return this;
     }
 
-    public JedisPool getJedisPool() {
-        return jedisPool;
+    /**
+     * Number of blocks fetched per round-trip by sequential (merge, read-once)
+     * inputs.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public int getSequentialReadAheadBlocks() {
+        return sequentialReadAheadBlocks;
     }
 
-    public RedisDirectory setJedisPool(JedisPool jedisPool) {
-        if (this.jedisPool == null || this.jedisPool == jedisPool) {
-            myOwnPool = false;
-            this.jedisPool = jedisPool;
-        } else {
-            throw new IllegalStateException("My own pool has been initialized!");
-        }
+    public RedisDirectory setSequentialReadAheadBlocks(int sequentialReadAheadBlocks) {
+        this.sequentialReadAheadBlocks = Math.max(1, sequentialReadAheadBlocks);
         return this;
     }
 
-    /*----------------------------------------------------------------------*/
-    private String keyDataBlock(FileInfo fileInfo, int blockNum) {
-        return fileInfo.id() + ":" + blockNum;
+    /**
+     * Files with one of these extensions and not bigger than
+     * {@link #getPinMaxBytes()} are loaded whole by
+     * {@link #openInput(String, IOContext)} (one round-trip) and served from
+     * memory for the life of the input.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public Set<String> getPinExtensions() {
+        return pinExtensions;
     }
 
-    private String keyFileInfo(FileInfo fileInfo) {
-        return fileInfo.name();
+    public RedisDirectory setPinExtensions(Collection<String> pinExtensions) {
+        this.pinExtensions = Collections.unmodifiableSet(new HashSet<String>(pinExtensions));
+        return this;
     }
 
-    private String keyFileInfo(String fileName) {
-        return fileName;
+    /**
+     * Max size of files loaded whole and pinned by
+     * {@link #openInput(String, IOContext)} ({@code 0}: disabled), see
+     * {@link #getPinExtensions()}.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public long getPinMaxBytes() {
+        return pinMaxBytes;
     }
 
-    /*----------------------------------------------------------------------*/
-    public void init() {
-        if (jedisPool == null) {
-            myOwnPool = true;
-            JedisPoolConfig poolConfig = new JedisPoolConfig();
-            poolConfig.setMaxTotal(Math.min(Runtime.getRuntime().availableProcessors(), 8));
-            jedisPool = new JedisPool(poolConfig, redisHost, redisPort, 10000, redisPassword);
-        }
+    public RedisDirectory setPinMaxBytes(long pinMaxBytes) {
+        this.pinMaxBytes = Math.max(0, pinMaxBytes);
+        return this;
     }
 
-    public void destroy() {
-        if (myOwnPool && jedisPool != null) {
-            jedisPool.destroy();
-        }
+    /**
+     * Number of blocks written per round-trip by flush and merge outputs.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public int getBulkWriteBatchBlocks() {
+        return bulkWriteBatchBlocks;
     }
 
-    private Jedis getJedis() {
-        return jedisPool.getResource();
+    public RedisDirectory setBulkWriteBatchBlocks(int bulkWriteBatchBlocks) {
+        this.bulkWriteBatchBlocks = Math.max(1, bulkWriteBatchBlocks);
+        return this;
     }
 
     /**
-     * Loads a file's block data from storage.
+     * Rate limiter applied to block writes of outputs created with an
+     * {@link IOContext} of a context.
      * 
-     * @param fileInfo
-     * @param blockNum
-     * @return {@code null} if file and/or block does not exist, otherwise a
-     *         {@code byte[]} with minimum {@link #BLOCK_SIZE} length is
-     *         returned
+     * @param context
+     * @return {@code null} if writes are not rate-limited
+     * @since 0.1.3
      */
-    private byte[] readFileBlock(FileInfo fileInfo, int blockNum) {
-        final String KEY = keyDataBlock(fileInfo, blockNum);
-        try (Jedis jedis = getJedis()) {
-            byte[] dataArr = jedis.hget(hashFileData, KEY.getBytes());
-            return dataArr != null
-                    ? (dataArr.length >= BLOCK_SIZE ? dataArr : Arrays.copyOf(dataArr, BLOCK_SIZE))
-                    : null;
-        }
+    public RateLimiter getRateLimiter(IOContext.Context context) {
+        return rateLimiters.get(context);
     }
 
     /**
-     * Write a file's block data to storage.
+     * Sets rate limiter of block writes of outputs created with an
+     * {@link IOContext} of a context, e.g. {@code MERGE}. An
+     * {@link AdaptiveRateLimiter} also adapts its rate to the observed write
+     * latency.
      * 
-     * @param fileInfo
-     * @param blockNum
-     * @param data
+     * <p>
+     * Note: this limits block writes to Redis, independently from the
+     * {@code MergeRateLimiter} of Lucene's {@code ConcurrentMergeScheduler}.
+     * A limiter may be shared by several contexts and directories.
+     * </p>
+     * 
+     * @param context
+     * @param rateLimiter
+     *            {@code null} to disable rate limiting
+     * @return
+     * @since 0.1.3
      */
-    private void writeFileBlock(FileInfo fileInfo, int blockNum, byte[] data) {
-        final String KEY = keyDataBlock(fileInfo, blockNum);
-        try (Jedis jedis = getJedis()) {
-            jedis.hset(hashFileData, KEY.getBytes(), data);
+    public RedisDirectory setRateLimiter(IOContext.Context context, RateLimiter rateLimiter) {
+        if (rateLimiter != null) {
+            rateLimiters.put(context, rateLimiter);
+        } else {
+            rateLimiters.remove(context);
         }
+        return this;
     }
 
     /**
-     * Gets a file's metadata info.
+     * Capacity (in number of blocks) of the in-memory block cache ({@code 0}:
+     * cache is disabled).
      * 
-     * @param filename
      * @return
+     * @since 0.1.3
      */
-    private FileInfo getFileInfo(String filename) {
-        final String KEY = keyFileInfo(filename);
-        try (Jedis jedis = getJedis()) {
-            byte[] dataArr = jedis.hget(hashDirectoryMetadata, KEY.getBytes());
-            return FileInfo.newInstance(dataArr);
-        }
+    public int getBlockCacheSize() {
+        BlockCache cache = blockCache;
+        return cache != null ? cache.getCapacity() : 0;
     }
 
-    private FileInfo[] getAllFileInfo() {
-        try (Jedis jedis = getJedis()) {
-            List<FileInfo> result = new ArrayList<FileInfo>();
-            Map<byte[], byte[]> allFileMap = jedis.hgetAll(hashDirectoryMetadata);
-            if (allFileMap != null) {
-                for (Entry<byte[], byte[]> entry : allFileMap.entrySet()) {
-                    byte[] data = entry.getValue();
-                    FileInfo fileInfo = FileInfo.newInstance(data);
-                    if (fileInfo != null) {
-                        result.add(fileInfo);
-                    }
-                }
-            }
-            return result != null ? result.toArray(FileInfo.EMPTY_ARRAY) : FileInfo.EMPTY_ARRAY;
-        }
+    /**
+     * Sets capacity (in number of blocks) of the in-memory block cache, current
+     * cached blocks are discarded.
+     * 
+     * @param numBlocks
+     *            {@code 0} to disable the cache
+     * @return
+     * @since 0.1.3
+     */
+    public RedisDirectory setBlockCacheSize(int numBlocks) {
+        blockCache = numBlocks > 0 ? new BlockCache(numBlocks) : null;
+        return this;
     }
 
     /**
-     * Updates a file's metadata.
+     * The in-memory block cache.
      * 
-     * @param fileInfo
-     * @return
+     * @return {@code null} if cache is disabled
+     * @since 0.1.3
      */
-    private FileInfo updateFileInfo(FileInfo fileInfo) {
-        if (LOGGER.isTraceEnabled()) {
-            String logMsg = "updateFile(" + fileInfo.name() + "/" + fileInfo.id() + "/"
-                    + fileInfo.size() + ") is called";
-            LOGGER.trace(logMsg);
-        }
-        final String KEY = keyFileInfo(fileInfo);
-        try (Jedis jedis = getJedis()) {
-            jedis.hset(hashDirectoryMetadata, KEY.getBytes(), fileInfo.asBytes());
-            return fileInfo;
-        }
+    public BlockCache getBlockCache() {
+        return blockCache;
     }
 
     /**
-     * {@inheritDoc}
+     * Segment files not larger than this size (in bytes) are packed: their
+     * content is stored in a pack shared by small files of the same segment,
+     * so the segment's small files are loaded with one fetch ({@code 0}:
+     * packing is disabled).
+     * 
+     * <p>
+     * Only files that belong to a segment (e.g. {@code _0.si},
+     * {@code _0.fnm}) are packed; a pack is removed when all files packed in
+     * it have been removed. Existing files keep the layout they were written
+     * with.
+     * </p>
+     * 
+     * <p>
+     * Closed small files are buffered in memory, and each pack is written
+     * once: when one of the segment's files is looked up, listed, prefetched
+     * or synced, or when {@link #PACK_BUFFER_MAX_BYTES} are buffered.
+     * Buffered files are lost if the process dies, like any file not synced
+     * yet.
+     * </p>
+     * 
+     * @return
+     * @since 0.1.3
      */
-    @Override
-    public void close() throws IOException {
-        destroy();
+    public int getPackThreshold() {
+        return packThreshold;
     }
 
     /**
-     * {@inheritDoc}
+     * 
+     * @param packThreshold
+     *            max size in bytes of packed files, must not exceed
+     *            {@link #BLOCK_SIZE}; {@code 0} to disable packing
+     * @return
+     * @since 0.1.3
      */
-    @Override
-    public IndexOutput createOutput(String name, IOContext ioContext) throws IOException {
-        FileInfo fileInfo = getFileInfo(name);
-        if (fileInfo == null) {
-            fileInfo = FileInfo.newInstance(name);
-            updateFileInfo(fileInfo);
-        }
-        return new RedisIndexOutput(fileInfo);
+    public RedisDirectory setPackThreshold(int packThreshold) {
+        this.packThreshold = Math.max(0, Math.min(packThreshold, BLOCK_SIZE));
+        return this;
     }
 
     /**
-     * {@inheritDoc}
+     * Capacity (in number of packs) of the in-memory pack cache ({@code 0}:
+     * cache is disabled).
+     * 
+     * @return
+     * @since 0.1.3
      */
-    @Override
-    public IndexInput openInput(String name, IOContext ioContext) throws IOException {
-        FileInfo fileInfo = getFileInfo(name);
-        if (fileInfo == null) {
-            throw new FileNotFoundException("File [" + name + "] not found!");
-        }
-        return new RedisIndexInput(this, fileInfo);
+    public int getPackCacheSize() {
+        BlockCache cache = packCache;
+        return cache != null ? cache.getCapacity() : 0;
     }
 
     /**
-     * {@inheritDoc}
+     * 
+     * @param numPacks
+     *            {@code 0} to disable the cache
+     * @return
+     * @since 0.1.3
      */
-    @Override
-    public void deleteFile(String name) throws IOException {
-        FileInfo fileInfo = getFileInfo(name);
-        if (fileInfo != null) {
-            if (LOGGER.isTraceEnabled()) {
-                final String logMsg = "deleteFile(" + name + "/" + fileInfo.id() + ") is called";
-                LOGGER.trace(logMsg);
-            }
-            try (Jedis jedis = getJedis()) {
-                final String KEY_METADATA = keyFileInfo(fileInfo);
-                jedis.hdel(hashDirectoryMetadata, KEY_METADATA.getBytes());
+    public RedisDirectory setPackCacheSize(int numPacks) {
+        packCache = numPacks > 0 ? new BlockCache(numPacks) : null;
+        return this;
+    }
 
-                long size = fileInfo.size();
-                long numBlocks = (size / BLOCK_SIZE) + (size % BLOCK_SIZE != 0 ? 1 : 0);
-                for (int i = 0; i < numBlocks; i++) {
-                    final String KEY_DATABLOCK = keyDataBlock(fileInfo, i);
-                    jedis.hdel(hashFileData, KEY_DATABLOCK.getBytes());
+    /**
+     * Deadline of block reads, in milliseconds ({@code 0}: reads are only
+     * bounded by the socket timeout).
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public long getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    public RedisDirectory setReadTimeoutMs(long readTimeoutMs) {
+        this.readTimeoutMs = Math.max(0, readTimeoutMs);
+        return this;
+    }
+
+    /**
+     * Hedged block reads: if a read has not completed after this percentile of
+     * recent read latencies (e.g. {@code 0.95}), a second read is sent to the
+     * replica pool (or through another connection of the main pool), and the
+     * first response wins ({@code 0}: hedging is disabled).
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public RedisDirectory setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = Math.max(0, Math.min(hedgePercentile, 1));
+        return this;
+    }
+
+    /**
+     * Lower bound of the hedging delay, in milliseconds.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public long getMinHedgeDelayMs() {
+        return minHedgeDelayMs;
+    }
+
+    public RedisDirectory setMinHedgeDelayMs(long minHedgeDelayMs) {
+        this.minHedgeDelayMs = Math.max(0, minHedgeDelayMs);
+        return this;
+    }
+
+    /**
+     * Pool of a replica of the Redis server, used by hedged reads. The pool is
+     * not destroyed by {@link #destroy()}.
+     * 
+     * @return {@code null} if hedged reads use the main pool
+     * @since 0.1.3
+     */
+    public JedisPool getReplicaPool() {
+        return replicaPool;
+    }
+
+    public RedisDirectory setReplicaPool(JedisPool replicaPool) {
+        this.replicaPool = replicaPool;
+        return this;
+    }
+
+    /**
+     * Executor of deadline-bounded and hedged reads, exposing read latencies
+     * and hedging statistics.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public HedgedReader getHedgedReader() {
+        return hedgedReader;
+    }
+
+    /**
+     * Names found missing are remembered for this long, so repeated existence
+     * probes (e.g. {@code fileLength}, {@code openInput},
+     * {@code createOutput}'s existence check) skip Redis ({@code 0}:
+     * disabled).
+     * 
+     * <p>
+     * Files created by other instances may be reported missing up to this
+     * long after their creation: keep it short if other processes write to
+     * the same directory.
+     * </p>
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public long getNegativeCacheTtlMs() {
+        return fileInfoCache.getNegativeTtlMs();
+    }
+
+    public RedisDirectory setNegativeCacheTtlMs(long negativeCacheTtlMs) {
+        fileInfoCache.setNegativeTtlMs(negativeCacheTtlMs);
+        return this;
+    }
+
+    /**
+     * Is metadata of files created by this instance served from memory until
+     * they are deleted or renamed by this instance? Safe as long as no other
+     * instance modifies these files (Lucene files are write-once, and the
+     * index writer is protected by the write lock).
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public boolean isTrackCreatedFiles() {
+        return fileInfoCache.isTrackCreated();
+    }
+
+    public RedisDirectory setTrackCreatedFiles(boolean trackCreatedFiles) {
+        fileInfoCache.setTrackCreated(trackCreatedFiles);
+        return this;
+    }
+
+    /**
+     * Metadata fetched in batch (see {@link #prefetchFileInfos(Collection)})
+     * is served from memory for this long ({@code 0}: disabled, default).
+     * 
+     * <p>
+     * Metadata changed by other processes may be served stale up to this long
+     * after the change: keep it short if other processes write to the same
+     * directory.
+     * </p>
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public long getMetadataPrefetchTtlMs() {
+        return fileInfoCache.getPrefetchTtlMs();
+    }
+
+    public RedisDirectory setMetadataPrefetchTtlMs(long metadataPrefetchTtlMs) {
+        fileInfoCache.setPrefetchTtlMs(metadataPrefetchTtlMs);
+        return this;
+    }
+
+    /**
+     * When metadata of a segment file is looked up the first time after
+     * {@link #listAll()}, is metadata of all listed files of that segment
+     * fetched at once (one round trip instead of one per file when a reader
+     * opens the segment)? Disabled by default; also requires
+     * {@link #setMetadataPrefetchTtlMs(long)}.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public boolean isPrefetchSegmentMetadata() {
+        return prefetchSegmentMetadata;
+    }
+
+    public RedisDirectory setPrefetchSegmentMetadata(boolean prefetchSegmentMetadata) {
+        this.prefetchSegmentMetadata = prefetchSegmentMetadata;
+        return this;
+    }
+
+    /**
+     * Local cache of file existence, see {@link #setNegativeCacheTtlMs(long)},
+     * {@link #setTrackCreatedFiles(boolean)} and
+     * {@link #setMetadataPrefetchTtlMs(long)}.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public FileInfoCache getFileInfoCache() {
+        return fileInfoCache;
+    }
+
+    /**
+     * Block reads taking at least this long are logged (at {@code WARN}
+     * level, logger {@code com.github.ddth.com.redir.RedisDirectory.slow})
+     * with file name, block number(s) and latency ({@code 0}: disabled).
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public long getSlowOpThresholdMs() {
+        return slowOpThresholdMs;
+    }
+
+    public RedisDirectory setSlowOpThresholdMs(long slowOpThresholdMs) {
+        this.slowOpThresholdMs = Math.max(0, slowOpThresholdMs);
+        return this;
+    }
+
+    /**
+     * Storage tier cold files are demoted to, see {@link #demoteFile(String)}
+     * ({@code null}: tiering disabled). Must be set on every instance reading
+     * the directory.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public TierStore getTierStore() {
+        return tierStore;
+    }
+
+    public RedisDirectory setTierStore(TierStore tierStore) {
+        this.tierStore = tierStore;
+        return this;
+    }
+
+    /**
+     * Access statistics of segments read through this instance (used by
+     * {@link TieringPolicy}).
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public AccessTracker getAccessTracker() {
+        return accessTracker;
+    }
+
+    /**
+     * Is a commit event published (see {@link #getCommitChannel()}) each time
+     * a {@code segments_N} file is renamed into place, copied or written?
+     * Subscribe with {@link CommitSubscriber}.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public boolean isPublishCommits() {
+        return publishCommits;
+    }
+
+    public RedisDirectory setPublishCommits(boolean publishCommits) {
+        this.publishCommits = publishCommits;
+        return this;
+    }
+
+    /**
+     * Redis pub/sub channel commit events are published to (default: name of
+     * the metadata hash, suffixed by {@code :commits}).
+     * 
+     * <p>
+     * A commit event is the {@code segments_N} file name followed by the
+     * names of the files referenced by the commit, separated by {@code \n}.
+     * </p>
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public String getCommitChannel() {
+        return commitChannel != null ? commitChannel : getHashDirectoryMetadata() + ":commits";
+    }
+
+    public RedisDirectory setCommitChannel(String commitChannel) {
+        this.commitChannel = commitChannel;
+        return this;
+    }
+
+    /**
+     * Are concurrent loads of the same block (or pack) coalesced into one
+     * fetch, and loads of different blocks issued while
+     * {@link #getIoConcurrency()} fetches are in flight combined into one
+     * {@code HMGET}? See {@link #getBlockLoader()}.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public boolean isCoalesceReads() {
+        return coalesceReads;
+    }
+
+    public RedisDirectory setCoalesceReads(boolean coalesceReads) {
+        this.coalesceReads = coalesceReads;
+        return this;
+    }
+
+    /**
+     * Loader of single blocks and packs if {@link #isCoalesceReads()}.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public BlockLoader getBlockLoader() {
+        return blockLoader;
+    }
+
+    /**
+     * Are block and metadata writes of concurrent outputs grouped into shared
+     * pipelined batches? At most {@link #getIoConcurrency()} batches are in
+     * flight; see {@link #getWriteCoalescer()} for batch size and time
+     * window.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public boolean isCoalesceWrites() {
+        return coalesceWrites;
+    }
+
+    public RedisDirectory setCoalesceWrites(boolean coalesceWrites) {
+        this.coalesceWrites = coalesceWrites;
+        return this;
+    }
+
+    /**
+     * Group-commit writer used if {@link #isCoalesceWrites()}.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public WriteCoalescer getWriteCoalescer() {
+        return writeCoalescer;
+    }
+
+    /**
+     * Max number of idle block buffers kept for reuse by index outputs
+     * ({@code 0}: a new buffer is allocated for each block written). Each
+     * buffer is {@link #BLOCK_SIZE} bytes.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public int getWriteBufferPoolSize() {
+        return writeBufferPool.getMaxBuffers();
+    }
+
+    public RedisDirectory setWriteBufferPoolSize(int writeBufferPoolSize) {
+        writeBufferPool.setMaxBuffers(writeBufferPoolSize);
+        return this;
+    }
+
+    /**
+     * Pool of block buffers of index outputs, see
+     * {@link #setWriteBufferPoolSize(int)}.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public BufferPool getWriteBufferPool() {
+        return writeBufferPool;
+    }
+
+    /**
+     * Does each thread keep its Redis connection between uses (returned to
+     * the pool after {@link #getConnectionIdleMs()} of inactivity)?
+     * Sequential streams then read and write all their blocks through one
+     * connection instead of borrowing one from the pool for each block.
+     * 
+     * <p>
+     * Up to one connection per active thread is kept. Idle kept connections
+     * are given back when the pool runs out, but a thread may then wait for
+     * up to {@link ConnectionAffinity#WAITERS_CHECK_MS} ms: the pool should be
+     * sized for the number of threads using the directory (including the
+     * {@link #setIoConcurrency(int) I/O threads}).
+     * </p>
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public boolean isConnectionAffinity() {
+        return connectionAffinity;
+    }
+
+    public RedisDirectory setConnectionAffinity(boolean connectionAffinity) {
+        this.connectionAffinity = connectionAffinity;
+        if (!connectionAffinity) {
+            closeConnectionAffinity();
+        }
+        return this;
+    }
+
+    /**
+     * See {@link #setConnectionAffinity(boolean)}.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public long getConnectionIdleMs() {
+        return connectionIdleMs;
+    }
+
+    public RedisDirectory setConnectionIdleMs(long connectionIdleMs) {
+        this.connectionIdleMs = Math.max(0, connectionIdleMs);
+        ConnectionAffinity affinity = this.affinity;
+        if (affinity != null) {
+            affinity.setIdleMs(this.connectionIdleMs);
+        }
+        return this;
+    }
+
+    /**
+     * Connections kept by threads, see {@link #setConnectionAffinity(boolean)}.
+     * 
+     * @return {@code null} if connection affinity is disabled or not used yet
+     * @since 0.1.3
+     */
+    public ConnectionAffinity getConnectionAffinity() {
+        return affinity;
+    }
+
+    synchronized private ConnectionAffinity connectionAffinity() {
+        if (affinity == null) {
+            affinity = new ConnectionAffinity(jedisPool).setIdleMs(connectionIdleMs);
+        }
+        return affinity;
+    }
+
+    synchronized private void closeConnectionAffinity() {
+        if (affinity != null) {
+            affinity.close();
+            affinity = null;
+        }
+    }
+
+    /**
+     * Max number of concurrent Redis requests of batch operations (file
+     * copy/delete/prefetch, snapshot, export/import), should not exceed the
+     * size of the connection pool.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public int getIoConcurrency() {
+        return ioConcurrency;
+    }
+
+    /**
+     * Can be changed while the directory is in use: operations in progress
+     * complete on the previous executor, which is shut down afterwards.
+     * 
+     * @param ioConcurrency
+     * @return
+     * @since 0.1.3
+     */
+    synchronized public RedisDirectory setIoConcurrency(int ioConcurrency) {
+        this.ioConcurrency = Math.max(1, ioConcurrency);
+        blockLoader.setMaxConcurrency(this.ioConcurrency);
+        writeCoalescer.setMaxConcurrency(this.ioConcurrency);
+        IoExecutor oldExecutor = ioExecutor;
+        if (oldExecutor != null) {
+            ioExecutor = new IoExecutor("redir-io-" + getHashDirectoryMetadata(),
+                    this.ioConcurrency);
+            oldExecutor.shutdown();
+        }
+        return this;
+    }
+
+    /**
+     * The shared executor of concurrent Redis I/O (virtual threads if
+     * supported by the runtime), created on first use.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public IoExecutor getIoExecutor() {
+        IoExecutor ioExecutor = this.ioExecutor;
+        if (ioExecutor == null) {
+            synchronized (this) {
+                if (this.ioExecutor == null) {
+                    this.ioExecutor = new IoExecutor("redir-io-" + getHashDirectoryMetadata(),
+                            ioConcurrency);
+                }
+                ioExecutor = this.ioExecutor;
+            }
+        }
+        return ioExecutor;
+    }
+
+    public String getRedisHost() {
+        return redisHost;
+    }
+
+    public RedisDirectory setRedisHost(String redisHost) {
+        this.redisHost = redisHost;
+        return this;
+    }
+
+    public int getRedisPort() {
+        return redisPort;
+    }
+
+    public RedisDirectory setRedisPort(int redisPort) {
+        this.redisPort = redisPort;
+        return this;
+    }
+
+    public String getRedisPassword() {
+        return redisPassword;
+    }
+
+    public RedisDirectory setRedisPassword(String redisPassword) {
+        this.redisPassword = redisPassword;
+        return this;
+    }
+
+    public JedisPool getJedisPool() {
+        return jedisPool;
+    }
+
+    public RedisDirectory setJedisPool(JedisPool jedisPool) {
+        if (this.jedisPool == null || this.jedisPool == jedisPool) {
+            myOwnPool = false;
+            this.jedisPool = jedisPool;
+        } else {
+            throw new IllegalStateException("My own pool has been initialized!");
+        }
+        return this;
+    }
+
+    /*----------------------------------------------------------------------*/
+    private String keyDataBlock(FileInfo fileInfo, int blockNum) {
+        if (fileInfo.isContentAddressed()) {
+            String hash = fileInfo.blockHash(blockNum);
+            return hash != null ? keyContentBlock(hash) : null;
+        }
+        return fileInfo.id() + ":" + blockNum;
+    }
+
+    /**
+     * Binary encoding of {@link #keyDataBlock(FileInfo, int)} for
+     * non-content-addressed files, built from a pre-encoded prefix (see
+     * {@link #keyDataBlockPrefix(FileInfo)}) without intermediate strings.
+     * 
+     * @param prefix
+     * @param blockNum
+     * @return
+     * @since 0.1.3
+     */
+    private static byte[] keyDataBlock(byte[] prefix, int blockNum) {
+        int numDigits = 1;
+        for (int v = blockNum; v >= 10; v /= 10) {
+            numDigits++;
+        }
+        byte[] key = Arrays.copyOf(prefix, prefix.length + numDigits);
+        for (int i = key.length - 1, v = blockNum; i >= prefix.length; i--, v /= 10) {
+            key[i] = (byte) ('0' + v % 10);
+        }
+        return key;
+    }
+
+    private static byte[] keyDataBlockPrefix(FileInfo fileInfo) {
+        return (fileInfo.id() + ":").getBytes();
+    }
+
+    /**
+     * Calculates number of blocks of a file.
+     * 
+     * @param size
+     * @return
+     * @since 0.1.3
+     */
+    static int numBlocks(long size) {
+        return (int) ((size / BLOCK_SIZE) + (size % BLOCK_SIZE != 0 ? 1 : 0));
+    }
+
+    private String keyContentBlock(String hash) {
+        return CONTENT_BLOCK_PREFIX + hash;
+    }
+
+    /**
+     * Generates a new pack key for a segment. Pack keys are never reused: a
+     * pack is written once, and never changes until it is removed.
+     * 
+     * @param segmentName
+     * @return
+     * @since 0.1.3
+     */
+    private String newKeyPack(String segmentName) {
+        return PACK_PREFIX + segmentName + ":" + FileInfo.ID_GEN.generateId128Hex().toLowerCase();
+    }
+
+    private String keyFileInfo(FileInfo fileInfo) {
+        return fileInfo.name();
+    }
+
+    private String keyFileInfo(String fileName) {
+        return fileName;
+    }
+
+    /*----------------------------------------------------------------------*/
+    public void init() {
+        if (jedisPool == null) {
+            myOwnPool = true;
+            JedisPoolConfig poolConfig = new JedisPoolConfig();
+            poolConfig.setMaxTotal(Math.min(Runtime.getRuntime().availableProcessors(), 8));
+            ioConcurrency = poolConfig.getMaxTotal();
+            blockLoader.setMaxConcurrency(ioConcurrency);
+            writeCoalescer.setMaxConcurrency(ioConcurrency);
+            jedisPool = new JedisPool(poolConfig, redisHost, redisPort, timeoutMs, redisPassword);
+        }
+    }
+
+    public void destroy() {
+        try {
+            flushPacks();
+        } catch (Exception e) {
+            LOGGER.warn("Cannot write buffered small files: " + e.getMessage(), e);
+        }
+        synchronized (this) {
+            if (ioExecutor != null) {
+                ioExecutor.shutdown();
+                ioExecutor = null;
+            }
+        }
+        hedgedReader.shutdown();
+        closeConnectionAffinity();
+        synchronized (this) {
+            if (lockHeartbeat != null) {
+                lockHeartbeat.shutdownNow();
+                lockHeartbeat = null;
+            }
+        }
+        if (myOwnPool && jedisPool != null) {
+            jedisPool.destroy();
+        }
+    }
+
+    Jedis getJedis() {
+        if (connectionAffinity) {
+            ConnectionAffinity affinity = this.affinity;
+            return (affinity != null ? affinity : connectionAffinity()).acquire();
+        }
+        return jedisPool.getResource();
+    }
+
+    /**
+     * Is it a {@code segments_N} file (pending commits excluded)?
+     * 
+     * @param name
+     * @return
+     * @since 0.1.3
+     */
+    static boolean isSegmentsFile(String name) {
+        return name.startsWith(IndexFileNames.SEGMENTS + "_");
+    }
+
+    /**
+     * Publishes a commit event if {@link #isPublishCommits()} and
+     * {@code name} is a {@code segments_N} file. Failures are logged, not
+     * thrown: the commit itself has succeeded.
+     * 
+     * @param name
+     * @since 0.1.3
+     */
+    private void publishCommit(String name) {
+        if (!publishCommits || !isSegmentsFile(name)) {
+            return;
+        }
+        try {
+            Collection<String> files = SegmentInfos.readCommit(this, name).files(false);
+            StringBuilder msg = new StringBuilder(name);
+            for (String file : files) {
+                msg.append('\n').append(file);
+            }
+            try (Jedis jedis = getJedis()) {
+                jedis.publish(getCommitChannel().getBytes(),
+                        msg.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Cannot publish commit [" + name + "]: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Executes a data read command, bounded by {@link #getReadTimeoutMs()}
+     * and hedged if {@link #getHedgePercentile()} is set.
+     * 
+     * @param command
+     * @return
+     * @throws IOException
+     * @since 0.1.3
+     */
+    private <T> T read(HedgedReader.Command<T> command) throws IOException {
+        if (readTimeoutMs <= 0 && hedgePercentile <= 0) {
+            try (Jedis jedis = getJedis()) {
+                return command.execute(jedis);
+            }
+        }
+        return hedgedReader.execute(jedisPool, replicaPool != null ? replicaPool : jedisPool,
+                command, hedgePercentile, minHedgeDelayMs, readTimeoutMs);
+    }
+
+    /**
+     * Accounts a fetch from Redis to the current {@link IoStats}, and logs it
+     * if slow.
+     * 
+     * @param fileInfo
+     * @param firstBlockNum
+     * @param numBlocks
+     * @param numBytes
+     * @param startNanos
+     * @since 0.1.3
+     */
+    private void recordFetch(FileInfo fileInfo, int firstBlockNum, int numBlocks, long numBytes,
+            long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        IoStats stats = IoStats.current();
+        if (stats != null) {
+            stats.recordFetch(fileInfo.name(), numBlocks, numBytes, nanos);
+        }
+        if (slowOpThresholdMs > 0 && nanos >= slowOpThresholdMs * 1000000L) {
+            SLOW_LOGGER.warn("Slow read [" + fileInfo.name() + "/" + fileInfo.id() + "], blocks ["
+                    + firstBlockNum + "+" + numBlocks + "], " + numBytes + " bytes in "
+                    + nanos / 1000000.0 + " ms");
+        }
+    }
+
+    private static void recordCacheHits(int numBlocks) {
+        IoStats stats = IoStats.current();
+        if (stats != null && numBlocks > 0) {
+            stats.recordCacheHits(numBlocks);
+        }
+    }
+
+    /**
+     * Loads a block (or pack) from storage, through the {@link BlockLoader}
+     * if {@link #isCoalesceReads()}.
+     * 
+     * @param key
+     * @return
+     * @throws IOException
+     * @since 0.1.3
+     */
+    private byte[] loadBlock(final String key) throws IOException {
+        if (coalesceReads) {
+            return blockLoader.load(key);
+        }
+        return read(new HedgedReader.Command<byte[]>() {
+            @Override
+            public byte[] execute(Jedis jedis) {
+                return jedis.hget(hashFileData, key.getBytes());
+            }
+
+            @Override
+            public boolean isComplete(byte[] result) {
+                return result != null;
+            }
+        });
+    }
+
+    /**
+     * Loads a file's block data from storage.
+     * 
+     * @param fileInfo
+     * @param blockNum
+     * @return {@code null} if file and/or block does not exist, otherwise
+     *         block data as stored (since v0.1.3 the last block of a file may
+     *         be shorter than {@link #BLOCK_SIZE}; blocks are never padded
+     *         nor copied)
+     * @throws IOException
+     */
+    private byte[] readFileBlock(FileInfo fileInfo, int blockNum, boolean cacheInsert)
+            throws IOException {
+        final String KEY = keyDataBlock(fileInfo, blockNum);
+        if (KEY == null) {
+            return null;
+        }
+        BlockCache cache = blockCache;
+        byte[] dataArr = cache != null ? cache.get(KEY) : null;
+        if (dataArr != null) {
+            recordCacheHits(1);
+            return dataArr;
+        }
+        long t = System.nanoTime();
+        dataArr = loadBlock(KEY);
+        recordFetch(fileInfo, blockNum, 1, dataArr != null ? dataArr.length : 0, t);
+        if (cacheInsert && cache != null && dataArr != null) {
+            cache.put(KEY, dataArr);
+        }
+        return dataArr;
+    }
+
+    /**
+     * Loads consecutive blocks of a file from storage with one round-trip.
+     * 
+     * <p>
+     * Blocks found in cache are not fetched.
+     * </p>
+     * 
+     * @param fileInfo
+     * @param firstBlockNum
+     * @param count
+     * @param cacheInsert
+     *            put fetched blocks to cache?
+     * @return loaded blocks, array is trimmed to the file's last block, element
+     *         is {@code null} if block does not exist
+     * @since 0.1.3
+     */
+    private byte[][] readFileBlocks(FileInfo fileInfo, int firstBlockNum, int count,
+            boolean cacheInsert) throws IOException {
+        count = Math.max(0, Math.min(count, numBlocks(fileInfo.size()) - firstBlockNum));
+        byte[][] result = new byte[count][];
+        if (count == 0) {
+            return result;
+        }
+        BlockCache cache = blockCache;
+        String[] keys = new String[count];
+        List<byte[]> missingKeys = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            keys[i] = keyDataBlock(fileInfo, firstBlockNum + i);
+            if (keys[i] != null) {
+                result[i] = cache != null ? cache.get(keys[i]) : null;
+                if (result[i] == null) {
+                    missingKeys.add(keys[i].getBytes());
+                }
+            }
+        }
+        recordCacheHits(count - missingKeys.size());
+        if (missingKeys.size() == 0) {
+            return result;
+        }
+        final byte[][] FIELDS = missingKeys.toArray(new byte[missingKeys.size()][]);
+        long t = System.nanoTime();
+        List<byte[]> dataList = read(new HedgedReader.Command<List<byte[]>>() {
+            @Override
+            public List<byte[]> execute(Jedis jedis) {
+                return jedis.hmget(hashFileData, FIELDS);
+            }
+
+            @Override
+            public boolean isComplete(List<byte[]> result) {
+                return !result.contains(null);
+            }
+        });
+        long numBytes = 0;
+        for (int i = 0, j = 0; i < count; i++) {
+            if (keys[i] == null || result[i] != null) {
+                continue;
+            }
+            result[i] = dataList.get(j++);
+            if (result[i] != null) {
+                numBytes += result[i].length;
+                if (cacheInsert && cache != null) {
+                    cache.put(keys[i], result[i]);
+                }
+            }
+        }
+        recordFetch(fileInfo, firstBlockNum, FIELDS.length, numBytes, t);
+        return result;
+    }
+
+    /**
+     * Writes consecutive blocks of a file and the file's metadata with one
+     * pipelined round-trip, shared with concurrent writes if
+     * {@link #isCoalesceWrites()}.
+     * 
+     * @param fileInfo
+     * @param keyPrefix
+     *            see {@link #keyDataBlockPrefix(FileInfo)}
+     * @param metadataKey
+     *            encoded {@link #keyFileInfo(FileInfo)}
+     * @param firstBlockNum
+     * @param blocks
+     * @throws IOException
+     * @since 0.1.3
+     */
+    private void writeFileBlocks(FileInfo fileInfo, byte[] keyPrefix, byte[] metadataKey,
+            int firstBlockNum, List<byte[]> blocks) throws IOException {
+        List<WriteCoalescer.Op> ops = new ArrayList<WriteCoalescer.Op>(blocks.size() + 1);
+        for (int i = 0, n = blocks.size(); i < n; i++) {
+            ops.add(new WriteCoalescer.Op(hashFileData, keyDataBlock(keyPrefix, firstBlockNum + i),
+                    blocks.get(i)));
+        }
+        ops.add(new WriteCoalescer.Op(hashDirectoryMetadata, metadataKey, fileInfo.asBytes()));
+        write(ops);
+    }
+
+    /**
+     * Executes hash writes, through the {@link WriteCoalescer} if
+     * {@link #isCoalesceWrites()}.
+     * 
+     * @param ops
+     * @throws IOException
+     * @since 0.1.3
+     */
+    private void write(List<WriteCoalescer.Op> ops) throws IOException {
+        if (coalesceWrites) {
+            writeCoalescer.write(ops);
+        } else {
+            hsetAll(ops);
+        }
+    }
+
+    /**
+     * Executes hash writes (and removals, see {@link WriteCoalescer.Op}) with
+     * one pipelined round-trip.
+     * 
+     * @param ops
+     * @since 0.1.3
+     */
+    private void hsetAll(List<WriteCoalescer.Op> ops) {
+        try (Jedis jedis = getJedis()) {
+            if (ops.size() == 1) {
+                WriteCoalescer.Op op = ops.get(0);
+                if (op.value != null) {
+                    jedis.hset(op.hash, op.field, op.value);
+                } else {
+                    jedis.hdel(op.hash, op.field);
+                }
+                return;
+            }
+            Pipeline p = jedis.pipelined();
+            for (WriteCoalescer.Op op : ops) {
+                if (op.value != null) {
+                    p.hset(op.hash, op.field, op.value);
+                } else {
+                    p.hdel(op.hash, op.field);
+                }
+            }
+            p.sync();
+        }
+    }
+
+    /**
+     * Writes a content-addressed block to storage. Block data is uploaded only
+     * if no identical block is already stored.
+     * 
+     * @param fileInfo
+     * @param blockNum
+     * @param hash
+     * @param data
+     * @since 0.1.3
+     */
+    private void writeContentBlock(FileInfo fileInfo, int blockNum, String hash, byte[] data) {
+        final byte[] KEY = keyContentBlock(hash).getBytes();
+        try (Jedis jedis = getJedis()) {
+            // reference recorded with the pending file until its block list is
+            // written, so that it is released if the writer crashes
+            Object exists = LuaScripts.eval(jedis, LuaScripts.ACQUIRE_BLOCK,
+                    Arrays.asList(hashFileData, hashBlockRefs, hashPendingFiles),
+                    Arrays.asList(KEY, pendingBlockField(fileInfo, blockNum)));
+            if (!(exists instanceof Long) || ((Long) exists).longValue() == 0) {
+                jedis.hset(hashFileData, KEY, data);
+            }
+        }
+    }
+
+    /**
+     * Releases a content-addressed file's block references.
+     * 
+     * @param jedis
+     * @param fileInfo
+     * @since 0.1.3
+     */
+    private void releaseContentBlocks(Jedis jedis, FileInfo fileInfo) {
+        List<String> blocks = fileInfo.blocks();
+        if (blocks == null || blocks.size() == 0) {
+            return;
+        }
+        List<byte[]> args = new ArrayList<byte[]>(blocks.size());
+        for (String hash : blocks) {
+            args.add(keyContentBlock(hash).getBytes());
+        }
+        LuaScripts.eval(jedis, LuaScripts.RELEASE_BLOCKS, Arrays.asList(hashFileData, hashBlockRefs),
+                args);
+    }
+
+    /**
+     * Should a file be packed?
+     * 
+     * @param fileName
+     * @param size
+     * @return
+     * @since 0.1.3
+     */
+    private boolean isPackable(String fileName, long size) {
+        return packThreshold > 0 && size > 0 && size <= packThreshold
+                && fileName.startsWith("_");
+    }
+
+    /**
+     * Buffers a small file's content until its segment's pack is written, see
+     * {@link #flushPack(String, PackBuffer)}.
+     * 
+     * @param fileInfo
+     * @param data
+     * @param length
+     * @since 0.1.3
+     */
+    private void writePackedFile(FileInfo fileInfo, byte[] data, int length) {
+        String segmentName = IndexFileNames.parseSegmentName(fileInfo.name());
+        // copied: the caller's buffer is recycled
+        byte[] value = Arrays.copyOf(data, length);
+        while (true) {
+            PackBuffer buffer = packBuffers.get(segmentName);
+            if (buffer == null) {
+                buffer = new PackBuffer();
+                PackBuffer existing = packBuffers.putIfAbsent(segmentName, buffer);
+                if (existing != null) {
+                    buffer = existing;
+                }
+            }
+            synchronized (buffer) {
+                if (!buffer.written) {
+                    buffer.files.add(fileInfo);
+                    buffer.contents.add(value);
+                    buffer.size += value.length;
+                    if (buffer.size >= PACK_BUFFER_MAX_BYTES) {
+                        flushPack(segmentName, buffer);
+                    }
+                    return;
+                }
+            }
+            // written meanwhile
+            packBuffers.remove(segmentName, buffer);
+        }
+    }
+
+    /**
+     * Writes a segment's buffered small files to a new pack, then their
+     * metadata, with one pipelined round-trip. Waits for a write of the same
+     * buffer in progress.
+     * 
+     * @param segmentName
+     * @param buffer
+     * @since 0.1.3
+     */
+    private void flushPack(String segmentName, PackBuffer buffer) {
+        synchronized (buffer) {
+            if (!buffer.written) {
+                String key = newKeyPack(segmentName);
+                byte[] pack = new byte[buffer.size];
+                int offset = 0;
+                for (int i = 0, n = buffer.files.size(); i < n; i++) {
+                    byte[] content = buffer.contents.get(i);
+                    System.arraycopy(content, 0, pack, offset, content.length);
+                    buffer.files.get(i).pack(key).packOffset(offset);
+                    offset += content.length;
+                }
+                try (Jedis jedis = getJedis()) {
+                    Pipeline p = jedis.pipelined();
+                    p.hset(hashFileData, key.getBytes(), pack);
+                    p.hincrBy(hashBlockRefs, key.getBytes(), buffer.files.size());
+                    for (FileInfo fileInfo : buffer.files) {
+                        p.hset(hashDirectoryMetadata, keyFileInfo(fileInfo).getBytes(),
+                                fileInfo.asBytes());
+                        p.hdel(hashPendingFiles, fileInfo.id().getBytes());
+                    }
+                    p.sync();
+                }
+                buffer.written = true;
+            }
+        }
+        packBuffers.remove(segmentName, buffer);
+    }
+
+    /**
+     * Writes the buffered small files of a segment, if any.
+     * 
+     * @param segmentName
+     * @since 0.1.3
+     */
+    private void flushPack(String segmentName) {
+        PackBuffer buffer = packBuffers.get(segmentName);
+        if (buffer != null) {
+            flushPack(segmentName, buffer);
+        }
+    }
+
+    /**
+     * Writes all buffered small files.
+     * 
+     * @since 0.1.3
+     */
+    private void flushPacks() {
+        for (Entry<String, PackBuffer> entry : packBuffers.entrySet()) {
+            flushPack(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Loads the pack a file is stored in.
+     * 
+     * @param fileInfo
+     * @return {@code null} if the pack does not exist or does not contain the
+     *         file's content
+     * @since 0.1.3
+     */
+    private byte[] readPack(FileInfo fileInfo) throws IOException {
+        final String KEY = fileInfo.pack();
+        long end = fileInfo.packOffset() + fileInfo.size();
+        BlockCache cache = packCache;
+        byte[] dataArr = cache != null ? cache.get(KEY) : null;
+        if (dataArr != null && dataArr.length >= end) {
+            recordCacheHits(1);
+            return dataArr;
+        }
+        // not cached, or not the expected content
+        long t = System.nanoTime();
+        dataArr = loadBlock(KEY);
+        recordFetch(fileInfo, 0, 1, dataArr != null ? dataArr.length : 0, t);
+        if (dataArr == null || dataArr.length < end) {
+            return null;
+        }
+        if (cache != null) {
+            cache.put(KEY, dataArr);
+        }
+        return dataArr;
+    }
+
+    /**
+     * Releases a packed file's reference to its pack, removing the pack if no
+     * longer referenced.
+     * 
+     * @param jedis
+     * @param fileInfo
+     * @since 0.1.3
+     */
+    private void releasePack(Jedis jedis, FileInfo fileInfo) {
+        LuaScripts.eval(jedis, LuaScripts.RELEASE_BLOCKS, Arrays.asList(hashFileData, hashBlockRefs),
+                Arrays.asList(fileInfo.pack().getBytes()));
+    }
+
+    /**
+     * Gets a file's metadata info.
+     * 
+     * @param filename
+     * @return
+     */
+    FileInfo getFileInfo(String filename) {
+        if (!packBuffers.isEmpty()) {
+            // a buffered small file is written with its pack first
+            String segment = segmentName(filename);
+            if (segment != null) {
+                flushPack(segment);
+            }
+        }
+        FileInfo fileInfo = fileInfoCache.getCreated(filename);
+        if (fileInfo != null) {
+            return fileInfo;
+        }
+        if (fileInfoCache.isMissing(filename)) {
+            return null;
+        }
+        fileInfo = fileInfoCache.getPrefetched(filename);
+        if (fileInfo != null) {
+            return fileInfo;
+        }
+        if (prefetchSegmentMetadata && fileInfoCache.getPrefetchTtlMs() > 0) {
+            String segment = segmentName(filename);
+            List<String> siblings = segment != null ? listedSegmentFiles.remove(segment) : null;
+            if (siblings != null && siblings.size() > 1 && siblings.contains(filename)) {
+                return prefetchFileInfos(siblings).get(filename);
+            }
+        }
+        final String KEY = keyFileInfo(filename);
+        long t = System.nanoTime();
+        try (Jedis jedis = getJedis()) {
+            byte[] dataArr = jedis.hget(hashDirectoryMetadata, KEY.getBytes());
+            fileInfo = FileInfo.newInstance(dataArr);
+        }
+        IoStats stats = IoStats.current();
+        if (stats != null) {
+            stats.recordMetadataLookup(System.nanoTime() - t);
+        }
+        if (fileInfo == null) {
+            fileInfoCache.putMissing(filename);
+        }
+        return fileInfo;
+    }
+
+    /**
+     * Fetches metadata of several files at once (one round trip per
+     * {@value #LIST_BATCH_SIZE} files) and keeps it in memory for
+     * {@link #getMetadataPrefetchTtlMs()}, e.g. before opening all files of a
+     * segment or of a commit. Files found missing are cached as such (see
+     * {@link #setNegativeCacheTtlMs(long)}).
+     * 
+     * <p>
+     * Commit files ({@code segments_N}) are not prefetched: their existence
+     * must be checked against Redis when the commit is read.
+     * </p>
+     * 
+     * @param names
+     * @return metadata of the existing files, by name
+     * @since 0.1.3
+     */
+    public Map<String, FileInfo> prefetchFileInfos(Collection<String> names) {
+        flushPacks();
+        List<String> toFetch = new ArrayList<String>(names.size());
+        for (String name : names) {
+            if (!isSegmentsFile(name) && !toFetch.contains(name)) {
+                toFetch.add(name);
+            }
+        }
+        Map<String, FileInfo> result = new HashMap<String, FileInfo>();
+        for (int from = 0, n = toFetch.size(); from < n; from += LIST_BATCH_SIZE) {
+            List<String> batch = toFetch.subList(from, Math.min(n, from + LIST_BATCH_SIZE));
+            final byte[][] FIELDS = new byte[batch.size()][];
+            for (int i = 0; i < FIELDS.length; i++) {
+                FIELDS[i] = keyFileInfo(batch.get(i)).getBytes();
+            }
+            long t = System.nanoTime();
+            List<byte[]> dataArrList;
+            try (Jedis jedis = getJedis()) {
+                dataArrList = jedis.hmget(hashDirectoryMetadata, FIELDS);
+            }
+            IoStats stats = IoStats.current();
+            if (stats != null) {
+                stats.recordMetadataLookup(System.nanoTime() - t);
+            }
+            for (int i = 0; i < FIELDS.length; i++) {
+                FileInfo fileInfo = FileInfo.newInstance(dataArrList.get(i));
+                if (fileInfo != null) {
+                    fileInfoCache.putPrefetched(fileInfo);
+                    result.put(fileInfo.name(), fileInfo);
+                } else {
+                    fileInfoCache.putMissing(batch.get(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fetches metadata of all files referenced by a commit at once, see
+     * {@link #prefetchFileInfos(Collection)}.
+     * 
+     * @param sis
+     * @return
+     * @throws IOException
+     * @since 0.1.3
+     */
+    public Map<String, FileInfo> prefetchFileInfos(SegmentInfos sis) throws IOException {
+        return prefetchFileInfos(sis.files(false));
+    }
+
+    /**
+     * Updates a file's metadata.
+     * 
+     * @param fileInfo
+     * @return
+     * @throws IOException
+     */
+    private FileInfo updateFileInfo(FileInfo fileInfo) throws IOException {
+        write(Arrays.asList(fileInfoOp(fileInfo)));
+        return fileInfo;
+    }
+
+    /**
+     * Write of a file's metadata.
+     * 
+     * @param fileInfo
+     * @return
+     * @since 0.1.3
+     */
+    private WriteCoalescer.Op fileInfoOp(FileInfo fileInfo) {
+        if (LOGGER.isTraceEnabled()) {
+            String logMsg = "updateFile(" + fileInfo.name() + "/" + fileInfo.id() + "/"
+                    + fileInfo.size() + ") is called";
+            LOGGER.trace(logMsg);
+        }
+        final String KEY = keyFileInfo(fileInfo);
+        return new WriteCoalescer.Op(hashDirectoryMetadata, KEY.getBytes(), fileInfo.asBytes());
+    }
+
+    /**
+     * Registers a file as pending, see {@link #getHashPendingFiles()}.
+     * 
+     * @param fileInfo
+     * @return
+     * @since 0.1.3
+     */
+    private WriteCoalescer.Op pendingFileOp(FileInfo fileInfo) {
+        return new WriteCoalescer.Op(hashPendingFiles, fileInfo.id().getBytes(),
+                (System.currentTimeMillis() + ":" + new String(hashFileData)).getBytes());
+    }
+
+    /**
+     * Field recording, in the pending files hash, the reference a
+     * content-addressed file holds on one of its blocks.
+     * 
+     * @param fileInfo
+     * @param blockNum
+     * @return
+     * @since 0.1.3
+     */
+    private static byte[] pendingBlockField(FileInfo fileInfo, int blockNum) {
+        return (fileInfo.id() + ":" + blockNum).getBytes();
+    }
+
+    /**
+     * Writes a content-addressed file's final metadata and unregisters the
+     * file as pending, together with the records of its block references.
+     * 
+     * @param fileInfo
+     * @since 0.1.3
+     */
+    private void commitContentFile(FileInfo fileInfo) {
+        int numBlocks = fileInfo.blocks() != null ? fileInfo.blocks().size() : 0;
+        List<byte[]> args = new ArrayList<byte[]>(numBlocks + 3);
+        args.add(keyFileInfo(fileInfo).getBytes());
+        args.add(fileInfo.asBytes());
+        args.add(fileInfo.id().getBytes());
+        for (int i = 0; i < numBlocks; i++) {
+            args.add(pendingBlockField(fileInfo, i));
+        }
+        try (Jedis jedis = getJedis()) {
+            LuaScripts.eval(jedis, LuaScripts.COMMIT_PENDING_FILE,
+                    Arrays.asList(hashDirectoryMetadata, hashPendingFiles), args);
+        }
+    }
+
+    /**
+     * Unregisters a pending file (metadata final, or file abandoned and its
+     * blocks removed), see {@link #getHashPendingFiles()}.
+     * 
+     * @param fileInfo
+     * @return
+     * @since 0.1.3
+     */
+    private WriteCoalescer.Op pendingFileDoneOp(FileInfo fileInfo) {
+        return new WriteCoalescer.Op(hashPendingFiles, fileInfo.id().getBytes(), null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        destroy();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IndexOutput createOutput(String name, IOContext ioContext) throws IOException {
+        FileInfo fileInfo = getFileInfo(name);
+        if (fileInfo != null) {
+            // overwrite: the new content gets a new file id, so cached blocks
+            // of the old content are never served
+            deleteFile(name);
+        }
+        fileInfo = FileInfo.newInstance(name).timestamp(System.currentTimeMillis());
+        if (contentAddressed) {
+            fileInfo.blocks(new ArrayList<String>());
+        }
+        // the GC may have scanned the metadata before this file was created
+        write(Arrays.asList(pendingFileOp(fileInfo), fileInfoOp(fileInfo)));
+        fileInfoCache.putExisting(fileInfo, true);
+        RedisIndexOutput output = new RedisIndexOutput(fileInfo);
+        if (isBulkWrite(ioContext)) {
+            output.setWriteBatchBlocks(bulkWriteBatchBlocks);
+        }
+        if (ioContext != null) {
+            output.setRateLimiter(rateLimiters.get(ioContext.context));
+        }
+        return output;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @since 0.1.3 read policy depends on {@code ioContext}, see
+     *        {@link #isSequentialRead(IOContext)}
+     */
+    @Override
+    public IndexInput openInput(String name, IOContext ioContext) throws IOException {
+        FileInfo fileInfo = getFileInfo(name);
+        if (fileInfo == null) {
+            throw new FileNotFoundException("File [" + name + "] not found!");
+        }
+        recordAccess(name);
+        RedisIndexInput input = new RedisIndexInput(this, fileInfo);
+        if (isPinned(fileInfo)) {
+            byte[] content = readWholeFile(fileInfo);
+            if (content != null) {
+                input.pin(content, fileInfo.isPacked() ? fileInfo.packOffset() : 0);
+                return input;
+            }
+            // moved meanwhile: read block by block
+        }
+        if (isSequentialRead(ioContext)) {
+            input.setReadAheadBlocks(sequentialReadAheadBlocks).setCacheInsert(false);
+        }
+        return input;
+    }
+
+    /**
+     * Should a file be loaded whole and pinned when opened? See
+     * {@link #getPinExtensions()} and {@link #getPinMaxBytes()}.
+     * 
+     * @param fileInfo
+     * @return
+     * @since 0.1.3
+     */
+    protected boolean isPinned(FileInfo fileInfo) {
+        if (pinMaxBytes <= 0 || fileInfo.size() > pinMaxBytes || fileInfo.size() <= 0) {
+            return false;
+        }
+        String ext = IndexFileNames.getExtension(fileInfo.name());
+        return ext != null && pinExtensions.contains(ext);
+    }
+
+    /**
+     * Loads a file's whole content with one round-trip.
+     * 
+     * @param fileInfo
+     * @return {@code null} if (part of) the content is not found; for a packed
+     *         file, the whole pack (content starts at the file's pack offset)
+     * @throws IOException
+     * @since 0.1.3
+     */
+    private byte[] readWholeFile(FileInfo fileInfo) throws IOException {
+        if (fileInfo.isPacked()) {
+            return readPack(fileInfo);
+        }
+        int size = (int) fileInfo.size();
+        if (fileInfo.isTiered()) {
+            if (tierStore == null) {
+                return null;
+            }
+            long t = System.nanoTime();
+            byte[] content = new byte[size];
+            try {
+                tierStore.read(fileInfo.tier(), 0, content, 0, size);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            recordFetch(fileInfo, 0, numBlocks(size), size, t);
+            return content;
+        }
+        byte[][] blocks = readFileBlocks(fileInfo, 0, numBlocks(size), false);
+        if (blocks.length == 1) {
+            return blocks[0] != null && blocks[0].length >= size ? blocks[0] : null;
+        }
+        byte[] content = new byte[size];
+        for (int i = 0; i < blocks.length; i++) {
+            int start = i << BLOCK_SHIFT, length = Math.min(BLOCK_SIZE, size - start);
+            if (blocks[i] == null || blocks[i].length < length) {
+                return null;
+            }
+            System.arraycopy(blocks[i], 0, content, start, length);
+        }
+        return content;
+    }
+
+    /**
+     * Merges and read-once inputs read files sequentially: they use large
+     * read-ahead and do not insert blocks to cache, so they do not evict the
+     * blocks used by searches. Other inputs ({@code READ}, {@code DEFAULT})
+     * load blocks one by one and cache them.
+     * 
+     * @param ioContext
+     * @return
+     * @since 0.1.3
+     */
+    protected boolean isSequentialRead(IOContext ioContext) {
+        return ioContext != null
+                && (ioContext.readOnce || ioContext.context == IOContext.Context.MERGE);
+    }
+
+    /**
+     * Flushed and merged segments are written with write-behind batching.
+     * 
+     * @param ioContext
+     * @return
+     * @since 0.1.3
+     */
+    protected boolean isBulkWrite(IOContext ioContext) {
+        return ioContext != null && (ioContext.context == IOContext.Context.FLUSH
+                || ioContext.context == IOContext.Context.MERGE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deleteFile(String name) throws IOException {
+        FileInfo fileInfo = getFileInfo(name);
+        if (fileInfo != null) {
+            if (LOGGER.isTraceEnabled()) {
+                final String logMsg = "deleteFile(" + name + "/" + fileInfo.id() + ") is called";
+                LOGGER.trace(logMsg);
+            }
+            try (Jedis jedis = getJedis()) {
+                final String KEY_METADATA = keyFileInfo(fileInfo);
+                jedis.hdel(hashDirectoryMetadata, KEY_METADATA.getBytes());
+                fileInfoCache.putMissing(name);
+
+                if (fileInfo.isPacked()) {
+                    releasePack(jedis, fileInfo);
+                    return;
+                }
+                if (fileInfo.isTiered()) {
+                    deleteTierObject(fileInfo);
+                    return;
+                }
+                if (fileInfo.isContentAddressed()) {
+                    releaseContentBlocks(jedis, fileInfo);
+                    return;
                 }
             }
+            deleteFileBlocks(fileInfo);
         } else {
             if (LOGGER.isTraceEnabled()) {
                 final String logMsg = "deleteFile(" + name + ") is called, but file is not found";
@@ -310,6 +2133,350 @@ public class RedisDirectory extends BaseDirectory {
         }
     }
 
+    /**
+     * Removes a file's blocks, in batches of multi-field {@code HDEL}s
+     * executed concurrently. Blocks left behind by a failure are reclaimed by
+     * {@link BlockGarbageCollector}.
+     * 
+     * @param fileInfo
+     * @throws IOException
+     * @since 0.1.3
+     */
+    private void deleteFileBlocks(final FileInfo fileInfo) throws IOException {
+        int numBlocks = numBlocks(fileInfo.size());
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int first = 0; first < numBlocks; first += DELETE_BATCH_BLOCKS) {
+            final int FIRST = first, LAST = Math.min(first + DELETE_BATCH_BLOCKS, numBlocks);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    byte[][] keys = new byte[LAST - FIRST][];
+                    for (int i = FIRST; i < LAST; i++) {
+                        final String KEY_DATABLOCK = keyDataBlock(fileInfo, i);
+                        keys[i - FIRST] = KEY_DATABLOCK.getBytes();
+                        if (blockCache != null) {
+                            blockCache.remove(KEY_DATABLOCK);
+                        }
+                    }
+                    try (Jedis jedis = getJedis()) {
+                        jedis.hdel(hashFileData, keys);
+                    }
+                    return null;
+                }
+            });
+        }
+        getIoExecutor().invokeAll(tasks);
+    }
+
+    /**
+     * Removes a demoted file's object from the tier store.
+     * 
+     * @param fileInfo
+     * @since 0.1.3
+     */
+    private void deleteTierObject(FileInfo fileInfo) {
+        if (tierStore == null) {
+            LOGGER.warn("No tier store, object [" + fileInfo.tier() + "] of file ["
+                    + fileInfo.name() + "] not removed");
+            return;
+        }
+        try {
+            tierStore.delete(fileInfo.tier());
+        } catch (IOException e) {
+            LOGGER.warn("Cannot remove object [" + fileInfo.tier() + "] of file ["
+                    + fileInfo.name() + "]: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Name of the segment a file belongs to.
+     * 
+     * @param name
+     * @return {@code null} if not a segment file
+     * @since 0.1.3
+     */
+    static String segmentName(String name) {
+        return name.startsWith("_") ? IndexFileNames.parseSegmentName(name) : null;
+    }
+
+    private void recordAccess(String name) {
+        String segment = segmentName(name);
+        if (segment != null) {
+            accessTracker.record(segment);
+        }
+    }
+
+    /**
+     * Fetches a file's metadata from Redis, bypassing the local caches.
+     * 
+     * @param name
+     * @return
+     * @throws IOException
+     * @since 0.1.3
+     */
+    private FileInfo reloadFileInfo(String name) throws IOException {
+        fileInfoCache.invalidate(name);
+        return getFileInfo(name);
+    }
+
+    /**
+     * Loads a block of a demoted file from the tier store.
+     * 
+     * @param fileInfo
+     * @param blockNum
+     * @param cacheInsert
+     * @return {@code null} if the file's object does not exist (anymore)
+     * @throws IOException
+     * @since 0.1.3
+     */
+    private byte[] readTieredBlock(FileInfo fileInfo, int blockNum, boolean cacheInsert)
+            throws IOException {
+        final String KEY = keyDataBlock(fileInfo, blockNum);
+        BlockCache cache = blockCache;
+        byte[] dataArr = cache != null ? cache.get(KEY) : null;
+        if (dataArr != null) {
+            recordCacheHits(1);
+            return dataArr;
+        }
+        long start = (long) blockNum << BLOCK_SHIFT;
+        int length = (int) Math.min(BLOCK_SIZE, fileInfo.size() - start);
+        if (length <= 0 || tierStore == null) {
+            return null;
+        }
+        long t = System.nanoTime();
+        dataArr = new byte[length];
+        try {
+            tierStore.read(fileInfo.tier(), start, dataArr, 0, length);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        recordFetch(fileInfo, blockNum, 1, length, t);
+        if (cacheInsert && cache != null) {
+            cache.put(KEY, dataArr);
+        }
+        return dataArr;
+    }
+
+    /**
+     * Moves a file's content from Redis to the tier store (see
+     * {@link #setTierStore(TierStore)}), freeing Redis memory. The file stays
+     * in the directory and is read from the tier store from then on.
+     * 
+     * <p>
+     * Metadata is switched only if unchanged meanwhile; inputs opened before
+     * the switch follow the file to its new location. The demoted file gets a
+     * new id, which is also its key in the tier store: concurrent demotions
+     * of the same file never share an object, and Redis blocks left behind
+     * by a failed cleanup are orphans for {@link BlockGarbageCollector}.
+     * </p>
+     * 
+     * @param name
+     * @return {@code false} if the file was not demoted (already demoted,
+     *         packed, or modified meanwhile)
+     * @throws IOException
+     * @since 0.1.3
+     */
+    public boolean demoteFile(String name) throws IOException {
+        if (tierStore == null) {
+            throw new IllegalStateException("No tier store!");
+        }
+        FileInfo fileInfo = getFileInfo(name);
+        if (fileInfo == null) {
+            throw new FileNotFoundException("File [" + name + "] not found!");
+        }
+        if (fileInfo.isTiered() || fileInfo.isPacked() || fileInfo.isLock()) {
+            return false;
+        }
+        FileInfo demoted = FileInfo.newInstance(name).size(fileInfo.size())
+                .timestamp(fileInfo.timestamp());
+        final String TIER_KEY = demoted.id();
+        demoted.tier(TIER_KEY);
+        RedisIndexInput input = new RedisIndexInput(this, fileInfo);
+        input.setReadAheadBlocks(sequentialReadAheadBlocks).setCacheInsert(false);
+        try (InputStream in = new IndexInputStream(input)) {
+            tierStore.put(TIER_KEY, in, fileInfo.size());
+        }
+        if (!switchFileInfo(fileInfo, demoted)) {
+            // only the object of this call: the file's is another one
+            tierStore.delete(TIER_KEY);
+            return false;
+        }
+        if (fileInfo.isContentAddressed()) {
+            try (Jedis jedis = getJedis()) {
+                releaseContentBlocks(jedis, fileInfo);
+            }
+        } else {
+            deleteFileBlocks(fileInfo);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Demoted [" + name + "/" + fileInfo.id() + "], " + fileInfo.size()
+                    + " bytes");
+        }
+        return true;
+    }
+
+    /**
+     * Moves a demoted file's content back from the tier store to Redis.
+     * 
+     * <p>
+     * The promoted file gets a new id: blocks written by a concurrent
+     * promotion of the same file that lost the metadata switch are removed
+     * without touching the winner's.
+     * </p>
+     * 
+     * @param name
+     * @return {@code false} if the file was not promoted (not demoted, or
+     *         modified meanwhile)
+     * @throws IOException
+     * @since 0.1.3
+     */
+    public boolean promoteFile(String name) throws IOException {
+        FileInfo fileInfo = getFileInfo(name);
+        if (fileInfo == null) {
+            throw new FileNotFoundException("File [" + name + "] not found!");
+        }
+        if (!fileInfo.isTiered()) {
+            return false;
+        }
+        FileInfo promoted = FileInfo.newInstance(name).size(fileInfo.size())
+                .timestamp(fileInfo.timestamp());
+        // blocks are written before the metadata
+        write(Arrays.asList(pendingFileOp(promoted)));
+        boolean switched = false;
+        try {
+            int numBlocks = numBlocks(fileInfo.size());
+            for (int first = 0; first < numBlocks; first += COPY_BATCH_BLOCKS) {
+                int last = Math.min(first + COPY_BATCH_BLOCKS, numBlocks);
+                List<WriteCoalescer.Op> ops = new ArrayList<WriteCoalescer.Op>(last - first);
+                for (int i = first; i < last; i++) {
+                    byte[] data = readTieredBlock(fileInfo, i, false);
+                    if (data == null) {
+                        throw new IOException(
+                                "Block [" + i + "] of file [" + name + "] not found!");
+                    }
+                    ops.add(new WriteCoalescer.Op(hashFileData,
+                            keyDataBlock(promoted, i).getBytes(), data));
+                }
+                write(ops);
+            }
+            switched = switchFileInfo(fileInfo, promoted);
+        } finally {
+            if (!switched) {
+                // modified meanwhile, or failed: blocks already written are
+                // removed (or left to the GC)
+                deleteFileBlocks(promoted);
+            }
+            write(Arrays.asList(pendingFileDoneOp(promoted)));
+        }
+        if (!switched) {
+            return false;
+        }
+        deleteTierObject(fileInfo);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Promoted [" + name + "/" + fileInfo.id() + "], " + fileInfo.size()
+                    + " bytes");
+        }
+        return true;
+    }
+
+    /**
+     * Is a file's latest metadata the same content moved to/from the tier
+     * store? Demoted and promoted files get new ids but keep the size and
+     * timestamp of the original.
+     * 
+     * @param fileInfo
+     * @param latest
+     * @return
+     * @since 0.1.3
+     */
+    static boolean isMovedCopy(FileInfo fileInfo, FileInfo latest) {
+        return latest.isTiered() != fileInfo.isTiered() && latest.size() == fileInfo.size()
+                && latest.timestamp() == fileInfo.timestamp();
+    }
+
+    /**
+     * Replaces a file's metadata if unchanged since read.
+     * 
+     * @param current
+     * @param replacement
+     * @return
+     * @since 0.1.3
+     */
+    private boolean switchFileInfo(FileInfo current, FileInfo replacement) {
+        final String KEY = keyFileInfo(current);
+        boolean local = fileInfoCache.getCreated(current.name()) != null;
+        try (Jedis jedis = getJedis()) {
+            Object result = LuaScripts.eval(jedis, LuaScripts.HSET_IF_EQUALS,
+                    Arrays.asList(hashDirectoryMetadata), Arrays.asList(KEY.getBytes(),
+                            current.asBytes(), replacement.asBytes()));
+            if (!(result instanceof Long) || ((Long) result).longValue() == 0) {
+                fileInfoCache.invalidate(current.name());
+                return false;
+            }
+        }
+        fileInfoCache.putExisting(replacement, local);
+        return true;
+    }
+
+    /**
+     * Loads files into the in-memory caches, fetching their blocks
+     * concurrently: blocks go to the block cache (if enabled), packs to the
+     * pack cache (if enabled). Files that do not exist are ignored.
+     * 
+     * @param names
+     * @throws IOException
+     * @since 0.1.3
+     */
+    public void prefetch(Collection<String> names) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (String name : names) {
+            final FileInfo fileInfo = getFileInfo(name);
+            if (fileInfo == null || fileInfo.isLock()) {
+                continue;
+            }
+            if (fileInfo.isPacked()) {
+                if (packCache != null) {
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            readPack(fileInfo);
+                            return null;
+                        }
+                    });
+                }
+                continue;
+            }
+            if (blockCache == null) {
+                continue;
+            }
+            int numBlocks = numBlocks(fileInfo.size());
+            if (fileInfo.isTiered()) {
+                for (int i = 0; i < numBlocks; i++) {
+                    final int BLOCK_NUM = i;
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            readTieredBlock(fileInfo, BLOCK_NUM, true);
+                            return null;
+                        }
+                    });
+                }
+                continue;
+            }
+            for (int first = 0; first < numBlocks; first += sequentialReadAheadBlocks) {
+                final int FIRST = first;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        readFileBlocks(fileInfo, FIRST, sequentialReadAheadBlocks, true);
+                        return null;
+                    }
+                });
+            }
+        }
+        getIoExecutor().invokeAll(tasks);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -327,13 +2494,48 @@ public class RedisDirectory extends BaseDirectory {
      */
     @Override
     public String[] listAll() throws IOException {
-        List<String> result = new ArrayList<String>();
-        for (FileInfo fileInfo : getAllFileInfo()) {
-            result.add(fileInfo.name());
+        // HSCAN may return a name more than once
+        Set<String> result = new LinkedHashSet<String>();
+        Iterator<String> it = iterateFileNames();
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        ConcurrentMap<String, List<String>> segmentFiles = new ConcurrentHashMap<String, List<String>>(
+                16);
+        for (String name : result) {
+            String segment = segmentName(name);
+            if (segment != null) {
+                List<String> files = segmentFiles.get(segment);
+                if (files == null) {
+                    files = new ArrayList<String>();
+                    segmentFiles.put(segment, files);
+                }
+                files.add(name);
+            }
         }
+        listedSegmentFiles = segmentFiles;
         return result.toArray(ArrayUtils.EMPTY_STRING_ARRAY);
     }
 
+    /**
+     * Iterates over names of all files (and locks) in this directory.
+     * 
+     * <p>
+     * Names are fetched lazily, page by page, with {@code HSCAN}; metadata is
+     * not decoded. Each page is one short Redis call, so Redis is never blocked
+     * on a big metadata hash. A file created or removed during the iteration
+     * may or may not be returned; a name may be returned more than once if the
+     * hash is resized during the iteration.
+     * </p>
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    public Iterator<String> iterateFileNames() {
+        flushPacks();
+        return new FileNameIterator();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -344,31 +2546,412 @@ public class RedisDirectory extends BaseDirectory {
             LOGGER.trace(logMsg);
         }
 
-        FileInfo fileInfo = getFileInfo(oldName);
-        if (fileInfo == null) {
-            throw new IOException("File [" + oldName + "] not found!");
+        FileInfo fileInfo = getFileInfo(oldName);
+        if (fileInfo == null) {
+            throw new IOException("File [" + oldName + "] not found!");
+        }
+        boolean local = fileInfoCache.getCreated(oldName) != null;
+        updateFileInfo(fileInfo.name(newName));
+        fileInfoCache.putExisting(fileInfo, local);
+        final String KEY = keyFileInfo(oldName);
+        try (Jedis jedis = getJedis()) {
+            jedis.hdel(hashDirectoryMetadata, KEY.getBytes());
+        }
+        fileInfoCache.putMissing(oldName);
+        publishCommit(newName);
+    }
+
+    /**
+     * Are this directory and another one backed by the same Redis server?
+     * 
+     * @param another
+     * @return
+     * @since 0.1.3
+     */
+    private boolean isSameRedis(RedisDirectory another) {
+        if (jedisPool != null && jedisPool == another.jedisPool) {
+            return true;
+        }
+        return myOwnPool && another.myOwnPool && redisPort == another.redisPort
+                && StringUtils.equals(redisHost, another.redisHost);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * If {@code from} is a {@link RedisDirectory} backed by the same Redis
+     * server, file is copied inside Redis: content-addressed blocks and packed
+     * files sharing the same storage are cloned by reference, other blocks are
+     * copied by server-side scripts. Otherwise, file data is streamed as
+     * usual.
+     * </p>
+     * 
+     * @since 0.1.3
+     */
+    @Override
+    public void copyFrom(Directory from, String src, String dest, IOContext context)
+            throws IOException {
+        if (!(from instanceof RedisDirectory) || !isSameRedis((RedisDirectory) from)) {
+            super.copyFrom(from, src, dest, context);
+            return;
+        }
+        final RedisDirectory fromDir = (RedisDirectory) from;
+        FileInfo srcInfo = fromDir.getFileInfo(src);
+        if (srcInfo == null) {
+            throw new FileNotFoundException("File [" + src + "] not found!");
+        }
+        if (LOGGER.isTraceEnabled()) {
+            final String logMsg = "copyFrom(" + src + "/" + srcInfo.id() + "," + dest
+                    + ") is called";
+            LOGGER.trace(logMsg);
+        }
+
+        boolean sharedStorage = Arrays.equals(hashFileData, fromDir.hashFileData)
+                && Arrays.equals(hashBlockRefs, fromDir.hashBlockRefs);
+        if ((srcInfo.isPacked() && !sharedStorage) || srcInfo.isTiered()) {
+            // small file: streamed (and packed again if applicable); demoted
+            // file: streamed back to Redis
+            super.copyFrom(from, src, dest, context);
+            return;
+        }
+
+        if (getFileInfo(dest) != null) {
+            // overwrite: blocks and references of the old content are
+            // released, as by createOutput(...)
+            deleteFile(dest);
+        }
+        final FileInfo SRC_INFO = srcInfo;
+        final FileInfo destInfo = FileInfo.newInstance(dest);
+        destInfo.size(srcInfo.size());
+        int numBlocks = numBlocks(srcInfo.size());
+        List<Callable<Void>> copyTasks = new ArrayList<Callable<Void>>();
+        boolean pending = false;
+        List<byte[]> refs = null;
+        try (Jedis jedis = getJedis()) {
+            if (srcInfo.isPacked()) {
+                // shared pack storage: clone pack reference
+                destInfo.pack(srcInfo.pack()).packOffset(srcInfo.packOffset());
+                refs = Arrays.asList(srcInfo.pack().getBytes());
+            } else if (srcInfo.isContentAddressed() && sharedStorage) {
+                // shared block storage: clone block references
+                List<String> blocks = srcInfo.blocks();
+                destInfo.blocks(new ArrayList<String>(blocks));
+                refs = new ArrayList<byte[]>(blocks.size());
+                for (String hash : blocks) {
+                    refs.add(keyContentBlock(hash).getBytes());
+                }
+            }
+            if (refs != null) {
+                // blocks released meanwhile (source deleted) are not revived
+                Object acquired = refs.isEmpty() ? Long.valueOf(1)
+                        : LuaScripts.eval(jedis, LuaScripts.ACQUIRE_STORED_BLOCKS,
+                                Arrays.asList(hashFileData, hashBlockRefs), refs);
+                if (!(acquired instanceof Long) || ((Long) acquired).longValue() == 0) {
+                    throw new FileNotFoundException("Content of file [" + src + "/"
+                            + srcInfo.id() + "] not found!");
+                }
+            } else {
+                // blocks are written before the metadata
+                pending = true;
+                write(Arrays.asList(pendingFileOp(destInfo)));
+                // batches are copied concurrently
+                for (int first = 0; first < numBlocks; first += COPY_BATCH_BLOCKS) {
+                    final int FIRST = first, LAST = Math.min(first + COPY_BATCH_BLOCKS, numBlocks);
+                    copyTasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            List<byte[]> args = new ArrayList<byte[]>(LAST - FIRST + 2);
+                            args.add(destInfo.id().getBytes());
+                            args.add(String.valueOf(FIRST).getBytes());
+                            for (int i = FIRST; i < LAST; i++) {
+                                args.add(fromDir.keyDataBlock(SRC_INFO, i).getBytes());
+                            }
+                            Object copied;
+                            try (Jedis jedis = getJedis()) {
+                                copied = LuaScripts.eval(jedis, LuaScripts.COPY_BLOCKS,
+                                        Arrays.asList(fromDir.hashFileData, hashFileData), args);
+                            }
+                            if (!(copied instanceof Long)
+                                    || ((Long) copied).longValue() != LAST - FIRST) {
+                                throw new IOException("Blocks [" + FIRST + "-" + (LAST - 1)
+                                        + "] of file [" + SRC_INFO.name() + "/" + SRC_INFO.id()
+                                        + "] not found!");
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }
+        }
+        try {
+            // returns only when no copy task is running anymore
+            getIoExecutor().invokeAll(copyTasks);
+        } catch (IOException | RuntimeException e) {
+            // source modified or deleted meanwhile: the copy never becomes
+            // visible, blocks already copied are removed (or left to the GC)
+            try {
+                deleteFileBlocks(destInfo);
+                write(Arrays.asList(pendingFileDoneOp(destInfo)));
+            } catch (IOException | RuntimeException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+        // metadata is written last, so the file only becomes visible when
+        // completely copied
+        try {
+            write(pending ? Arrays.asList(fileInfoOp(destInfo), pendingFileDoneOp(destInfo))
+                    : Arrays.asList(fileInfoOp(destInfo)));
+        } catch (IOException | RuntimeException e) {
+            if (refs != null && !refs.isEmpty()) {
+                // no metadata references the cloned references: released,
+                // the collector would never free them
+                try (Jedis jedis = getJedis()) {
+                    LuaScripts.eval(jedis, LuaScripts.RELEASE_BLOCKS,
+                            Arrays.asList(hashFileData, hashBlockRefs), refs);
+                } catch (RuntimeException e2) {
+                    e.addSuppressed(e2);
+                }
+            }
+            throw e;
+        }
+        fileInfoCache.putExisting(destInfo, true);
+        publishCommit(dest);
+    }
+
+    /**
+     * Takes a point-in-time snapshot of the latest commit of this directory.
+     * 
+     * <p>
+     * Files referenced by the latest commit are cloned inside Redis (see
+     * {@link #copyFrom(Directory, String, String, IOContext)}) into a new
+     * namespace, concurrently (see {@link #getIoExecutor()}); the
+     * {@code segments_N} file is cloned last. The returned directory shares
+     * this directory's {@link JedisPool}.
+     * </p>
+     * 
+     * <p>
+     * If a concurrent commit deletes files of the commit being cloned, the
+     * files already cloned are removed from the snapshot and the new latest
+     * commit is cloned instead. To snapshot a given commit of a live index,
+     * hold it with a {@code SnapshotDeletionPolicy} while this method runs.
+     * </p>
+     * 
+     * @param hashDirectoryMetadata
+     *            name of the metadata hash of the snapshot, must differ from
+     *            this directory's
+     * @param hashFileData
+     *            name of the file data hash of the snapshot. May equal this
+     *            directory's to share content-addressed blocks and packs
+     *            (reference-counted) only if all files of the commit are
+     *            content-addressed or packed: other files are copied into
+     *            {@code id:blockNum} blocks that the metadata of only one of
+     *            the two directories references, so the
+     *            {@link BlockGarbageCollector} of the other one would remove
+     *            them
+     * @return
+     * @throws IOException
+     * @since 0.1.3
+     */
+    public RedisDirectory snapshot(String hashDirectoryMetadata, String hashFileData)
+            throws IOException {
+        if (StringUtils.equals(hashDirectoryMetadata, getHashDirectoryMetadata())) {
+            throw new IllegalArgumentException("Snapshot must use a different metadata hash!");
+        }
+        RedisDirectory snapshot = new RedisDirectory(jedisPool);
+        snapshot.setHashDirectoryMetadata(hashDirectoryMetadata).setHashFileData(hashFileData)
+                .setHashPendingFiles(getHashPendingFiles()).setContentAddressed(contentAddressed);
+        if (StringUtils.equals(hashFileData, getHashFileData())) {
+            // shared blocks, shared counts
+            snapshot.setHashBlockRefs(getHashBlockRefs());
+        }
+
+        SegmentInfos sis = SegmentInfos.readLatestCommit(this);
+        IOException error;
+        while ((error = copyCommit(sis, snapshot)) != null) {
+            // files of the commit deleted by a concurrent commit: the partial
+            // snapshot is removed, and the new latest commit is copied
+            SegmentInfos latest = null;
+            try {
+                for (String name : sis.files(true)) {
+                    snapshot.deleteFile(name);
+                }
+                latest = SegmentInfos.readLatestCommit(this);
+            } catch (IOException | RuntimeException e) {
+                error.addSuppressed(e);
+            }
+            if (latest == null || latest.getGeneration() == sis.getGeneration()) {
+                throw error;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Snapshot [" + sis.getSegmentsFileName() + "] failed (" + error
+                        + "), retrying with [" + latest.getSegmentsFileName() + "]");
+            }
+            sis = latest;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Snapshot [" + sis.getSegmentsFileName() + "] -> ["
+                    + hashDirectoryMetadata + "/" + hashFileData + "]");
+        }
+        return snapshot;
+    }
+
+    /**
+     * Copies the files of a commit into a snapshot, the {@code segments_N}
+     * file last. All copies are completed (none left in flight) before
+     * returning.
+     * 
+     * @param sis
+     * @param snapshot
+     * @return the first copy failure, {@code null} if all files were copied
+     * @throws IOException
+     * @since 0.1.3
+     */
+    private IOException copyCommit(SegmentInfos sis, final RedisDirectory snapshot)
+            throws IOException {
+        List<Callable<IOException>> tasks = new ArrayList<Callable<IOException>>();
+        for (final String name : sis.files(false)) {
+            tasks.add(new Callable<IOException>() {
+                @Override
+                public IOException call() {
+                    try {
+                        snapshot.copyFrom(RedisDirectory.this, name, name, IOContext.DEFAULT);
+                        return null;
+                    } catch (IOException e) {
+                        return e;
+                    }
+                }
+            });
+        }
+        for (IOException e : getIoExecutor().invokeAll(tasks)) {
+            if (e != null) {
+                return e;
+            }
+        }
+        String segmentsFile = sis.getSegmentsFileName();
+        try {
+            snapshot.copyFrom(this, segmentsFile, segmentsFile, IOContext.DEFAULT);
+            return null;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Takes a point-in-time snapshot of the latest commit of this directory,
+     * with its own file data hash named {@code <hashDirectoryMetadata>_data}
+     * (see {@link #snapshot(String, String)} to share this directory's).
+     * 
+     * @param hashDirectoryMetadata
+     * @return
+     * @throws IOException
+     * @since 0.1.3
+     */
+    public RedisDirectory snapshot(String hashDirectoryMetadata) throws IOException {
+        return snapshot(hashDirectoryMetadata, hashDirectoryMetadata + "_data");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync(Collection<String> names) throws IOException {
+        if (LOGGER.isTraceEnabled()) {
+            final String logMsg = "sync(" + names + ") is called";
+            LOGGER.trace(logMsg);
+        }
+        flushPacks();
+    }
+
+    /*----------------------------------------------------------------------*/
+    /**
+     * Iterates over the metadata hash with {@code HSCAN}.
+     * 
+     * @author Thanh Nguyen <btnguyen2k@gmail.com>
+     * @since 0.1.3
+     */
+    private class FileNameIterator implements Iterator<String> {
+
+        private final ScanParams scanParams = new ScanParams().count(LIST_BATCH_SIZE);
+        private byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        private boolean finished = false;
+        private Iterator<Entry<byte[], byte[]>> page;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean hasNext() {
+            while ((page == null || !page.hasNext()) && !finished) {
+                try (Jedis jedis = getJedis()) {
+                    ScanResult<Entry<byte[], byte[]>> scan = jedis.hscan(hashDirectoryMetadata,
+                            cursor, scanParams);
+                    cursor = scan.getCursorAsBytes();
+                    finished = Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY);
+                    page = scan.getResult().iterator();
+                }
+            }
+            return page != null && page.hasNext();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return new String(page.next().getKey());
         }
-        updateFileInfo(fileInfo.name(newName));
-        final String KEY = keyFileInfo(oldName);
-        try (Jedis jedis = getJedis()) {
-            jedis.hdel(hashDirectoryMetadata, KEY.getBytes());
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
     }
 
+    /*----------------------------------------------------------------------*/
     /**
-     * {@inheritDoc}
+     * Obtains a lock.
+     * 
+     * @param lockName
+     * @return
+     * @throws LockObtainFailedException
+     *             if the lock is currently held by another instance
+     * @since 0.1.3 throws {@link LockObtainFailedException} if lock can not be
+     *        obtained
      */
-    @Override
-    public void sync(Collection<String> names) throws IOException {
-        if (LOGGER.isTraceEnabled()) {
-            final String logMsg = "sync(" + names + ") is called";
-            LOGGER.trace(logMsg);
+    public Lock createLock(String lockName) throws LockObtainFailedException {
+        RedisLock lock = new RedisLock(lockName);
+        if (!lock.locked) {
+            throw new LockObtainFailedException("Lock held by another instance: " + lockName);
         }
+        return lock;
     }
 
-    /*----------------------------------------------------------------------*/
-    public RedisLock createLock(String lockName) {
-        return new RedisLock(lockName);
+    /**
+     * Scheduler of lock heartbeats, created on first use.
+     * 
+     * @return
+     * @since 0.1.3
+     */
+    synchronized private ScheduledExecutorService lockHeartbeat() {
+        if (lockHeartbeat == null) {
+            lockHeartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "redir-lock-heartbeat-" + hashDirectoryMetadata);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return lockHeartbeat;
     }
 
     /**
@@ -382,17 +2965,38 @@ public class RedisDirectory extends BaseDirectory {
         private FileInfo fileInfo;
         private boolean locked = false;
         private String uuid = UUID.randomUUID().toString();
+        private ScheduledFuture<?> heartbeat;
 
         public RedisLock(String fileName) {
             fileInfo = FileInfo.newInstance(fileName);
-            fileInfo.id(uuid);
+            fileInfo.id(uuid).lock(true).timestamp(System.currentTimeMillis());
             locked = obtain();
+            if (locked) {
+                // keep the lock fresh while held, even if the holder is idle
+                heartbeat = lockHeartbeat().scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!refresh(true)) {
+                                LOGGER.warn("Lock invalidated or is held by an external force: "
+                                        + RedisLock.this);
+                                heartbeat.cancel(false);
+                            }
+                        } catch (Exception e) {
+                            LOGGER.warn("Cannot refresh lock [" + fileInfo.name() + "]: "
+                                    + e.getMessage(), e);
+                        }
+                    }
+                }, LOCK_HEARTBEAT_MS, LOCK_HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+            }
         }
 
         private boolean obtain() {
             final String KEY = keyFileInfo(fileInfo);
             try (Jedis jedis = getJedis()) {
-                Long result = jedis.hset(hashDirectoryMetadata, KEY.getBytes(), fileInfo.asBytes());
+                Long result = jedis.hsetnx(hashDirectoryMetadata, KEY.getBytes(),
+                        fileInfo.asBytes());
+                fileInfoCache.invalidate(KEY);
                 return result != null && result.longValue() == 1;
             }
         }
@@ -403,10 +3007,15 @@ public class RedisDirectory extends BaseDirectory {
         @Override
         public void close() throws IOException {
             if (locked) {
+                heartbeat.cancel(false);
                 final String KEY = keyFileInfo(fileInfo);
-                try (Jedis jedis = getJedis()) {
-                    jedis.hdel(hashDirectoryMetadata, KEY.getBytes());
+                synchronized (this) {
+                    // after a heartbeat in progress, if any
+                    try (Jedis jedis = getJedis()) {
+                        jedis.hdel(hashDirectoryMetadata, KEY.getBytes());
+                    }
                 }
+                fileInfoCache.invalidate(KEY);
                 locked = false;
             }
         }
@@ -423,15 +3032,91 @@ public class RedisDirectory extends BaseDirectory {
                         "Lock instance is not held or already released: " + this);
             }
 
+            if (!refresh(false)) {
+                throw new AlreadyClosedException(
+                        "Lock invalidated or is held by an external force: " + this);
+            }
+        }
+
+        /**
+         * Checks that the lock is still held by this instance, and refreshes
+         * its timestamp.
+         * 
+         * @param force
+         *            refresh even if the last refresh was less than
+         *            {@link RedisDirectory#LOCK_HEARTBEAT_MS} ago
+         * @return {@code false} if the lock has been removed or taken over
+         * @since 0.1.3
+         */
+        synchronized private boolean refresh(boolean force) {
             final String KEY = keyFileInfo(fileInfo);
             try (Jedis jedis = getJedis()) {
                 byte[] value = jedis.hget(hashDirectoryMetadata, KEY.getBytes());
                 FileInfo fileInfo = FileInfo.newInstance(value);
                 if (fileInfo == null || !StringUtils.equals(fileInfo.id(), this.fileInfo.id())) {
-                    throw new AlreadyClosedException(
-                            "Lock invalidated or is held by an external force: " + this);
+                    return false;
+                }
+                long now = System.currentTimeMillis();
+                if (force || now - this.fileInfo.timestamp() >= LOCK_HEARTBEAT_MS) {
+                    // heartbeat only if the lock has not been taken over since
+                    // it was read
+                    this.fileInfo.timestamp(now);
+                    Object result = LuaScripts.eval(jedis, LuaScripts.HSET_IF_EQUALS,
+                            Arrays.asList(hashDirectoryMetadata),
+                            Arrays.asList(KEY.getBytes(), value, this.fileInfo.asBytes()));
+                    return result instanceof Long && ((Long) result).longValue() != 0;
                 }
+                return true;
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*/
+    /**
+     * Small files of a segment waiting to be written to a pack.
+     * 
+     * @since 0.1.3
+     */
+    private static class PackBuffer {
+        /* guarded by this */
+        private final List<FileInfo> files = new ArrayList<FileInfo>();
+        private final List<byte[]> contents = new ArrayList<byte[]>();
+        private int size;
+        private boolean written;
+    }
+
+    /*----------------------------------------------------------------------*/
+    /**
+     * {@link InputStream} over an {@link IndexInput}.
+     * 
+     * @since 0.1.3
+     */
+    private static class IndexInputStream extends InputStream {
+        private final IndexInput input;
+
+        IndexInputStream(IndexInput input) {
+            this.input = input;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return input.getFilePointer() < input.length() ? input.readByte() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long remaining = input.length() - input.getFilePointer();
+            if (remaining <= 0) {
+                return len == 0 ? 0 : -1;
             }
+            int n = (int) Math.min(len, remaining);
+            input.readBytes(b, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
         }
     }
 
@@ -449,14 +3134,77 @@ public class RedisDirectory extends BaseDirectory {
         private CRC32 crc = new CRC32();
         private long bytesWritten = 0L;
         private FileInfo fileInfo;
+        private MessageDigest blockDigest;
 
         private int bufferOffset = 0;
         private int blockNum = 0;
-        private byte[] buffer = new byte[RedisDirectory.BLOCK_SIZE];
+        private byte[] buffer = writeBufferPool.acquire();
+        private final byte[] keyPrefix, metadataKey;
+        private boolean closed = false;
+        /* failure of a block write: the file can't be completed */
+        private Exception writeFailure;
+
+        private int writeBatchBlocks = 1;
+        private List<byte[]> pendingBlocks = new ArrayList<byte[]>();
+
+        private RateLimiter rateLimiter;
 
         public RedisIndexOutput(FileInfo fileInfo) {
             super(fileInfo.name());
             this.fileInfo = fileInfo;
+            if (fileInfo.isContentAddressed()) {
+                blockDigest = LuaScripts.newDigest("SHA-1");
+            }
+            this.keyPrefix = keyDataBlockPrefix(fileInfo);
+            this.metadataKey = keyFileInfo(fileInfo).getBytes();
+        }
+
+        /**
+         * Number of full blocks buffered before they are written to Redis in
+         * one pipelined batch (default {@code 1}: each block is written as
+         * soon as it is full).
+         * 
+         * @param writeBatchBlocks
+         * @return
+         * @since 0.1.3
+         */
+        public RedisIndexOutput setWriteBatchBlocks(int writeBatchBlocks) {
+            this.writeBatchBlocks = Math.max(1, writeBatchBlocks);
+            return this;
+        }
+
+        public int getWriteBatchBlocks() {
+            return writeBatchBlocks;
+        }
+
+        /**
+         * Rate limiter applied to block writes.
+         * 
+         * @param rateLimiter
+         *            {@code null} to disable rate limiting
+         * @return
+         * @since 0.1.3
+         */
+        public RedisIndexOutput setRateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        public RateLimiter getRateLimiter() {
+            return rateLimiter;
+        }
+
+        /**
+         * Reports write latency to an adaptive rate limiter.
+         * 
+         * @param startNanos
+         * @param numBlocks
+         */
+        private void recordWriteLatency(long startNanos, int numBlocks) {
+            if (rateLimiter instanceof AdaptiveRateLimiter) {
+                long latencyMicros = (System.nanoTime() - startNanos) / 1000 / numBlocks;
+                ((AdaptiveRateLimiter) rateLimiter).recordLatency(latencyMicros);
+            }
         }
 
         /**
@@ -464,18 +3212,106 @@ public class RedisDirectory extends BaseDirectory {
          */
         @Override
         public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (blockNum == 0 && isPackable(fileInfo.name(), bufferOffset)) {
+                // small segment file: buffered until the segment's pack is
+                // written
+                fileInfo.size(bytesWritten);
+                if (rateLimiter != null) {
+                    rateLimiter.pause(bufferOffset);
+                }
+                writePackedFile(fileInfo, buffer, bufferOffset);
+                writeBufferPool.release(buffer);
+                buffer = null;
+                bufferOffset = 0;
+                return;
+            }
             flushBlock();
+            flushPendingBlocks();
+            // metadata final (block list of a content-addressed file written
+            // once, not after each block): no longer pending
+            if (blockDigest != null) {
+                commitContentFile(fileInfo);
+            } else {
+                write(Arrays.asList(fileInfoOp(fileInfo), pendingFileDoneOp(fileInfo)));
+            }
+            publishCommit(fileInfo.name());
         }
 
-        synchronized private void flushBlock() {
+        synchronized private void flushPendingBlocks() throws IOException {
+            if (pendingBlocks.size() > 0) {
+                long t = System.nanoTime();
+                writeFileBlocks(fileInfo, keyPrefix, metadataKey, blockNum - pendingBlocks.size(),
+                        pendingBlocks);
+                recordWriteLatency(t, pendingBlocks.size());
+                // written and acknowledged: buffers can be reused
+                for (byte[] block : pendingBlocks) {
+                    writeBufferPool.release(block);
+                }
+                pendingBlocks.clear();
+            }
+        }
+
+        private void writeBlock(byte[] block) throws IOException {
+            if (blockDigest != null) {
+                String hash = LuaScripts.toHex(blockDigest.digest(block));
+                writeContentBlock(fileInfo, blockNum, hash, block);
+                fileInfo.addBlock(hash);
+            } else {
+                // block and metadata with one round-trip
+                writeFileBlocks(fileInfo, keyPrefix, metadataKey, blockNum,
+                        Collections.singletonList(block));
+            }
+        }
+
+        synchronized private void flushBlock() throws IOException {
+            if (writeFailure != null) {
+                throw new IOException("Write of file [" + fileInfo.name() + "/" + fileInfo.id()
+                        + "] failed", writeFailure);
+            }
             if (bufferOffset > 0) {
                 long t1 = System.currentTimeMillis();
-                writeFileBlock(fileInfo, blockNum, buffer);
-                blockNum++;
-                bufferOffset = 0;
-                buffer = new byte[BLOCK_SIZE];
+                if (rateLimiter != null) {
+                    rateLimiter.pause(bufferOffset);
+                }
                 fileInfo.size(bytesWritten);
-                updateFileInfo(fileInfo);
+                boolean isFull = bufferOffset >= BLOCK_SIZE;
+                // last block of the file (output is being closed): stored
+                // without padding
+                byte[] block = isFull ? buffer : Arrays.copyOf(buffer, bufferOffset);
+                try {
+                    if (writeBatchBlocks > 1 && blockDigest == null) {
+                        pendingBlocks.add(block);
+                        blockNum++;
+                        if (pendingBlocks.size() >= writeBatchBlocks) {
+                            flushPendingBlocks();
+                        }
+                    } else {
+                        long t = System.nanoTime();
+                        writeBlock(block);
+                        recordWriteLatency(t, 1);
+                        blockNum++;
+                        // written and acknowledged: buffer can be reused (not
+                        // released if the write failed, it may still be
+                        // queued)
+                        writeBufferPool.release(block);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // further writes go to a fresh buffer (the failed one may
+                    // still be queued), next flush or close fails
+                    writeFailure = e;
+                    bufferOffset = 0;
+                    buffer = new byte[BLOCK_SIZE];
+                    throw e;
+                }
+                if (!isFull) {
+                    writeBufferPool.release(buffer);
+                }
+                bufferOffset = 0;
+                buffer = isFull ? writeBufferPool.acquire() : null;
                 long t2 = System.currentTimeMillis();
                 if (LOGGER.isTraceEnabled()) {
                     LOGGER.trace("flushBlock[" + fileInfo.name() + "," + (blockNum - 1) + ","
@@ -504,8 +3340,18 @@ public class RedisDirectory extends BaseDirectory {
         @Override
         public void writeBytes(byte[] b, int offset, int length) throws IOException {
             long t1 = System.currentTimeMillis();
-            for (int i = 0; i < length; i++) {
-                writeByte(b[offset + i]);
+            crc.update(b, offset, length);
+            for (int off = offset, remaining = length; remaining > 0;) {
+                int n = Math.min(remaining, RedisDirectory.BLOCK_SIZE - bufferOffset);
+                System.arraycopy(b, off, buffer, bufferOffset, n);
+                bufferOffset += n;
+                off += n;
+                remaining -= n;
+                bytesWritten += n;
+                fileInfo.size(bytesWritten);
+                if (bufferOffset >= RedisDirectory.BLOCK_SIZE) {
+                    flushBlock();
+                }
             }
             long t2 = System.currentTimeMillis();
             if (LOGGER.isTraceEnabled()) {
@@ -535,10 +3381,16 @@ public class RedisDirectory extends BaseDirectory {
     /**
      * Redis implementation of {@link IndexInput}.
      * 
+     * <p>
+     * Since v0.1.3, this class also implements {@link RandomAccessInput}, and
+     * multi-byte reads are served directly from the current block whenever
+     * possible.
+     * </p>
+     * 
      * @author Thanh Nguyen
      * @since 0.1.0
      */
-    public class RedisIndexInput extends IndexInput {
+    public class RedisIndexInput extends IndexInput implements RandomAccessInput {
 
         private final Logger LOGGER = LoggerFactory.getLogger(RedisIndexInput.class);
 
@@ -546,10 +3398,23 @@ public class RedisDirectory extends BaseDirectory {
         private FileInfo fileInfo;
 
         private boolean isSlice = false;
+
+        /*
+         * current block covers file positions [blockStart, blockEnd), byte at
+         * file position p is block[p - blockStart]
+         */
         private byte[] block;
-        private int blockOffset = 0;
-        private int blockNum = 0;
+        private long blockStart = 0, blockEnd = 0;
 
+        private int readAheadBlocks = 1;
+        private boolean cacheInsert = true;
+        private byte[][] readAheadBuffer;
+        private int readAheadFirst = -1;
+
+        /*
+         * offset/end: boundaries of this input (slice) in file, pos: position
+         * relative to offset
+         */
         private long offset, end, pos;
 
         public RedisIndexInput(RedisDirectory cassDir, FileInfo fileInfo) {
@@ -568,21 +3433,125 @@ public class RedisDirectory extends BaseDirectory {
             this.fileInfo = another.fileInfo;
             this.offset = another.offset + offset;
             this.end = this.offset + length;
-            this.blockNum = another.blockNum;
-            this.blockOffset = another.blockOffset;
-            // if (another.block != null) {
-            // this.block = Arrays.copyOf(another.block, another.block.length);
-            // }
+            this.block = another.block;
+            this.blockStart = another.blockStart;
+            this.blockEnd = another.blockEnd;
+            this.readAheadBlocks = another.readAheadBlocks;
+            this.cacheInsert = another.cacheInsert;
             seek(0);
         }
 
-        private void loadBlock(int blockNum) {
+        /**
+         * Serves all reads from a buffer holding the whole file.
+         * 
+         * @param content
+         * @param contentOffset
+         *            position of the file's first byte in {@code content}
+         * @since 0.1.3
+         */
+        private void pin(byte[] content, long contentOffset) {
+            block = content;
+            blockStart = -contentOffset;
+            blockEnd = fileInfo.size();
+        }
+
+        private void loadBlock(int blockNum) throws IOException {
             if (LOGGER.isTraceEnabled()) {
                 final String logMsg = "loadBlock(" + fileInfo.name() + "/" + blockNum + ")";
                 LOGGER.trace(logMsg);
             }
-            block = cassDir.readFileBlock(fileInfo, blockNum);
-            this.blockNum = blockNum;
+            cassDir.recordAccess(fileInfo.name());
+            if (fileInfo.isPacked()) {
+                byte[] pack = cassDir.readPack(fileInfo);
+                if (pack == null) {
+                    throw new IOException("Pack [" + fileInfo.pack() + "] of file ["
+                            + fileInfo.name() + "] not found!");
+                }
+                // the whole file is served from the pack, without copying
+                block = pack;
+                blockStart = -fileInfo.packOffset();
+                blockEnd = fileInfo.size();
+                return;
+            }
+            byte[] data;
+            if (fileInfo.isTiered()) {
+                data = cassDir.readTieredBlock(fileInfo, blockNum, cacheInsert);
+            } else if (readAheadBlocks > 1) {
+                if (readAheadBuffer == null || blockNum < readAheadFirst
+                        || blockNum >= readAheadFirst + readAheadBuffer.length) {
+                    readAheadBuffer = cassDir.readFileBlocks(fileInfo, blockNum, readAheadBlocks,
+                            cacheInsert);
+                    readAheadFirst = blockNum;
+                }
+                data = readAheadBuffer.length > 0 ? readAheadBuffer[blockNum - readAheadFirst]
+                        : null;
+            } else {
+                data = cassDir.readFileBlock(fileInfo, blockNum, cacheInsert);
+            }
+            if (data == null && cassDir.tierStore != null) {
+                // the file may have been moved to/from the tier store meanwhile
+                FileInfo latest = cassDir.reloadFileInfo(fileInfo.name());
+                if (latest != null && isMovedCopy(fileInfo, latest)) {
+                    fileInfo = latest;
+                    readAheadBuffer = null;
+                    loadBlock(blockNum);
+                    return;
+                }
+            }
+            if (data == null) {
+                throw new IOException(
+                        "Block [" + blockNum + "] of file [" + fileInfo.name() + "] not found!");
+            }
+            block = data;
+            blockStart = (long) blockNum << BLOCK_SHIFT;
+            blockEnd = Math.min(blockStart + data.length, fileInfo.size());
+        }
+
+        /**
+         * Makes sure the current block contains a file position.
+         * 
+         * @param filePos
+         * @throws IOException
+         */
+        private void ensureBlock(long filePos) throws IOException {
+            if (filePos < blockStart || filePos >= blockEnd || block == null) {
+                loadBlock((int) (filePos >>> BLOCK_SHIFT));
+            }
+        }
+
+        /**
+         * Number of consecutive blocks fetched with one round-trip when a block
+         * is loaded (default {@code 1}: no read-ahead). Useful for sequential
+         * reads.
+         * 
+         * @param readAheadBlocks
+         * @return
+         * @since 0.1.3
+         */
+        public RedisIndexInput setReadAheadBlocks(int readAheadBlocks) {
+            this.readAheadBlocks = Math.max(1, readAheadBlocks);
+            return this;
+        }
+
+        public int getReadAheadBlocks() {
+            return readAheadBlocks;
+        }
+
+        /**
+         * Should blocks loaded by this input be put to the directory's block
+         * cache? (default {@code true})
+         * 
+         * @param cacheInsert
+         * @return
+         * @since 0.1.3
+         */
+        public RedisIndexInput setCacheInsert(boolean cacheInsert) {
+            this.cacheInsert = cacheInsert;
+            return this;
+        }
+
+        public boolean isCacheInsert() {
+            return cacheInsert;
         }
 
         /**
@@ -596,11 +3565,10 @@ public class RedisDirectory extends BaseDirectory {
             clone.offset = offset;
             clone.pos = pos;
             clone.end = end;
-            clone.blockNum = blockNum;
-            clone.blockOffset = blockOffset;
-            if (block != null) {
-                clone.block = Arrays.copyOf(block, block.length);
-            }
+            clone.blockStart = blockStart;
+            clone.blockEnd = blockEnd;
+            // blocks are never modified, clones share them
+            clone.block = block;
             clone.isSlice = this.isSlice;
             return clone;
         }
@@ -619,7 +3587,6 @@ public class RedisDirectory extends BaseDirectory {
         @Override
         public long getFilePointer() {
             return pos;
-            // return pos + offset;
         }
 
         /**
@@ -632,6 +3599,8 @@ public class RedisDirectory extends BaseDirectory {
 
         /**
          * {@inheritDoc}
+         * 
+         * @since 0.1.3 block is loaded lazily by the next read
          */
         @Override
         public void seek(long pos) throws IOException {
@@ -647,11 +3616,6 @@ public class RedisDirectory extends BaseDirectory {
             }
 
             this.pos = pos;
-            long newBlockNum = (pos + offset) / RedisDirectory.BLOCK_SIZE;
-            if (newBlockNum != blockNum) {
-                loadBlock((int) newBlockNum);
-            }
-            blockOffset = (int) ((pos + offset) % RedisDirectory.BLOCK_SIZE);
         }
 
         /**
@@ -676,38 +3640,229 @@ public class RedisDirectory extends BaseDirectory {
 
         /**
          * {@inheritDoc}
+         * 
+         * @since 0.1.3 throws {@link EOFException} when reading past the end of
+         *        input
          */
         @Override
         public byte readByte() throws IOException {
-            if (pos + offset >= end) {
-                return -1;
+            long filePos = offset + pos;
+            if (filePos >= end) {
+                throw new EOFException("Read past EOF: " + this);
             }
+            ensureBlock(filePos);
+            pos++;
+            return block[(int) (filePos - blockStart)];
+        }
 
-            if (block == null) {
-                loadBlock(blockNum);
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void readBytes(byte[] buffer, int offset, int length) throws IOException {
+            long filePos = this.offset + pos;
+            if (filePos + length > end) {
+                throw new EOFException("Read past EOF: " + this);
+            }
+            while (length > 0) {
+                ensureBlock(filePos);
+                int n = (int) Math.min(length, blockEnd - filePos);
+                System.arraycopy(block, (int) (filePos - blockStart), buffer, offset, n);
+                filePos += n;
+                offset += n;
+                length -= n;
             }
+            pos = filePos - this.offset;
+        }
 
-            byte data = block[blockOffset++];
-            pos++;
-            if (blockOffset >= RedisDirectory.BLOCK_SIZE) {
-                loadBlock(blockNum + 1);
+        /**
+         * {@inheritDoc}
+         * 
+         * @since 0.1.3
+         */
+        @Override
+        public short readShort() throws IOException {
+            long filePos = offset + pos;
+            if (block != null && filePos >= blockStart && filePos + 2 <= blockEnd
+                    && filePos + 2 <= end) {
+                pos += 2;
+                return getShort(block, (int) (filePos - blockStart));
             }
-            blockOffset = (int) ((pos + offset) % RedisDirectory.BLOCK_SIZE);
-            return data;
+            return super.readShort();
         }
 
+        /**
+         * {@inheritDoc}
+         * 
+         * @since 0.1.3
+         */
         @Override
-        public void readBytes(byte[] buffer, int offset, int length) throws IOException {
-            long t1 = System.currentTimeMillis();
-            for (int i = 0; i < length; i++) {
-                buffer[offset + i] = readByte();
+        public int readInt() throws IOException {
+            long filePos = offset + pos;
+            if (block != null && filePos >= blockStart && filePos + 4 <= blockEnd
+                    && filePos + 4 <= end) {
+                pos += 4;
+                return getInt(block, (int) (filePos - blockStart));
             }
-            long t2 = System.currentTimeMillis();
-            if (LOGGER.isTraceEnabled()) {
-                LOGGER.trace("readBytes[" + fileInfo.name() + "/" + offset + "/" + length + "] in "
-                        + (t2 - t1) + " ms");
+            return super.readInt();
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @since 0.1.3
+         */
+        @Override
+        public long readLong() throws IOException {
+            long filePos = offset + pos;
+            if (block != null && filePos >= blockStart && filePos + 8 <= blockEnd
+                    && filePos + 8 <= end) {
+                pos += 8;
+                return getLong(block, (int) (filePos - blockStart));
+            }
+            return super.readLong();
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @since 0.1.3
+         */
+        @Override
+        public int readVInt() throws IOException {
+            long filePos = offset + pos;
+            if (block != null && filePos >= blockStart && filePos + 5 <= blockEnd
+                    && filePos + 5 <= end) {
+                int idx = (int) (filePos - blockStart);
+                int result = 0;
+                for (int shift = 0; shift <= 28; shift += 7) {
+                    byte b = block[idx++];
+                    result |= (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        if (shift == 28 && (b & 0xF0) != 0) {
+                            break;
+                        }
+                        pos = idx + blockStart - offset;
+                        return result;
+                    }
+                }
+                throw new IOException("Invalid vInt detected (too many bits)");
+            }
+            return super.readVInt();
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @since 0.1.3
+         */
+        @Override
+        public long readVLong() throws IOException {
+            long filePos = offset + pos;
+            if (block != null && filePos >= blockStart && filePos + 9 <= blockEnd
+                    && filePos + 9 <= end) {
+                int idx = (int) (filePos - blockStart);
+                long result = 0;
+                for (int shift = 0; shift <= 56; shift += 7) {
+                    byte b = block[idx++];
+                    result |= (b & 0x7FL) << shift;
+                    if (b >= 0) {
+                        pos = idx + blockStart - offset;
+                        return result;
+                    }
+                }
+                throw new IOException("Invalid vLong detected (negative values disallowed)");
+            }
+            return super.readVLong();
+        }
+
+        /*----------------------------------------------------------------------*/
+        /**
+         * Converts a position of this input to a file position, checking
+         * bounds.
+         * 
+         * @param pos
+         * @param numBytes
+         * @return
+         * @throws EOFException
+         */
+        private long filePos(long pos, int numBytes) throws EOFException {
+            if (pos < 0 || offset + pos + numBytes > end) {
+                throw new EOFException("Position " + pos + " is out of range: " + this);
+            }
+            return offset + pos;
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @since 0.1.3
+         */
+        @Override
+        public byte readByte(long pos) throws IOException {
+            long filePos = filePos(pos, 1);
+            ensureBlock(filePos);
+            return block[(int) (filePos - blockStart)];
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @since 0.1.3
+         */
+        @Override
+        public short readShort(long pos) throws IOException {
+            long filePos = filePos(pos, 2);
+            ensureBlock(filePos);
+            if (filePos + 2 <= blockEnd) {
+                return getShort(block, (int) (filePos - blockStart));
+            }
+            return (short) (((readByte(pos) & 0xFF) << 8) | (readByte(pos + 1) & 0xFF));
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @since 0.1.3
+         */
+        @Override
+        public int readInt(long pos) throws IOException {
+            long filePos = filePos(pos, 4);
+            ensureBlock(filePos);
+            if (filePos + 4 <= blockEnd) {
+                return getInt(block, (int) (filePos - blockStart));
+            }
+            return ((readShort(pos) & 0xFFFF) << 16) | (readShort(pos + 2) & 0xFFFF);
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * @since 0.1.3
+         */
+        @Override
+        public long readLong(long pos) throws IOException {
+            long filePos = filePos(pos, 8);
+            ensureBlock(filePos);
+            if (filePos + 8 <= blockEnd) {
+                return getLong(block, (int) (filePos - blockStart));
             }
+            return (((long) readInt(pos)) << 32) | (readInt(pos + 4) & 0xFFFFFFFFL);
         }
+    }
+
+    /*----------------------------------------------------------------------*/
+    /* big-endian decoding, same byte order as Lucene's DataInput */
+    private static short getShort(byte[] data, int idx) {
+        return (short) (((data[idx] & 0xFF) << 8) | (data[idx + 1] & 0xFF));
+    }
+
+    private static int getInt(byte[] data, int idx) {
+        return ((data[idx] & 0xFF) << 24) | ((data[idx + 1] & 0xFF) << 16)
+                | ((data[idx + 2] & 0xFF) << 8) | (data[idx + 3] & 0xFF);
+    }
 
+    private static long getLong(byte[] data, int idx) {
+        return (((long) getInt(data, idx)) << 32) | (getInt(data, idx + 4) & 0xFFFFFFFFL);
     }
 }
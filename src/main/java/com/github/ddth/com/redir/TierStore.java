@@ -0,0 +1,55 @@
+package com.github.ddth.com.redir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Cheaper storage tier cold files of a {@link RedisDirectory} are demoted
+ * to (see {@link RedisDirectory#demoteFile(String)} and
+ * {@link TieringPolicy}), e.g. a local file system or an object store.
+ * 
+ * <p>
+ * Objects are written once and read with random, block-sized range reads.
+ * Implementations must be thread-safe.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public interface TierStore {
+    /**
+     * Stores an object, replacing any existing object with the same key. The
+     * object must not be visible before it is completely written.
+     * 
+     * @param key
+     * @param in
+     * @param length
+     * @throws IOException
+     */
+    public void put(String key, InputStream in, long length) throws IOException;
+
+    /**
+     * Reads a range of an object.
+     * 
+     * @param key
+     * @param position
+     * @param dest
+     * @param offset
+     * @param length
+     * @throws FileNotFoundException
+     *             if the object does not exist
+     * @throws IOException
+     *             if the range could not be read completely
+     */
+    public void read(String key, long position, byte[] dest, int offset, int length)
+            throws IOException;
+
+    /**
+     * Removes an object, does nothing if it does not exist.
+     * 
+     * @param key
+     * @throws IOException
+     */
+    public void delete(String key) throws IOException;
+}
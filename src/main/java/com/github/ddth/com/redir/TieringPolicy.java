@@ -0,0 +1,283 @@
+package com.github.ddth.com.redir;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.ddth.com.redir.internal.AccessTracker;
+
+/**
+ * Moves files of cold segments of a {@link RedisDirectory} to its
+ * {@link TierStore} (see {@link RedisDirectory#demoteFile(String)}), and
+ * optionally back to Redis when they become hot again.
+ * 
+ * <p>
+ * A segment of the latest commit is demoted when all of:
+ * </p>
+ * <ul>
+ * <li>it is at least {@link #getMinSegmentBytes()} big,</li>
+ * <li>it was created at least {@link #getMinAgeMs()} ago,</li>
+ * <li>it has not been read through the directory instance for at least
+ * {@link #getIdleMs()} (see {@link RedisDirectory#getAccessTracker()}).</li>
+ * </ul>
+ * 
+ * <p>
+ * A demoted segment read at least {@link #getPromoteReads()} times between
+ * two runs is promoted back to Redis ({@code 0}: never).
+ * </p>
+ * 
+ * <p>
+ * Note: access statistics are local to the directory instance. Run the
+ * policy on an instance that serves the searches (or on each searching
+ * instance, the switch of a file's metadata is atomic).
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class TieringPolicy {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(TieringPolicy.class);
+
+    public final static long DEFAULT_MIN_SEGMENT_BYTES = 16 * 1024 * 1024;
+    public final static long DEFAULT_MIN_AGE_MS = 3600000;
+    public final static long DEFAULT_IDLE_MS = 3600000;
+
+    private final static String SI_EXTENSION = "si";
+
+    private RedisDirectory redisDir;
+    private long minSegmentBytes = DEFAULT_MIN_SEGMENT_BYTES;
+    private long minAgeMs = DEFAULT_MIN_AGE_MS;
+    private long idleMs = DEFAULT_IDLE_MS;
+    private long promoteReads = 0;
+
+    private Map<String, Long> lastReads = new HashMap<String, Long>();
+    private ScheduledExecutorService scheduler;
+    private Result lastResult;
+
+    public TieringPolicy(RedisDirectory redisDir) {
+        this.redisDir = redisDir;
+    }
+
+    /**
+     * Smaller segments stay in Redis.
+     * 
+     * @return
+     */
+    public long getMinSegmentBytes() {
+        return minSegmentBytes;
+    }
+
+    public TieringPolicy setMinSegmentBytes(long minSegmentBytes) {
+        this.minSegmentBytes = Math.max(0, minSegmentBytes);
+        return this;
+    }
+
+    /**
+     * Newer segments stay in Redis.
+     * 
+     * @return
+     */
+    public long getMinAgeMs() {
+        return minAgeMs;
+    }
+
+    public TieringPolicy setMinAgeMs(long minAgeMs) {
+        this.minAgeMs = Math.max(0, minAgeMs);
+        return this;
+    }
+
+    /**
+     * Segments read more recently stay in Redis.
+     * 
+     * @return
+     */
+    public long getIdleMs() {
+        return idleMs;
+    }
+
+    public TieringPolicy setIdleMs(long idleMs) {
+        this.idleMs = Math.max(0, idleMs);
+        return this;
+    }
+
+    /**
+     * Number of block loads between two runs that makes a demoted segment
+     * promoted back to Redis ({@code 0}: never promote).
+     * 
+     * @return
+     */
+    public long getPromoteReads() {
+        return promoteReads;
+    }
+
+    public TieringPolicy setPromoteReads(long promoteReads) {
+        this.promoteReads = Math.max(0, promoteReads);
+        return this;
+    }
+
+    /**
+     * Result of the last run.
+     * 
+     * @return {@code null} if not run yet
+     */
+    public Result getLastResult() {
+        return lastResult;
+    }
+
+    /*----------------------------------------------------------------------*/
+    /**
+     * Runs the policy periodically in a background thread.
+     * 
+     * @param intervalMs
+     * @return
+     */
+    synchronized public TieringPolicy start(long intervalMs) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "redir-tiering-" + redisDir.getHashFileData());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runOnce();
+                    } catch (Exception e) {
+                        LOGGER.warn(e.getMessage(), e);
+                    }
+                }
+            }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Stops the background thread.
+     */
+    synchronized public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Checks all segments of the latest commit once.
+     * 
+     * @return
+     * @throws IOException
+     */
+    synchronized public Result runOnce() throws IOException {
+        long t1 = System.currentTimeMillis();
+        Result result = new Result();
+        SegmentInfos sis;
+        try {
+            sis = SegmentInfos.readLatestCommit(redisDir);
+        } catch (IndexNotFoundException e) {
+            lastResult = result;
+            return result;
+        }
+        AccessTracker tracker = redisDir.getAccessTracker();
+        Map<String, Long> reads = new HashMap<String, Long>();
+        Set<String> segments = new HashSet<String>();
+        long now = System.currentTimeMillis();
+        for (SegmentCommitInfo sci : sis) {
+            String segment = sci.info.name;
+            segments.add(segment);
+            result.segmentsScanned++;
+            long numReads = tracker.getReads(segment);
+            reads.put(segment, numReads);
+            Long lastNumReads = lastReads.get(segment);
+            long readsSinceLastRun = numReads - (lastNumReads != null ? lastNumReads : 0);
+
+            boolean tiered = false;
+            for (String file : sci.files()) {
+                FileInfo fileInfo = redisDir.getFileInfo(file);
+                if (fileInfo != null && fileInfo.isTiered()) {
+                    tiered = true;
+                    break;
+                }
+            }
+            if (tiered) {
+                if (promoteReads > 0 && readsSinceLastRun >= promoteReads) {
+                    result.segmentsPromoted++;
+                    for (String file : sci.files()) {
+                        if (redisDir.promoteFile(file)) {
+                            result.filesPromoted++;
+                            result.bytesPromoted += redisDir.fileLength(file);
+                        }
+                    }
+                }
+                continue;
+            }
+            if (sci.sizeInBytes() < minSegmentBytes
+                    || now - tracker.getLastAccess(segment) < idleMs) {
+                continue;
+            }
+            FileInfo si = redisDir
+                    .getFileInfo(IndexFileNames.segmentFileName(segment, "", SI_EXTENSION));
+            if (si != null && si.timestamp() > 0 && now - si.timestamp() < minAgeMs) {
+                continue;
+            }
+            result.segmentsDemoted++;
+            for (String file : sci.files()) {
+                if (redisDir.demoteFile(file)) {
+                    result.filesDemoted++;
+                    result.bytesDemoted += redisDir.fileLength(file);
+                }
+            }
+        }
+        // forget segments merged away
+        for (String segment : lastReads.keySet()) {
+            if (!segments.contains(segment)) {
+                tracker.remove(segment);
+            }
+        }
+        lastReads = reads;
+        result.durationMs = System.currentTimeMillis() - t1;
+        lastResult = result;
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Tiering [" + redisDir.getHashDirectoryMetadata() + "]: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * Result of a run.
+     */
+    public static class Result {
+        public long segmentsScanned;
+        public long segmentsDemoted, filesDemoted, bytesDemoted;
+        public long segmentsPromoted, filesPromoted, bytesPromoted;
+        public long durationMs;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "segments scanned: " + segmentsScanned + ", demoted: " + segmentsDemoted + " ("
+                    + filesDemoted + " files, " + bytesDemoted + " bytes), promoted: "
+                    + segmentsPromoted + " (" + filesPromoted + " files, " + bytesPromoted
+                    + " bytes), in " + durationMs + " ms";
+        }
+    }
+}
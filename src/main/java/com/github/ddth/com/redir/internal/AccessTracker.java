@@ -0,0 +1,81 @@
+package com.github.ddth.com.redir.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory access statistics of index segments (local to a directory
+ * instance): number of block loads and time of the last access.
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class AccessTracker {
+
+    private final long startTime = System.currentTimeMillis();
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * Time this tracker was created: segments never accessed are considered
+     * last accessed at this time.
+     * 
+     * @return
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Records an access to a segment.
+     * 
+     * @param segment
+     */
+    public void record(String segment) {
+        Stats s = stats.get(segment);
+        if (s == null) {
+            Stats existing = stats.putIfAbsent(segment, s = new Stats());
+            if (existing != null) {
+                s = existing;
+            }
+        }
+        s.reads.incrementAndGet();
+        s.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Number of recorded accesses to a segment.
+     * 
+     * @param segment
+     * @return
+     */
+    public long getReads(String segment) {
+        Stats s = stats.get(segment);
+        return s != null ? s.reads.get() : 0;
+    }
+
+    /**
+     * Time of the last recorded access to a segment.
+     * 
+     * @param segment
+     * @return {@link #getStartTime()} if never accessed
+     */
+    public long getLastAccess(String segment) {
+        Stats s = stats.get(segment);
+        return s != null ? s.lastAccess : startTime;
+    }
+
+    /**
+     * Forgets a segment (e.g. merged away).
+     * 
+     * @param segment
+     */
+    public void remove(String segment) {
+        stats.remove(segment);
+    }
+
+    private static class Stats {
+        final AtomicLong reads = new AtomicLong();
+        volatile long lastAccess;
+    }
+}
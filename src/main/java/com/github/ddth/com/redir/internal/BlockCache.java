@@ -0,0 +1,125 @@
+package com.github.ddth.com.redir.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory LRU cache of file blocks, keyed by block key.
+ * 
+ * <p>
+ * The cache is split into segments (each one a LRU map guarded by its own
+ * lock) to reduce contention between concurrent readers.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class BlockCache {
+
+    private final static int NUM_SEGMENTS = 16;
+
+    private final int capacity;
+    private final Segment[] segments;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * 
+     * @param capacity
+     *            max number of cached blocks
+     */
+    public BlockCache(int capacity) {
+        this.capacity = capacity;
+        int numSegments = Math.max(1, Math.min(NUM_SEGMENTS, capacity));
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment(Math.max(1, capacity / numSegments));
+        }
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7FFFFFFF) % segments.length];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets a cached block.
+     * 
+     * @param key
+     * @return {@code null} if block is not cached
+     */
+    public byte[] get(String key) {
+        Segment segment = segment(key);
+        byte[] result;
+        synchronized (segment) {
+            result = segment.get(key);
+        }
+        (result != null ? hits : misses).incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Puts a block to cache, evicting the least recently used block if needed.
+     * 
+     * @param key
+     * @param data
+     */
+    public void put(String key, byte[] data) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, data);
+        }
+    }
+
+    /**
+     * Removes a block from cache.
+     * 
+     * @param key
+     */
+    public void remove(String key) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    /**
+     * Removes all blocks from cache.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private static class Segment extends LinkedHashMap<String, byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        public Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > capacity;
+        }
+    }
+}
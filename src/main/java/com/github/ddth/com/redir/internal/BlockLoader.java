@@ -0,0 +1,213 @@
+package com.github.ddth.com.redir.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads blocks by key, coalescing concurrent loads:
+ * 
+ * <ul>
+ * <li>concurrent requests for the same key share one in-flight fetch and its
+ * resulting buffer (single-flight),</li>
+ * <li>at most {@link #getMaxConcurrency()} fetches are in flight at a time;
+ * keys requested meanwhile are queued and fetched together by the next
+ * fetch, up to {@link #getMaxBatchSize()} keys per fetch.</li>
+ * </ul>
+ * 
+ * <p>
+ * Under low load every request is fetched immediately; batching only kicks
+ * in when requests pile up (e.g. many threads hitting cold blocks right after
+ * a reader refresh). Fetches are executed by the requesting threads, no
+ * background thread is used.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class BlockLoader {
+
+    /**
+     * Fetches blocks from storage.
+     */
+    public interface Fetcher {
+        /**
+         * 
+         * @param keys
+         * @return block data, in the same order as {@code keys}, {@code null}
+         *         elements for blocks that do not exist
+         * @throws IOException
+         */
+        List<byte[]> fetch(List<String> keys) throws IOException;
+    }
+
+    public final static int DEFAULT_MAX_BATCH_SIZE = 32;
+
+    private final Fetcher fetcher;
+    private int maxConcurrency;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    /* guarded by this */
+    private final Map<String, Flight> inFlight = new HashMap<String, Flight>();
+    private final Queue<Flight> pending = new ArrayDeque<Flight>();
+    private int numFetching = 0;
+
+    private final AtomicLong numLoads = new AtomicLong(), numCoalesced = new AtomicLong(),
+            numFetches = new AtomicLong();
+
+    /**
+     * 
+     * @param fetcher
+     * @param maxConcurrency
+     *            max number of fetches in flight
+     */
+    public BlockLoader(Fetcher fetcher, int maxConcurrency) {
+        this.fetcher = fetcher;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public BlockLoader setMaxConcurrency(int maxConcurrency) {
+        synchronized (this) {
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+            notifyAll();
+        }
+        return this;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public BlockLoader setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        return this;
+    }
+
+    /**
+     * Number of {@link #load(String)} calls.
+     * 
+     * @return
+     */
+    public long getNumLoads() {
+        return numLoads.get();
+    }
+
+    /**
+     * Number of loads served by another thread's in-flight fetch of the same
+     * key.
+     * 
+     * @return
+     */
+    public long getNumCoalesced() {
+        return numCoalesced.get();
+    }
+
+    /**
+     * Number of fetches sent to storage.
+     * 
+     * @return
+     */
+    public long getNumFetches() {
+        return numFetches.get();
+    }
+
+    /**
+     * Loads a block.
+     * 
+     * @param key
+     * @return {@code null} if the block does not exist; the returned buffer
+     *         may be shared with other callers and must not be modified
+     * @throws IOException
+     */
+    public byte[] load(String key) throws IOException {
+        numLoads.incrementAndGet();
+        Flight flight;
+        synchronized (this) {
+            flight = inFlight.get(key);
+            if (flight == null) {
+                flight = new Flight(key);
+                inFlight.put(key, flight);
+                pending.add(flight);
+            } else {
+                numCoalesced.incrementAndGet();
+            }
+        }
+        while (true) {
+            List<Flight> batch;
+            synchronized (this) {
+                while (!flight.done && (numFetching >= maxConcurrency || pending.isEmpty())) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(e.getMessage());
+                    }
+                }
+                if (flight.done) {
+                    break;
+                }
+                // fetch whatever is pending, own key included if not taken yet
+                numFetching++;
+                batch = new ArrayList<Flight>(Math.min(pending.size(), maxBatchSize));
+                while (batch.size() < maxBatchSize && !pending.isEmpty()) {
+                    batch.add(pending.poll());
+                }
+            }
+            fetch(batch);
+        }
+        if (flight.error != null) {
+            throw flight.error;
+        }
+        return flight.data;
+    }
+
+    private void fetch(List<Flight> batch) {
+        List<byte[]> result = null;
+        IOException error = null;
+        try {
+            List<String> keys = new ArrayList<String>(batch.size());
+            for (Flight flight : batch) {
+                keys.add(flight.key);
+            }
+            numFetches.incrementAndGet();
+            result = fetcher.fetch(keys);
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException(e);
+        } finally {
+            synchronized (this) {
+                for (int i = 0, n = batch.size(); i < n; i++) {
+                    Flight flight = batch.get(i);
+                    flight.data = result != null ? result.get(i) : null;
+                    flight.error = error;
+                    flight.done = true;
+                    inFlight.remove(flight.key);
+                }
+                numFetching--;
+                notifyAll();
+            }
+        }
+    }
+
+    private static class Flight {
+        final String key;
+        byte[] data;
+        IOException error;
+        boolean done = false;
+
+        Flight(String key) {
+            this.key = key;
+        }
+    }
+}
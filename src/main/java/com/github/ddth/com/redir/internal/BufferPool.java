@@ -0,0 +1,124 @@
+package com.github.ddth.com.redir.internal;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of fixed-size byte buffers, recycled instead of being left to
+ * the garbage collector (e.g. block buffers of {@code IndexOutput}s, which
+ * would otherwise produce a steady stream of short-lived arrays during
+ * merges).
+ *
+ * <p>
+ * A released buffer must not be used by its previous owner anymore. Buffers
+ * are not cleared when recycled.
+ * </p>
+ *
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private int maxBuffers;
+
+    /* guarded by itself */
+    private final Deque<byte[]> buffers = new ArrayDeque<byte[]>();
+
+    private final AtomicLong numAcquired = new AtomicLong(), numAllocated = new AtomicLong();
+
+    /**
+     *
+     * @param bufferSize
+     * @param maxBuffers
+     *            max number of idle buffers kept ({@code 0}: no pooling)
+     */
+    public BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = Math.max(0, maxBuffers);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    public BufferPool setMaxBuffers(int maxBuffers) {
+        synchronized (buffers) {
+            this.maxBuffers = Math.max(0, maxBuffers);
+            while (buffers.size() > this.maxBuffers) {
+                buffers.pollLast();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Number of idle buffers currently pooled.
+     *
+     * @return
+     */
+    public int getNumIdle() {
+        synchronized (buffers) {
+            return buffers.size();
+        }
+    }
+
+    /**
+     * Number of {@link #acquire()} calls.
+     *
+     * @return
+     */
+    public long getNumAcquired() {
+        return numAcquired.get();
+    }
+
+    /**
+     * Number of {@link #acquire()} calls that allocated a new buffer.
+     *
+     * @return
+     */
+    public long getNumAllocated() {
+        return numAllocated.get();
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates a new one if the pool is
+     * empty.
+     *
+     * @return
+     */
+    public byte[] acquire() {
+        numAcquired.incrementAndGet();
+        byte[] buffer;
+        synchronized (buffers) {
+            buffer = buffers.pollFirst();
+        }
+        if (buffer == null) {
+            numAllocated.incrementAndGet();
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers of another size, and buffers in
+     * excess of {@link #getMaxBuffers()}, are dropped.
+     *
+     * @param buffer
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) {
+            return;
+        }
+        synchronized (buffers) {
+            if (buffers.size() < maxBuffers) {
+                buffers.addFirst(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.github.ddth.com.redir.internal;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.util.Pool;
+
+/**
+ * Thread-local connection affinity on top of a {@link JedisPool}: a thread
+ * keeps the connection it borrowed after closing it, and gets it back on its
+ * next {@link #acquire()} without going through the pool. A connection is
+ * returned to the pool once it has been idle for {@link #getIdleMs()} (by a
+ * background reaper), or if it is broken.
+ * 
+ * <p>
+ * Sequential streams (e.g. a merge reading its inputs and writing its
+ * output, block after block) thus reuse one connection for their whole life
+ * instead of contending on the pool for each block. Connections are closed
+ * as usual ({@code try (Jedis jedis = affinity.acquire()) {...}}). Nested
+ * acquisitions within the same thread get separate connections from the
+ * pool.
+ * </p>
+ * 
+ * <p>
+ * Kept connections are not available to other threads: with more threads
+ * than pooled connections, a thread may find the pool exhausted by
+ * connections idling in other threads' leases. Idle leases are therefore
+ * given back to the pool before borrowing from a pool without idle
+ * connections, when a kept connection is closed while other threads wait
+ * for the pool, and by the reaper (at least every
+ * {@link #WAITERS_CHECK_MS} ms) whenever threads wait for the pool. A waiting
+ * thread may still wait for up to that long; size the pool for the number
+ * of threads using it to avoid this.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class ConnectionAffinity {
+
+    public final static long DEFAULT_IDLE_MS = 1000;
+
+    /**
+     * Max interval between two checks for threads waiting for the pool.
+     */
+    public final static long WAITERS_CHECK_MS = 50;
+
+    private final JedisPool pool;
+    private long idleMs = DEFAULT_IDLE_MS;
+    private volatile boolean closed = false;
+
+    private final ThreadLocal<Lease> leases = new ThreadLocal<Lease>();
+    /* leases holding a connection */
+    private final Set<Lease> held = Collections
+            .newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+    private ScheduledExecutorService reaper;
+
+    private final AtomicLong numAcquired = new AtomicLong(), numReused = new AtomicLong(),
+            numReleased = new AtomicLong();
+
+    public ConnectionAffinity(JedisPool pool) {
+        this.pool = pool;
+    }
+
+    public JedisPool getPool() {
+        return pool;
+    }
+
+    /**
+     * A connection kept by a thread is returned to the pool after being idle
+     * for this long.
+     * 
+     * @return
+     */
+    public long getIdleMs() {
+        return idleMs;
+    }
+
+    synchronized public ConnectionAffinity setIdleMs(long idleMs) {
+        this.idleMs = Math.max(0, idleMs);
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+            startReaper();
+        }
+        return this;
+    }
+
+    /**
+     * Number of {@link #acquire()} calls.
+     * 
+     * @return
+     */
+    public long getNumAcquired() {
+        return numAcquired.get();
+    }
+
+    /**
+     * Number of {@link #acquire()} calls served by the calling thread's kept
+     * connection (no pool access).
+     * 
+     * @return
+     */
+    public long getNumReused() {
+        return numReused.get();
+    }
+
+    /**
+     * Number of kept connections returned to the pool.
+     * 
+     * @return
+     */
+    public long getNumReleased() {
+        return numReleased.get();
+    }
+
+    /**
+     * Number of connections currently kept by threads (in use or idle).
+     * 
+     * @return
+     */
+    public int getNumHeld() {
+        return held.size();
+    }
+
+    /**
+     * Gets a connection: the calling thread's kept connection if any and not
+     * in use, a connection from the pool otherwise. Close it after use.
+     * 
+     * @return
+     */
+    public Jedis acquire() {
+        numAcquired.incrementAndGet();
+        if (closed) {
+            return pool.getResource();
+        }
+        Lease lease = leases.get();
+        if (lease == null) {
+            lease = new Lease();
+            leases.set(lease);
+        }
+        boolean nested;
+        synchronized (lease) {
+            nested = lease.inUse;
+            if (!nested) {
+                lease.inUse = true;
+                if (lease.jedis != null) {
+                    numReused.incrementAndGet();
+                    return lease.jedis;
+                }
+            }
+        }
+        // borrow without holding the lease's monitor: borrow() may lock other
+        // threads' leases
+        if (nested) {
+            // nested use within the same thread
+            return borrow();
+        }
+        Jedis jedis;
+        try {
+            jedis = borrow();
+        } catch (RuntimeException e) {
+            synchronized (lease) {
+                lease.inUse = false;
+            }
+            throw e;
+        }
+        synchronized (lease) {
+            // closing the connection now returns it to the lease
+            jedis.setDataSource(lease);
+            lease.jedis = jedis;
+            held.add(lease);
+        }
+        startReaper();
+        return jedis;
+    }
+
+    /**
+     * Borrows a connection from the pool, first giving idle leases back if
+     * the pool has no idle connection (the borrower might otherwise wait for
+     * connections nobody uses).
+     * 
+     * @return
+     */
+    private Jedis borrow() {
+        if (pool.getNumIdle() == 0) {
+            reapIdle(Long.MAX_VALUE);
+        }
+        return pool.getResource();
+    }
+
+    synchronized private void startReaper() {
+        if (reaper != null || closed) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "redir-connection-reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long interval = Math.max(10, Math.min(WAITERS_CHECK_MS, idleMs / 2));
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reapIdle(pool.getNumWaiters() > 0 ? Long.MAX_VALUE
+                        : System.currentTimeMillis() - idleMs);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns connections idle since before {@code idleSince} to the pool
+     * ({@link Long#MAX_VALUE}: all idle connections).
+     * 
+     * @param idleSince
+     */
+    private void reapIdle(long idleSince) {
+        for (Lease lease : held) {
+            synchronized (lease) {
+                if (!lease.inUse && lease.lastUsed <= idleSince) {
+                    lease.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns all idle connections to the pool; connections in use are
+     * returned when closed.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (reaper != null) {
+                reaper.shutdownNow();
+                reaper = null;
+            }
+        }
+        reapIdle(Long.MAX_VALUE);
+    }
+
+    /**
+     * A thread's kept connection. Set as data source of the connection, so
+     * that {@link Jedis#close()} hands it back here instead of to the pool.
+     */
+    private class Lease extends Pool<Jedis> {
+        Jedis jedis;
+        boolean inUse;
+        long lastUsed;
+
+        /**
+         * Returns the connection to the pool, as broken if its client is
+         * (caller must hold this lease's monitor).
+         */
+        private void release() {
+            Jedis jedis = this.jedis;
+            this.jedis = null;
+            inUse = false;
+            held.remove(this);
+            if (jedis != null) {
+                numReleased.incrementAndGet();
+                jedis.setDataSource(pool);
+                jedis.close();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        synchronized public void returnResource(Jedis resource) {
+            if (resource != jedis) {
+                return;
+            }
+            inUse = false;
+            lastUsed = System.currentTimeMillis();
+            if (closed || pool.getNumWaiters() > 0) {
+                release();
+            } else {
+                resource.resetState();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        synchronized public void returnBrokenResource(Jedis resource) {
+            if (resource == jedis) {
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.github.ddth.com.redir.internal;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.ddth.com.redir.FileInfo;
+
+/**
+ * Local cache of file existence: names recently found missing (negative
+ * entries, expire after a TTL), files created by the local directory
+ * instance (kept until deleted or renamed) and metadata fetched ahead of use
+ * in batches (expire after a TTL).
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class FileInfoCache {
+
+    /**
+     * Prefetched metadata is not kept by default: serving it from memory
+     * hides changes made by other processes for up to the TTL.
+     */
+    public final static long DEFAULT_PREFETCH_TTL_MS = 0;
+
+    /**
+     * Expired negative entries are purged when the number of entries exceeds
+     * this value.
+     */
+    private final static int PURGE_THRESHOLD = 1024;
+
+    private long negativeTtlMs = 0;
+    private boolean trackCreated = false;
+    private final ConcurrentMap<String, Long> missing = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, FileInfo> created = new ConcurrentHashMap<String, FileInfo>(
+            16);
+    private long prefetchTtlMs = DEFAULT_PREFETCH_TTL_MS;
+    private final ConcurrentMap<String, Prefetched> prefetched = new ConcurrentHashMap<String, Prefetched>(
+            16);
+    private final AtomicLong hits = new AtomicLong();
+
+    public long getNegativeTtlMs() {
+        return negativeTtlMs;
+    }
+
+    public FileInfoCache setNegativeTtlMs(long negativeTtlMs) {
+        this.negativeTtlMs = Math.max(0, negativeTtlMs);
+        if (this.negativeTtlMs == 0) {
+            missing.clear();
+        }
+        return this;
+    }
+
+    public long getPrefetchTtlMs() {
+        return prefetchTtlMs;
+    }
+
+    public FileInfoCache setPrefetchTtlMs(long prefetchTtlMs) {
+        this.prefetchTtlMs = Math.max(0, prefetchTtlMs);
+        if (this.prefetchTtlMs == 0) {
+            prefetched.clear();
+        }
+        return this;
+    }
+
+    public boolean isTrackCreated() {
+        return trackCreated;
+    }
+
+    public FileInfoCache setTrackCreated(boolean trackCreated) {
+        this.trackCreated = trackCreated;
+        if (!trackCreated) {
+            created.clear();
+        }
+        return this;
+    }
+
+    /**
+     * Number of lookups answered without fetching metadata.
+     * 
+     * @return
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Looks up a file created locally.
+     * 
+     * @param name
+     * @return
+     */
+    public FileInfo getCreated(String name) {
+        FileInfo result = trackCreated ? created.get(name) : null;
+        if (result != null) {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Is a file known to be missing?
+     * 
+     * @param name
+     * @return
+     */
+    public boolean isMissing(String name) {
+        if (negativeTtlMs <= 0) {
+            return false;
+        }
+        Long expiry = missing.get(name);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry.longValue() < System.currentTimeMillis()) {
+            missing.remove(name, expiry);
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Looks up metadata fetched ahead of use.
+     * 
+     * @param name
+     * @return {@code null} if not prefetched or expired
+     */
+    public FileInfo getPrefetched(String name) {
+        Prefetched entry = prefetched.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiry < System.currentTimeMillis()) {
+            prefetched.remove(name, entry);
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.fileInfo;
+    }
+
+    /**
+     * Records metadata fetched ahead of use.
+     * 
+     * @param fileInfo
+     */
+    public void putPrefetched(FileInfo fileInfo) {
+        if (prefetchTtlMs <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (prefetched.size() >= PURGE_THRESHOLD) {
+            Iterator<Entry<String, Prefetched>> it = prefetched.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue().expiry < now) {
+                    it.remove();
+                }
+            }
+        }
+        missing.remove(fileInfo.name());
+        prefetched.put(fileInfo.name(), new Prefetched(fileInfo, now + prefetchTtlMs));
+    }
+
+    /**
+     * Records that a file does not exist.
+     * 
+     * @param name
+     */
+    public void putMissing(String name) {
+        created.remove(name);
+        prefetched.remove(name);
+        if (negativeTtlMs <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (missing.size() >= PURGE_THRESHOLD) {
+            Iterator<Entry<String, Long>> it = missing.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue().longValue() < now) {
+                    it.remove();
+                }
+            }
+        }
+        missing.put(name, now + negativeTtlMs);
+    }
+
+    /**
+     * Records that a file exists (e.g. it has just been created).
+     * 
+     * @param fileInfo
+     * @param local
+     *            created by the local directory instance?
+     */
+    public void putExisting(FileInfo fileInfo, boolean local) {
+        missing.remove(fileInfo.name());
+        prefetched.remove(fileInfo.name());
+        if (local && trackCreated) {
+            created.put(fileInfo.name(), fileInfo);
+        } else {
+            created.remove(fileInfo.name());
+        }
+    }
+
+    /**
+     * Forgets everything known about a file.
+     * 
+     * @param name
+     */
+    public void invalidate(String name) {
+        missing.remove(name);
+        created.remove(name);
+        prefetched.remove(name);
+    }
+
+    public void clear() {
+        missing.clear();
+        created.clear();
+        prefetched.clear();
+    }
+
+    private static class Prefetched {
+        final FileInfo fileInfo;
+        final long expiry;
+
+        Prefetched(FileInfo fileInfo, long expiry) {
+            this.fileInfo = fileInfo;
+            this.expiry = expiry;
+        }
+    }
+}
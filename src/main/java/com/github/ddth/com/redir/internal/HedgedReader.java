@@ -0,0 +1,260 @@
+package com.github.ddth.com.redir.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Executes read commands with a deadline and optional hedging: if the first
+ * attempt has not completed after a delay derived from a percentile of recent
+ * read latencies, a second attempt is sent (to a replica, or through another
+ * connection) and the first response wins. A response of a replica wins only
+ * if it is complete: blocks just written on the primary may not have reached
+ * the replica yet.
+ * 
+ * <p>
+ * Attempts run on a dedicated, unbounded pool of daemon threads, so that they
+ * never queue behind each other or behind other I/O tasks: the deadline, the
+ * hedging delay and the recorded latencies all measure the read itself.
+ * </p>
+ * 
+ * <p>
+ * A late attempt is not interrupted (Jedis does not support it): it keeps its
+ * connection until it completes or the socket times out, so the pools should
+ * have some spare connections.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class HedgedReader {
+
+    /**
+     * A read command.
+     * 
+     * @param <T>
+     */
+    public interface Command<T> {
+        T execute(Jedis jedis);
+
+        /**
+         * Does a result contain everything that was asked for? An incomplete
+         * result of a hedged attempt sent to a replica is not accepted (the
+         * replica may lag behind the primary).
+         * 
+         * @param result
+         * @return
+         */
+        boolean isComplete(T result);
+    }
+
+    private final LatencyTracker latencies = new LatencyTracker(1024);
+    private final AtomicLong numReads = new AtomicLong(), numHedges = new AtomicLong(),
+            numHedgeWins = new AtomicLong(), numHedgesIncomplete = new AtomicLong(),
+            numTimeouts = new AtomicLong();
+    private ExecutorService executor;
+
+    public LatencyTracker getLatencies() {
+        return latencies;
+    }
+
+    public long getNumReads() {
+        return numReads.get();
+    }
+
+    /**
+     * Number of hedged (second) attempts sent.
+     * 
+     * @return
+     */
+    public long getNumHedges() {
+        return numHedges.get();
+    }
+
+    /**
+     * Number of reads won by the hedged attempt.
+     * 
+     * @return
+     */
+    public long getNumHedgeWins() {
+        return numHedgeWins.get();
+    }
+
+    /**
+     * Number of hedged attempts whose result was discarded because it was
+     * incomplete.
+     * 
+     * @return
+     */
+    public long getNumHedgesIncomplete() {
+        return numHedgesIncomplete.get();
+    }
+
+    /**
+     * Number of reads that failed because of the deadline.
+     * 
+     * @return
+     */
+    public long getNumTimeouts() {
+        return numTimeouts.get();
+    }
+
+    synchronized private ExecutorService executor() {
+        if (executor == null) {
+            final AtomicInteger threadNum = new AtomicInteger();
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "redir-read-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    synchronized public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private <T> Callable<T> attempt(final JedisPool pool, final Command<T> command) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long t1 = System.nanoTime();
+                try (Jedis jedis = pool.getResource()) {
+                    T result = command.execute(jedis);
+                    latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t1));
+                    return result;
+                }
+            }
+        };
+    }
+
+    /**
+     * Executes a read command.
+     * 
+     * @param primary
+     *            pool used by the first attempt
+     * @param secondary
+     *            pool used by the hedged attempt; if it is not the primary
+     *            pool, an incomplete result of the hedged attempt (see
+     *            {@link Command#isComplete(Object)}) is discarded, and the
+     *            read waits for the first attempt
+     * @param command
+     * @param hedgePercentile
+     *            the hedged attempt is sent after this percentile of recent
+     *            read latencies ({@code 0}: no hedging)
+     * @param minHedgeDelayMs
+     *            lower bound of the hedging delay
+     * @param timeoutMs
+     *            deadline of the read ({@code 0}: no deadline)
+     * @return
+     * @throws IOException
+     *             if the deadline is exceeded, or all attempts failed with a
+     *             checked exception
+     */
+    public <T> T execute(JedisPool primary, JedisPool secondary, Command<T> command,
+            double hedgePercentile, long minHedgeDelayMs, long timeoutMs) throws IOException {
+        numReads.incrementAndGet();
+        long start = System.nanoTime();
+        boolean hasDeadline = timeoutMs > 0;
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        boolean canHedge = false;
+        long hedgeAt = 0;
+        if (hedgePercentile > 0) {
+            long p = latencies.percentile(hedgePercentile);
+            canHedge = p >= 0;
+            hedgeAt = start + Math.max(TimeUnit.MICROSECONDS.toNanos(p),
+                    TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMs));
+        }
+
+        ExecutorCompletionService<T> ecs = new ExecutorCompletionService<T>(executor());
+        List<Future<T>> futures = new ArrayList<Future<T>>(2);
+        futures.add(ecs.submit(attempt(primary, command)));
+        int pending = 1;
+        Throwable lastError = null;
+        try {
+            while (pending > 0) {
+                Future<T> done;
+                if (canHedge || hasDeadline) {
+                    long waitUntil = canHedge && (!hasDeadline || hedgeAt - deadline < 0) ? hedgeAt
+                            : deadline;
+                    done = ecs.poll(waitUntil - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } else {
+                    done = ecs.take();
+                }
+                if (done == null) {
+                    if (canHedge && (!hasDeadline || System.nanoTime() - deadline < 0)) {
+                        // first attempt is slow: hedge
+                        canHedge = false;
+                        numHedges.incrementAndGet();
+                        futures.add(ecs.submit(attempt(secondary, command)));
+                        pending++;
+                        continue;
+                    }
+                    numTimeouts.incrementAndGet();
+                    throw new IOException("Read timed out after " + timeoutMs + " ms");
+                }
+                pending--;
+                try {
+                    T result = done.get();
+                    if (done == futures.get(0)) {
+                        return result;
+                    }
+                    if (secondary == primary || command.isComplete(result)) {
+                        numHedgeWins.incrementAndGet();
+                        return result;
+                    }
+                    // lagging replica: the first attempt has the final word
+                    numHedgesIncomplete.incrementAndGet();
+                } catch (ExecutionException e) {
+                    lastError = e.getCause();
+                    if (canHedge) {
+                        // first attempt failed: hedge right away
+                        canHedge = false;
+                        numHedges.incrementAndGet();
+                        futures.add(ecs.submit(attempt(secondary, command)));
+                        pending++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(false);
+            }
+        }
+        if (lastError instanceof RuntimeException) {
+            throw (RuntimeException) lastError;
+        }
+        if (lastError instanceof Error) {
+            throw (Error) lastError;
+        }
+        throw lastError instanceof IOException ? (IOException) lastError
+                : new IOException(lastError);
+    }
+}
@@ -0,0 +1,305 @@
+package com.github.ddth.com.redir.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor of concurrent Redis I/O.
+ * 
+ * <p>
+ * Uses virtual threads if the runtime supports them (Java 21+), a bounded
+ * pool of daemon threads otherwise. Batch operations fanned out with
+ * {@link #invokeAll(List, int)} are limited to {@link #getConcurrency()}
+ * tasks in flight, which should not exceed the size of the connection pool.
+ * Fan-outs from inside a task run inline, so nested batch operations never
+ * wait for permits held by their parents.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class IoExecutor {
+
+    private final static ThreadLocal<Boolean> IN_TASK = new ThreadLocal<Boolean>();
+
+    private final int concurrency;
+    private final Semaphore permits;
+    private final ExecutorService executorService;
+    private final boolean virtual;
+
+    /* guarded by this */
+    private int numUsers;
+    private boolean shutdownRequested, shutdown;
+
+    /**
+     * 
+     * @param name
+     *            prefix of thread names (platform threads only)
+     * @param concurrency
+     *            max number of batch tasks in flight
+     */
+    public IoExecutor(final String name, int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+        this.permits = new Semaphore(this.concurrency);
+        ExecutorService es = newVirtualThreadExecutor();
+        this.virtual = es != null;
+        if (es == null) {
+            final AtomicInteger threadNum = new AtomicInteger();
+            ThreadPoolExecutor tpe = new ThreadPoolExecutor(this.concurrency,
+                    this.concurrency, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, name + "-" + threadNum.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            tpe.allowCoreThreadTimeOut(true);
+            es = tpe;
+        }
+        this.executorService = es;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Does this executor run tasks on virtual threads?
+     * 
+     * @return
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * The underlying executor service (tasks submitted directly are not
+     * bounded by {@link #getConcurrency()}).
+     * 
+     * @return
+     */
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Shuts the executor down once all uses in progress (see
+     * {@link #enter()}) are over; tasks already submitted are completed.
+     */
+    synchronized public void shutdown() {
+        shutdownRequested = true;
+        if (numUsers == 0) {
+            shutdownNow();
+        }
+    }
+
+    private void shutdownNow() {
+        shutdown = true;
+        executorService.shutdown();
+    }
+
+    /**
+     * Starts a use of the executor: {@link #shutdown()} is deferred until the
+     * matching {@link #exit()}.
+     * 
+     * @return {@code false} if the executor has been shut down already (the
+     *         use must not start, and {@link #exit()} must not be called)
+     */
+    synchronized public boolean enter() {
+        if (shutdown) {
+            return false;
+        }
+        numUsers++;
+        return true;
+    }
+
+    /**
+     * Ends a use of the executor started by {@link #enter()}.
+     */
+    synchronized public void exit() {
+        if (--numUsers == 0 && shutdownRequested) {
+            shutdownNow();
+        }
+    }
+
+    /**
+     * Runs tasks concurrently and waits for all of them.
+     * 
+     * @param tasks
+     * @return results, in task order
+     * @throws IOException
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws IOException {
+        return invokeAll(tasks, concurrency);
+    }
+
+    /**
+     * Runs tasks concurrently and waits for all of them.
+     * 
+     * @param tasks
+     * @param maxConcurrency
+     *            max number of these tasks in flight (also bounded by
+     *            {@link #getConcurrency()})
+     * @return results, in task order (tasks run in the calling thread if the
+     *         executor has been shut down)
+     * @throws IOException
+     *             the first failure; other tasks are cancelled, and the
+     *             method returns only once none of them is running
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int maxConcurrency)
+            throws IOException {
+        List<T> result = new ArrayList<T>(tasks.size());
+        if (tasks.size() <= 1 || Boolean.TRUE.equals(IN_TASK.get()) || !enter()) {
+            for (Callable<T> task : tasks) {
+                try {
+                    result.add(task.call());
+                } catch (Exception e) {
+                    throw rethrow(e);
+                }
+            }
+            return result;
+        }
+
+        final Semaphore localPermits = new Semaphore(Math.max(1, maxConcurrency));
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        List<TrackedTask<T>> submitted = new ArrayList<TrackedTask<T>>(tasks.size());
+        boolean completed = false;
+        try {
+            for (final Callable<T> task : tasks) {
+                localPermits.acquire();
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    localPermits.release();
+                    throw e;
+                }
+                TrackedTask<T> tracked = new TrackedTask<T>(task, localPermits);
+                try {
+                    futures.add(executorService.submit(tracked));
+                    submitted.add(tracked);
+                } catch (RuntimeException e) {
+                    permits.release();
+                    localPermits.release();
+                    throw e;
+                }
+            }
+            for (Future<T> future : futures) {
+                result.add(future.get());
+            }
+            completed = true;
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } finally {
+            if (!completed) {
+                for (Future<T> future : futures) {
+                    future.cancel(true);
+                }
+                // callers clean up after a failure: no task may still be
+                // running (or start) once this method returns
+                for (TrackedTask<T> tracked : submitted) {
+                    tracked.drain();
+                }
+            }
+            exit();
+        }
+    }
+
+    /**
+     * A task of {@link IoExecutor#invokeAll(List, int)}: runs at most once,
+     * releasing its permits when done, and can be drained.
+     */
+    private class TrackedTask<T> implements Callable<T> {
+        private final Callable<T> task;
+        private final Semaphore localPermits;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        TrackedTask(Callable<T> task, Semaphore localPermits) {
+            this.task = task;
+            this.localPermits = localPermits;
+        }
+
+        @Override
+        public T call() throws Exception {
+            if (!claimed.compareAndSet(false, true)) {
+                // drained before it started
+                return null;
+            }
+            IN_TASK.set(Boolean.TRUE);
+            try {
+                return task.call();
+            } finally {
+                IN_TASK.remove();
+                permits.release();
+                localPermits.release();
+                done.countDown();
+            }
+        }
+
+        /**
+         * Prevents the task from starting, or waits until it is done if it
+         * has started already.
+         */
+        void drain() {
+            if (claimed.compareAndSet(false, true)) {
+                // will never run (cancelled, or still queued)
+                permits.release();
+                localPermits.release();
+                return;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static IOException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return t instanceof IOException ? (IOException) t : new IOException(t);
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.ddth.com.redir.internal;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a sliding window of recent latency samples and computes percentiles
+ * over it.
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class LatencyTracker {
+
+    /**
+     * Percentiles are not available until this number of samples have been
+     * recorded.
+     */
+    public final static int MIN_SAMPLES = 32;
+
+    private final long[] samples;
+    private int count = 0, next = 0;
+
+    /* percentiles are re-computed (sorting the window) every few samples */
+    private final int recomputeInterval;
+    private int sinceRecompute = Integer.MAX_VALUE;
+    private long[] sorted;
+
+    /**
+     * 
+     * @param windowSize
+     *            number of most recent samples kept
+     */
+    public LatencyTracker(int windowSize) {
+        samples = new long[Math.max(MIN_SAMPLES, windowSize)];
+        recomputeInterval = Math.max(1, samples.length / 16);
+    }
+
+    /**
+     * Records a latency sample.
+     * 
+     * @param latency
+     */
+    synchronized public void record(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        if (sinceRecompute != Integer.MAX_VALUE) {
+            sinceRecompute++;
+        }
+    }
+
+    /**
+     * Number of samples currently in the window.
+     * 
+     * @return
+     */
+    synchronized public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets a percentile of recent samples.
+     * 
+     * @param percentile
+     *            in range {@code (0, 1]}, e.g. {@code 0.95}
+     * @return {@code -1} if not enough samples have been recorded
+     */
+    synchronized public long percentile(double percentile) {
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        if (sorted == null || sinceRecompute >= recomputeInterval) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            sinceRecompute = 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
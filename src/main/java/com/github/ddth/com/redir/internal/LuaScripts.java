@@ -0,0 +1,289 @@
+package com.github.ddth.com.redir.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Lua scripts executed server-side by {@code RedisDirectory}.
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class LuaScripts {
+
+    /**
+     * Adds a reference to a content-addressed block, optionally recording it
+     * in the pending files hash (so that it can be released if the file is
+     * never completed).
+     * 
+     * <ul>
+     * <li>KEYS[1]: file data hash, KEYS[2]: block refs hash, KEYS[3]
+     * (optional): pending files hash</li>
+     * <li>ARGV[1]: block key, ARGV[2]: field recording the reference in
+     * KEYS[3]</li>
+     * <li>returns {@code 1} if block data is already stored, {@code 0} if
+     * caller must upload block data</li>
+     * </ul>
+     */
+    public final static String ACQUIRE_BLOCK = "redis.call('HINCRBY', KEYS[2], ARGV[1], 1)\n"
+            + "if KEYS[3] then\n"
+            + "  redis.call('HSET', KEYS[3], ARGV[2], ARGV[1])\n"
+            + "end\n"
+            + "return redis.call('HEXISTS', KEYS[1], ARGV[1])";
+
+    /**
+     * Adds references to stored content-addressed blocks or packs, all or
+     * none.
+     * 
+     * <ul>
+     * <li>KEYS[1]: file data hash, KEYS[2]: block refs hash</li>
+     * <li>ARGV: block keys (one per reference)</li>
+     * <li>returns {@code 1} if references were added, {@code 0} (nothing
+     * changed) if a block is not stored</li>
+     * </ul>
+     */
+    public final static String ACQUIRE_STORED_BLOCKS = "for i = 1, #ARGV do\n"
+            + "  if redis.call('HEXISTS', KEYS[1], ARGV[i]) == 0 then\n"
+            + "    return 0\n"
+            + "  end\n"
+            + "end\n"
+            + "for i = 1, #ARGV do\n"
+            + "  redis.call('HINCRBY', KEYS[2], ARGV[i], 1)\n"
+            + "end\n"
+            + "return 1";
+
+    /**
+     * Releases references to content-addressed blocks, removing blocks that are
+     * no longer referenced.
+     * 
+     * <ul>
+     * <li>KEYS[1]: file data hash, KEYS[2]: block refs hash</li>
+     * <li>ARGV: block keys (one per reference)</li>
+     * <li>returns number of removed blocks</li>
+     * </ul>
+     */
+    public final static String RELEASE_BLOCKS = "local removed = 0\n"
+            + "for i = 1, #ARGV do\n"
+            + "  if redis.call('HINCRBY', KEYS[2], ARGV[i], -1) <= 0 then\n"
+            + "    redis.call('HDEL', KEYS[2], ARGV[i])\n"
+            + "    removed = removed + redis.call('HDEL', KEYS[1], ARGV[i])\n"
+            + "  end\n"
+            + "end\n"
+            + "return removed";
+
+    /**
+     * Copies blocks server-side, all or none.
+     * 
+     * <ul>
+     * <li>KEYS[1]: source file data hash, KEYS[2]: target file data hash</li>
+     * <li>ARGV[1]: target file id, ARGV[2]: block number of the first block,
+     * ARGV[3..]: source block keys</li>
+     * <li>returns number of copied blocks, {@code -1} (nothing copied) if a
+     * source block is missing</li>
+     * </ul>
+     */
+    public final static String COPY_BLOCKS = "local blocks = {}\n"
+            + "for i = 3, #ARGV do\n"
+            + "  local v = redis.call('HGET', KEYS[1], ARGV[i])\n"
+            + "  if not v then\n"
+            + "    return -1\n"
+            + "  end\n"
+            + "  blocks[#blocks + 1] = v\n"
+            + "end\n"
+            + "local first = tonumber(ARGV[2])\n"
+            + "for i = 1, #blocks do\n"
+            + "  redis.call('HSET', KEYS[2], ARGV[1] .. ':' .. (first + i - 1), blocks[i])\n"
+            + "end\n"
+            + "return #blocks";
+
+    /**
+     * Scans a hash, returning field names and value lengths only (values are
+     * not transferred).
+     * 
+     * <ul>
+     * <li>KEYS[1]: hash</li>
+     * <li>ARGV[1]: cursor, ARGV[2]: count hint</li>
+     * <li>returns {@code [next-cursor, [field1, length1, field2, length2, ...]]}
+     * </li>
+     * </ul>
+     */
+    public final static String HSCAN_LENGTHS = "local r = redis.call('HSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[2])\n"
+            + "local out = {}\n"
+            + "for i = 1, #r[2], 2 do\n"
+            + "  out[#out + 1] = r[2][i]\n"
+            + "  out[#out + 1] = string.len(r[2][i + 1])\n"
+            + "end\n"
+            + "return {r[1], out}";
+
+    /**
+     * Removes a hash field only if its value is unchanged.
+     * 
+     * <ul>
+     * <li>KEYS[1]: hash</li>
+     * <li>ARGV[1]: field, ARGV[2]: expected value</li>
+     * <li>returns {@code 1} if field was removed, {@code 0} otherwise</li>
+     * </ul>
+     */
+    public final static String HDEL_IF_EQUALS = "if redis.call('HGET', KEYS[1], ARGV[1]) == ARGV[2] then\n"
+            + "  return redis.call('HDEL', KEYS[1], ARGV[1])\n"
+            + "end\n"
+            + "return 0";
+
+    /**
+     * Sets a hash field only if its value is unchanged.
+     * 
+     * <ul>
+     * <li>KEYS[1]: hash</li>
+     * <li>ARGV[1]: field, ARGV[2]: expected value, ARGV[3]: new value</li>
+     * <li>returns {@code 1} if field was set, {@code 0} otherwise</li>
+     * </ul>
+     */
+    public final static String HSET_IF_EQUALS = "if redis.call('HGET', KEYS[1], ARGV[1]) == ARGV[2] then\n"
+            + "  redis.call('HSET', KEYS[1], ARGV[1], ARGV[3])\n"
+            + "  return 1\n"
+            + "end\n"
+            + "return 0";
+
+    /**
+     * Removes blocks, skipping content-addressed blocks and packs that are
+     * referenced.
+     * 
+     * <ul>
+     * <li>KEYS[1]: file data hash, KEYS[2]: block refs hash</li>
+     * <li>ARGV: block keys</li>
+     * <li>returns number of removed blocks</li>
+     * </ul>
+     */
+    public final static String HDEL_UNREFERENCED = "local removed = 0\n"
+            + "for i = 1, #ARGV do\n"
+            + "  local c = string.sub(ARGV[i], 1, 1)\n"
+            + "  if (c ~= '@' and c ~= '#') or (tonumber(redis.call('HGET', KEYS[2], ARGV[i]) or '0') <= 0) then\n"
+            + "    removed = removed + redis.call('HDEL', KEYS[1], ARGV[i])\n"
+            + "  end\n"
+            + "end\n"
+            + "return removed";
+
+    /**
+     * Writes a file's final metadata and unregisters the file as pending,
+     * with the records of its block references, atomically.
+     * 
+     * <ul>
+     * <li>KEYS[1]: metadata hash, KEYS[2]: pending files hash</li>
+     * <li>ARGV[1]: metadata field, ARGV[2]: metadata, ARGV[3..]: fields to
+     * remove from KEYS[2]</li>
+     * <li>returns {@code 1}</li>
+     * </ul>
+     */
+    public final static String COMMIT_PENDING_FILE = "redis.call('HSET', KEYS[1], ARGV[1], ARGV[2])\n"
+            + "for i = 3, #ARGV do\n"
+            + "  redis.call('HDEL', KEYS[2], ARGV[i])\n"
+            + "end\n"
+            + "return 1";
+
+    /**
+     * Unregisters a pending file registered before a threshold (abandoned),
+     * releasing the block references it recorded (see {@link #ACQUIRE_BLOCK})
+     * and removing blocks that are no longer referenced.
+     * 
+     * <ul>
+     * <li>KEYS[1]: pending files hash, KEYS[2]: file data hash, KEYS[3]: block
+     * refs hash</li>
+     * <li>ARGV[1]: threshold, ARGV[2]: file id, ARGV[3..]: fields recording
+     * block references</li>
+     * <li>returns number of released references, {@code -1} (nothing
+     * changed) if the file was registered at or after the threshold</li>
+     * </ul>
+     */
+    public final static String RELEASE_PENDING_FILE = "local v = redis.call('HGET', KEYS[1], ARGV[2]) or '0'\n"
+            + "if tonumber(string.match(v, '^%d+') or '0') >= tonumber(ARGV[1]) then\n"
+            + "  return -1\n"
+            + "end\n"
+            + "local released = 0\n"
+            + "for i = 3, #ARGV do\n"
+            + "  local key = redis.call('HGET', KEYS[1], ARGV[i])\n"
+            + "  if key then\n"
+            + "    if redis.call('HINCRBY', KEYS[3], key, -1) <= 0 then\n"
+            + "      redis.call('HDEL', KEYS[3], key)\n"
+            + "      redis.call('HDEL', KEYS[2], key)\n"
+            + "    end\n"
+            + "    redis.call('HDEL', KEYS[1], ARGV[i])\n"
+            + "    released = released + 1\n"
+            + "  end\n"
+            + "end\n"
+            + "redis.call('HDEL', KEYS[1], ARGV[2])\n"
+            + "return released";
+
+    private final static ConcurrentMap<String, byte[]> SHA1_CACHE = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * Evaluates a script, using {@code EVALSHA} and falling back to
+     * {@code EVAL} if the script is not yet cached by the server.
+     * 
+     * @param jedis
+     * @param script
+     * @param keys
+     * @param args
+     * @return
+     */
+    public static Object eval(Jedis jedis, String script, List<byte[]> keys, List<byte[]> args) {
+        byte[] sha1 = SHA1_CACHE.get(script);
+        if (sha1 == null) {
+            sha1 = toHex(digest("SHA-1", script.getBytes(StandardCharsets.UTF_8)))
+                    .getBytes(StandardCharsets.UTF_8);
+            SHA1_CACHE.put(script, sha1);
+        }
+        try {
+            return jedis.evalsha(sha1, keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            return jedis.eval(script.getBytes(StandardCharsets.UTF_8), keys, args);
+        }
+    }
+
+    /**
+     * Creates a new {@link MessageDigest} instance.
+     * 
+     * @param algorithm
+     * @return
+     */
+    public static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] digest(String algorithm, byte[] data) {
+        return newDigest(algorithm).digest(data);
+    }
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Encodes a byte array as lower-case hex string.
+     * 
+     * @param data
+     * @return
+     */
+    public static String toHex(byte[] data) {
+        char[] result = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            result[i * 2] = HEX[(data[i] >> 4) & 0x0F];
+            result[i * 2 + 1] = HEX[data[i] & 0x0F];
+        }
+        return new String(result);
+    }
+
+    private LuaScripts() {
+    }
+}
@@ -1,5 +1,7 @@
 package com.github.ddth.com.redir.internal;
 
+import java.io.IOException;
+
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.Lock;
 import org.apache.lucene.store.LockFactory;
@@ -23,9 +25,11 @@ public class RedisLockFactory extends LockFactory {
      * {@inheritDoc}
      * 
      * @since 0.1.2 renamed {@code makeLock} to {@code obtainLock}
+     * @since 0.1.3 throws {@link org.apache.lucene.store.LockObtainFailedException}
+     *        if lock is held by another instance
      */
     @Override
-    public Lock obtainLock(Directory dir, String lockName) {
+    public Lock obtainLock(Directory dir, String lockName) throws IOException {
         if (!(dir instanceof RedisDirectory)) {
             throw new IllegalArgumentException(
                     "Expect argument of type [" + RedisDirectory.class.getName() + "]!");
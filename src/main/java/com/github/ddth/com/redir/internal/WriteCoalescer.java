@@ -0,0 +1,272 @@
+package com.github.ddth.com.redir.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Group-commit of hash writes: writes submitted concurrently by several
+ * threads (e.g. the {@code IndexOutput}s of a multi-threaded indexer) are
+ * sent to storage together, in shared pipelined batches.
+ * 
+ * <p>
+ * At most {@link #getMaxConcurrency()} batches are in flight at a time;
+ * writes submitted meanwhile are queued and sent by the next batch, up to
+ * {@link #getMaxBatchBytes()} bytes per batch. Optionally, a batch waits up
+ * to {@link #getWindowMicros()} for more writes before being sent. Writes
+ * submitted together (one {@link #write(List)} call) are never split across
+ * batches and are sent in order.
+ * </p>
+ * 
+ * <p>
+ * {@link #write(List)} returns once its writes have been acknowledged by
+ * storage. Batches are sent by the submitting threads, no background thread
+ * is used.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class WriteCoalescer {
+
+    /**
+     * A hash write ({@code HSET hash field value}, or {@code HDEL hash field}
+     * if {@code value} is {@code null}).
+     */
+    public static class Op {
+        public final byte[] hash, field, value;
+
+        public Op(byte[] hash, byte[] field, byte[] value) {
+            this.hash = hash;
+            this.field = field;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Sends a batch of writes to storage.
+     */
+    public interface Writer {
+        void write(List<Op> ops) throws IOException;
+    }
+
+    public final static int DEFAULT_MAX_BATCH_BYTES = 4 * 1024 * 1024;
+
+    private final Writer writer;
+    private int maxConcurrency;
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private long windowMicros = 0;
+
+    /* guarded by this */
+    private final Queue<Group> pending = new ArrayDeque<Group>();
+    private long pendingBytes = 0;
+    private int numWriting = 0;
+
+    private final AtomicLong numWrites = new AtomicLong(), numOps = new AtomicLong(),
+            numBatches = new AtomicLong();
+
+    /**
+     * 
+     * @param writer
+     * @param maxConcurrency
+     *            max number of batches in flight
+     */
+    public WriteCoalescer(Writer writer, int maxConcurrency) {
+        this.writer = writer;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public WriteCoalescer setMaxConcurrency(int maxConcurrency) {
+        synchronized (this) {
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+            notifyAll();
+        }
+        return this;
+    }
+
+    /**
+     * Max size of a batch (a single larger write is sent alone).
+     * 
+     * @return
+     */
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public WriteCoalescer setMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+        return this;
+    }
+
+    /**
+     * Time a batch waits for more writes before being sent, unless full
+     * ({@code 0}: batches only contain writes queued while previous batches
+     * were in flight).
+     * 
+     * @return
+     */
+    public long getWindowMicros() {
+        return windowMicros;
+    }
+
+    public WriteCoalescer setWindowMicros(long windowMicros) {
+        this.windowMicros = Math.max(0, windowMicros);
+        return this;
+    }
+
+    /**
+     * Number of {@link #write(List)} calls.
+     * 
+     * @return
+     */
+    public long getNumWrites() {
+        return numWrites.get();
+    }
+
+    /**
+     * Number of hash writes.
+     * 
+     * @return
+     */
+    public long getNumOps() {
+        return numOps.get();
+    }
+
+    /**
+     * Number of batches sent to storage.
+     * 
+     * @return
+     */
+    public long getNumBatches() {
+        return numBatches.get();
+    }
+
+    /**
+     * Writes to storage, together with writes submitted concurrently.
+     * 
+     * @param ops
+     * @throws IOException
+     */
+    public void write(List<Op> ops) throws IOException {
+        numWrites.incrementAndGet();
+        numOps.addAndGet(ops.size());
+        Group group = new Group(ops);
+        synchronized (this) {
+            pending.add(group);
+            pendingBytes += group.bytes;
+            notifyAll();
+        }
+        while (true) {
+            List<Group> batch;
+            synchronized (this) {
+                while (!group.done && (numWriting >= maxConcurrency || pending.isEmpty())) {
+                    waitNanos(0);
+                }
+                if (group.done) {
+                    break;
+                }
+                numWriting++;
+                try {
+                    if (windowMicros > 0) {
+                        long deadline = System.nanoTime() + windowMicros * 1000;
+                        long remaining;
+                        while (pendingBytes < maxBatchBytes
+                                && (remaining = deadline - System.nanoTime()) > 0) {
+                            waitNanos(remaining);
+                        }
+                    }
+                } catch (InterruptedIOException e) {
+                    numWriting--;
+                    notifyAll();
+                    throw e;
+                }
+                batch = new ArrayList<Group>();
+                long batchBytes = 0;
+                while (!pending.isEmpty() && (batch.isEmpty()
+                        || batchBytes + pending.peek().bytes <= maxBatchBytes)) {
+                    Group g = pending.poll();
+                    batch.add(g);
+                    batchBytes += g.bytes;
+                }
+                pendingBytes -= batchBytes;
+            }
+            send(batch);
+        }
+        if (group.error != null) {
+            throw group.error;
+        }
+    }
+
+    /**
+     * Waits on this object's monitor (caller must hold it).
+     * 
+     * @param nanos
+     *            {@code 0}: until notified
+     * @throws InterruptedIOException
+     */
+    private void waitNanos(long nanos) throws InterruptedIOException {
+        try {
+            if (nanos > 0) {
+                wait(nanos / 1000000, (int) (nanos % 1000000));
+            } else {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private void send(List<Group> batch) {
+        IOException error = null;
+        try {
+            if (batch.size() > 0) {
+                List<Op> ops = batch.size() == 1 ? batch.get(0).ops : new ArrayList<Op>();
+                if (batch.size() > 1) {
+                    for (Group group : batch) {
+                        ops.addAll(group.ops);
+                    }
+                }
+                numBatches.incrementAndGet();
+                writer.write(ops);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException(e);
+        } finally {
+            synchronized (this) {
+                for (Group group : batch) {
+                    group.error = error;
+                    group.done = true;
+                }
+                numWriting--;
+                notifyAll();
+            }
+        }
+    }
+
+    private static class Group {
+        final List<Op> ops;
+        final long bytes;
+        IOException error;
+        boolean done = false;
+
+        Group(List<Op> ops) {
+            this.ops = ops;
+            long bytes = 0;
+            for (Op op : ops) {
+                bytes += op.field.length + (op.value != null ? op.value.length : 0);
+            }
+            this.bytes = bytes;
+        }
+    }
+}
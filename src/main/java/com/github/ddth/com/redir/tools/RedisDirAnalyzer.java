@@ -0,0 +1,573 @@
+package com.github.ddth.com.redir.tools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.IndexFileNames;
+
+import com.github.ddth.com.redir.FileInfo;
+import com.github.ddth.com.redir.RedisDirectory;
+import com.github.ddth.com.redir.internal.AccessTracker;
+import com.github.ddth.com.redir.internal.LuaScripts;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+/**
+ * Reports where the Redis memory of a {@link RedisDirectory} goes:
+ * 
+ * <ul>
+ * <li>bytes by namespace (metadata, file blocks, content-addressed blocks,
+ * packs, block references; tiered files are reported apart, they are not
+ * stored in Redis),</li>
+ * <li>stored bytes by segment and by file extension,</li>
+ * <li>padding waste: final blocks stored bigger than the file's tail (e.g.
+ * written as full-size blocks by older versions),</li>
+ * <li>orphaned blocks (not referenced by any file, see
+ * {@link com.github.ddth.com.redir.BlockGarbageCollector}), apart from blocks
+ * of files being written (see {@link RedisDirectory#getHashPendingFiles()}),
+ * </li>
+ * <li>read heat by segment, from the directory instance's access statistics
+ * (see {@link RedisDirectory#getAccessTracker()}; only meaningful on an
+ * instance that serves searches).</li>
+ * </ul>
+ * 
+ * <p>
+ * Hashes are scanned with {@code HSCAN} in throttled batches; for the file
+ * data hash, only field names and value lengths are transferred. Nothing is
+ * modified.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class RedisDirAnalyzer {
+
+    public final static int DEFAULT_BATCH_SIZE = 1000;
+    public final static int DEFAULT_DATA_BATCH_SIZE = 64;
+    public final static long DEFAULT_BATCH_PAUSE_MS = 10;
+    public final static int DEFAULT_TOP_N = 20;
+
+    public final static String NS_METADATA = "metadata";
+    public final static String NS_FILE_BLOCKS = "file blocks";
+    public final static String NS_CONTENT_BLOCKS = "content blocks";
+    public final static String NS_PACKS = "packs";
+    public final static String NS_BLOCK_REFS = "block refs";
+
+    private final static String NO_SEGMENT = "-";
+    private final static String EXT_PACK = "(pack)";
+
+    private RedisDirectory redisDir;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int dataBatchSize = DEFAULT_DATA_BATCH_SIZE;
+    private long batchPauseMs = DEFAULT_BATCH_PAUSE_MS;
+    private int topN = DEFAULT_TOP_N;
+
+    public RedisDirAnalyzer(RedisDirectory redisDir) {
+        this.redisDir = redisDir;
+    }
+
+    /**
+     * Number of hash entries fetched per {@code HSCAN} call.
+     * 
+     * @return
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public RedisDirAnalyzer setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    /**
+     * Number of file data hash entries scanned per call. Kept small: the scan
+     * script loads each value (up to a block) to compute its length.
+     * 
+     * @return
+     */
+    public int getDataBatchSize() {
+        return dataBatchSize;
+    }
+
+    public RedisDirAnalyzer setDataBatchSize(int dataBatchSize) {
+        this.dataBatchSize = Math.max(1, dataBatchSize);
+        return this;
+    }
+
+    /**
+     * Pause between two {@code HSCAN} calls, to bound the load put on Redis.
+     * 
+     * @return
+     */
+    public long getBatchPauseMs() {
+        return batchPauseMs;
+    }
+
+    public RedisDirAnalyzer setBatchPauseMs(long batchPauseMs) {
+        this.batchPauseMs = Math.max(0, batchPauseMs);
+        return this;
+    }
+
+    /**
+     * Number of segments listed by {@link Report#toString()}.
+     * 
+     * @return
+     */
+    public int getTopN() {
+        return topN;
+    }
+
+    public RedisDirAnalyzer setTopN(int topN) {
+        this.topN = Math.max(0, topN);
+        return this;
+    }
+
+    /*----------------------------------------------------------------------*/
+    /**
+     * Scans the directory's hashes once.
+     * 
+     * @return
+     * @throws InterruptedException
+     */
+    public Report analyze() throws InterruptedException {
+        long t1 = System.currentTimeMillis();
+        Report report = new Report(topN);
+        Map<String, FileInfo> filesById = new HashMap<String, FileInfo>();
+        Map<String, FileInfo> filesByContentBlock = new HashMap<String, FileInfo>();
+        scanMetadata(report, filesById, filesByContentBlock);
+        scanData(report, filesById, filesByContentBlock);
+        scanBlockRefs(report);
+        AccessTracker tracker = redisDir.getAccessTracker();
+        for (String segment : report.bySegment.keySet()) {
+            long reads = tracker.getReads(segment);
+            if (reads > 0) {
+                report.segmentReads.put(segment, reads);
+            }
+        }
+        report.durationMs = System.currentTimeMillis() - t1;
+        return report;
+    }
+
+    private static String segmentOf(String name) {
+        return name.startsWith("_") ? IndexFileNames.parseSegmentName(name) : NO_SEGMENT;
+    }
+
+    private static String extensionOf(String name) {
+        if (name.startsWith(IndexFileNames.SEGMENTS)) {
+            return IndexFileNames.SEGMENTS;
+        }
+        String ext = IndexFileNames.getExtension(name);
+        return ext != null ? ext : NO_SEGMENT;
+    }
+
+    private void pause(String cursor) throws InterruptedException {
+        if (batchPauseMs > 0 && !"0".equals(cursor)) {
+            Thread.sleep(batchPauseMs);
+        }
+    }
+
+    private void scanMetadata(Report report, Map<String, FileInfo> filesById,
+            Map<String, FileInfo> filesByContentBlock) throws InterruptedException {
+        final byte[] HASH_METADATA = redisDir.getHashDirectoryMetadata().getBytes();
+        ScanParams params = new ScanParams().count(batchSize);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            try (Jedis jedis = redisDir.getJedisPool().getResource()) {
+                ScanResult<Entry<byte[], byte[]>> scan = jedis.hscan(HASH_METADATA,
+                        cursor.getBytes(), params);
+                cursor = new String(scan.getCursorAsBytes());
+                for (Entry<byte[], byte[]> entry : scan.getResult()) {
+                    report.namespace(NS_METADATA).add(1,
+                            entry.getKey().length + entry.getValue().length);
+                    FileInfo fileInfo = FileInfo.newInstance(entry.getValue());
+                    if (fileInfo == null) {
+                        continue;
+                    }
+                    if (fileInfo.isLock()) {
+                        report.locks++;
+                        continue;
+                    }
+                    String name = fileInfo.name();
+                    long size = fileInfo.size();
+                    report.files++;
+                    report.logicalBytes += size;
+                    report.segment(segmentOf(name)).addFile(size);
+                    report.extension(extensionOf(name)).addFile(size);
+                    if (fileInfo.isTiered()) {
+                        report.tieredFiles++;
+                        report.tieredBytes += size;
+                    } else if (fileInfo.isContentAddressed()) {
+                        for (String hash : fileInfo.blocks()) {
+                            String key = RedisDirectory.CONTENT_BLOCK_PREFIX + hash;
+                            if (!filesByContentBlock.containsKey(key)) {
+                                filesByContentBlock.put(key, fileInfo);
+                            }
+                        }
+                    } else if (!fileInfo.isPacked()) {
+                        filesById.put(fileInfo.id(), fileInfo);
+                    }
+                }
+            }
+            pause(cursor);
+        } while (!"0".equals(cursor));
+    }
+
+    private void scanData(Report report, Map<String, FileInfo> filesById,
+            Map<String, FileInfo> filesByContentBlock) throws InterruptedException {
+        final byte[] HASH_FILE_DATA = redisDir.getHashFileData().getBytes();
+        final byte[] HASH_BLOCK_REFS = redisDir.getHashBlockRefs().getBytes();
+        final byte[] HASH_PENDING_FILES = redisDir.getHashPendingFiles().getBytes();
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            Map<String, Long> shared = new HashMap<String, Long>();
+            // blocks of unknown file ids: {fields, bytes} by id
+            Map<String, long[]> unknownIds = new HashMap<String, long[]>();
+            try (Jedis jedis = redisDir.getJedisPool().getResource()) {
+                List<?> scan = (List<?>) LuaScripts.eval(jedis, LuaScripts.HSCAN_LENGTHS,
+                        Arrays.asList(HASH_FILE_DATA), Arrays.asList(cursor.getBytes(),
+                                String.valueOf(dataBatchSize).getBytes()));
+                cursor = new String((byte[]) scan.get(0), StandardCharsets.UTF_8);
+                List<?> entries = (List<?>) scan.get(1);
+                for (int i = 0, n = entries.size(); i < n; i += 2) {
+                    byte[] fieldBytes = (byte[]) entries.get(i);
+                    String field = new String(fieldBytes, StandardCharsets.UTF_8);
+                    long length = ((Long) entries.get(i + 1)).longValue();
+                    if (field.startsWith(RedisDirectory.CONTENT_BLOCK_PREFIX)) {
+                        report.namespace(NS_CONTENT_BLOCKS).add(1, fieldBytes.length + length);
+                        shared.put(field, length);
+                        FileInfo fileInfo = filesByContentBlock.get(field);
+                        if (fileInfo != null) {
+                            report.segment(segmentOf(fileInfo.name())).addStored(length);
+                            report.extension(extensionOf(fileInfo.name())).addStored(length);
+                            List<String> blocks = fileInfo.blocks();
+                            String lastKey = RedisDirectory.CONTENT_BLOCK_PREFIX
+                                    + blocks.get(blocks.size() - 1);
+                            if (field.equals(lastKey)) {
+                                addPadding(report, fileInfo, blocks.size() - 1, length);
+                            }
+                        }
+                    } else if (field.startsWith(RedisDirectory.PACK_PREFIX)) {
+                        report.namespace(NS_PACKS).add(1, fieldBytes.length + length);
+                        shared.put(field, length);
+                        int sep = field.lastIndexOf(':');
+                        String segment = sep > 1 ? field.substring(1, sep) : NO_SEGMENT;
+                        report.segment(segment).addStored(length);
+                        report.extension(EXT_PACK).addStored(length);
+                    } else {
+                        report.namespace(NS_FILE_BLOCKS).add(1, fieldBytes.length + length);
+                        int sep = field.lastIndexOf(':');
+                        String id = sep > 0 ? field.substring(0, sep) : null;
+                        FileInfo fileInfo = id != null ? filesById.get(id) : null;
+                        if (id == null) {
+                            report.orphanFields++;
+                            report.orphanBytes += length;
+                            continue;
+                        }
+                        if (fileInfo == null) {
+                            long[] usage = unknownIds.get(id);
+                            if (usage == null) {
+                                usage = new long[2];
+                                unknownIds.put(id, usage);
+                            }
+                            usage[0]++;
+                            usage[1] += length;
+                            continue;
+                        }
+                        report.segment(segmentOf(fileInfo.name())).addStored(length);
+                        report.extension(extensionOf(fileInfo.name())).addStored(length);
+                        try {
+                            addPadding(report, fileInfo,
+                                    Integer.parseInt(field.substring(sep + 1)), length);
+                        } catch (NumberFormatException e) {
+                            // not a block
+                        }
+                    }
+                }
+                if (shared.size() > 0) {
+                    // content-addressed blocks and packs are orphaned when no
+                    // longer referenced
+                    List<String> keys = new ArrayList<String>(shared.keySet());
+                    byte[][] fields = new byte[keys.size()][];
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = keys.get(i).getBytes();
+                    }
+                    List<byte[]> refs = jedis.hmget(HASH_BLOCK_REFS, fields);
+                    for (int i = 0; i < fields.length; i++) {
+                        byte[] ref = refs.get(i);
+                        if (ref == null || Long.parseLong(new String(ref)) <= 0) {
+                            report.orphanFields++;
+                            report.orphanBytes += shared.get(keys.get(i)).longValue();
+                        }
+                    }
+                }
+                if (unknownIds.size() > 0) {
+                    // files being written, copied or promoted have blocks
+                    // before their metadata, see
+                    // RedisDirectory.getHashPendingFiles()
+                    List<String> ids = new ArrayList<String>(unknownIds.keySet());
+                    byte[][] fields = new byte[ids.size()][];
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = ids.get(i).getBytes();
+                    }
+                    List<byte[]> pending = jedis.hmget(HASH_PENDING_FILES, fields);
+                    for (int i = 0; i < fields.length; i++) {
+                        long[] usage = unknownIds.get(ids.get(i));
+                        if (pending.get(i) != null) {
+                            report.pendingFields += usage[0];
+                            report.pendingBytes += usage[1];
+                        } else {
+                            report.orphanFields += usage[0];
+                            report.orphanBytes += usage[1];
+                        }
+                    }
+                }
+            }
+            pause(cursor);
+        } while (!"0".equals(cursor));
+    }
+
+    /**
+     * Records bytes of a stored block beyond the part of the file it holds.
+     * 
+     * @param report
+     * @param fileInfo
+     * @param blockNum
+     * @param length
+     */
+    private static void addPadding(Report report, FileInfo fileInfo, int blockNum,
+            long length) {
+        long expected = Math.max(0, Math.min(RedisDirectory.BLOCK_SIZE,
+                fileInfo.size() - (long) blockNum * RedisDirectory.BLOCK_SIZE));
+        if (length > expected) {
+            report.paddedBlocks++;
+            report.paddingBytes += length - expected;
+        }
+    }
+
+    private void scanBlockRefs(Report report) throws InterruptedException {
+        final byte[] HASH_BLOCK_REFS = redisDir.getHashBlockRefs().getBytes();
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            try (Jedis jedis = redisDir.getJedisPool().getResource()) {
+                List<?> scan = (List<?>) LuaScripts.eval(jedis, LuaScripts.HSCAN_LENGTHS,
+                        Arrays.asList(HASH_BLOCK_REFS),
+                        Arrays.asList(cursor.getBytes(), String.valueOf(batchSize).getBytes()));
+                cursor = new String((byte[]) scan.get(0), StandardCharsets.UTF_8);
+                List<?> entries = (List<?>) scan.get(1);
+                for (int i = 0, n = entries.size(); i < n; i += 2) {
+                    report.namespace(NS_BLOCK_REFS).add(1, ((byte[]) entries.get(i)).length
+                            + ((Long) entries.get(i + 1)).longValue());
+                }
+            }
+            pause(cursor);
+        } while (!"0".equals(cursor));
+    }
+
+    /**
+     * Usage of a namespace, segment or extension.
+     */
+    public static class Usage {
+        /**
+         * Number of files (segments/extensions) or hash fields (namespaces).
+         */
+        public long count;
+        /**
+         * Logical size of files (segments/extensions).
+         */
+        public long logicalBytes;
+        /**
+         * Bytes stored in Redis: block values (segments/extensions), fields and
+         * values (namespaces).
+         */
+        public long storedBytes;
+
+        void addFile(long size) {
+            count++;
+            logicalBytes += size;
+        }
+
+        void addStored(long bytes) {
+            storedBytes += bytes;
+        }
+
+        void add(long fields, long bytes) {
+            count += fields;
+            storedBytes += bytes;
+        }
+    }
+
+    /**
+     * Result of an analysis.
+     */
+    public static class Report {
+        public long files, locks, logicalBytes;
+        public long tieredFiles, tieredBytes;
+        public long paddedBlocks, paddingBytes;
+        public long orphanFields, orphanBytes;
+        /**
+         * Blocks of files being written, copied or promoted (not orphans).
+         */
+        public long pendingFields, pendingBytes;
+        public final Map<String, Usage> byNamespace = new TreeMap<String, Usage>();
+        public final Map<String, Usage> bySegment = new TreeMap<String, Usage>();
+        public final Map<String, Usage> byExtension = new TreeMap<String, Usage>();
+        /**
+         * Block loads by segment since the directory instance was created (only
+         * segments read at least once).
+         */
+        public final Map<String, Long> segmentReads = new TreeMap<String, Long>();
+        public long durationMs;
+
+        private final int topN;
+
+        Report(int topN) {
+            this.topN = topN;
+        }
+
+        private static Usage usage(Map<String, Usage> map, String key) {
+            Usage usage = map.get(key);
+            if (usage == null) {
+                usage = new Usage();
+                map.put(key, usage);
+            }
+            return usage;
+        }
+
+        Usage namespace(String namespace) {
+            return usage(byNamespace, namespace);
+        }
+
+        Usage segment(String segment) {
+            return usage(bySegment, segment);
+        }
+
+        Usage extension(String extension) {
+            return usage(byExtension, extension);
+        }
+
+        /**
+         * Total bytes stored in Redis.
+         * 
+         * @return
+         */
+        public long getStoredBytes() {
+            long total = 0;
+            for (Usage usage : byNamespace.values()) {
+                total += usage.storedBytes;
+            }
+            return total;
+        }
+
+        private static List<Entry<String, Usage>> byStoredBytes(Map<String, Usage> map) {
+            List<Entry<String, Usage>> entries = new ArrayList<Entry<String, Usage>>(
+                    map.entrySet());
+            Collections.sort(entries, new Comparator<Entry<String, Usage>>() {
+                @Override
+                public int compare(Entry<String, Usage> a, Entry<String, Usage> b) {
+                    return Long.compare(b.getValue().storedBytes, a.getValue().storedBytes);
+                }
+            });
+            return entries;
+        }
+
+        private static void append(StringBuilder sb, String label, Usage usage, String unit,
+                Long reads) {
+            sb.append(String.format("  %-16s %10d %-6s %14d bytes stored", label, usage.count,
+                    unit, usage.storedBytes));
+            if (usage.logicalBytes > 0) {
+                sb.append(String.format(" %14d bytes logical", usage.logicalBytes));
+            }
+            if (reads != null) {
+                sb.append(String.format(" %10d reads", reads));
+            }
+            sb.append('\n');
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("files: ").append(files).append(" (").append(logicalBytes)
+                    .append(" bytes), locks: ").append(locks).append(", stored in Redis: ")
+                    .append(getStoredBytes()).append(" bytes, tiered: ").append(tieredFiles)
+                    .append(" files (").append(tieredBytes).append(" bytes)\n");
+            sb.append("padding waste: ").append(paddingBytes).append(" bytes in ")
+                    .append(paddedBlocks).append(" blocks, orphans: ").append(orphanBytes)
+                    .append(" bytes in ").append(orphanFields).append(" fields, pending files: ")
+                    .append(pendingBytes).append(" bytes in ").append(pendingFields)
+                    .append(" fields\n");
+            sb.append("by namespace:\n");
+            for (Entry<String, Usage> entry : byStoredBytes(byNamespace)) {
+                append(sb, entry.getKey(), entry.getValue(), "fields", null);
+            }
+            sb.append("by extension:\n");
+            for (Entry<String, Usage> entry : byStoredBytes(byExtension)) {
+                append(sb, entry.getKey(), entry.getValue(), "files", null);
+            }
+            List<Entry<String, Usage>> segments = byStoredBytes(bySegment);
+            sb.append("by segment (top ").append(Math.min(topN, segments.size())).append(" of ")
+                    .append(segments.size()).append("):\n");
+            for (Entry<String, Usage> entry : segments.subList(0,
+                    Math.min(topN, segments.size()))) {
+                append(sb, entry.getKey(), entry.getValue(), "files",
+                        segmentReads.get(entry.getKey()));
+            }
+            sb.append("in ").append(durationMs).append(" ms");
+            return sb.toString();
+        }
+    }
+
+    /*----------------------------------------------------------------------*/
+    private static void printUsage() {
+        System.err.println("Usage: " + RedisDirAnalyzer.class.getName()
+                + " <redis-host> <redis-port> [top-n]");
+        System.err.println("  -Dredir.password=<redis-password>");
+        System.err.println("  -Dredir.hashMetadata=<name> (default: "
+                + RedisDirectory.DEFAULT_HASH_DIRECTORY_METADATA + ")");
+        System.err.println(
+                "  -Dredir.hashData=<name> (default: " + RedisDirectory.DEFAULT_HASH_FILE_DATA + ")");
+        System.err.println(
+                "  -Dredir.batchPauseMs=<ms> (default: " + DEFAULT_BATCH_PAUSE_MS + ")");
+        System.err.println("  -Dredir.dataBatchSize=<entries> (default: "
+                + DEFAULT_DATA_BATCH_SIZE + ")");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            printUsage();
+            System.exit(1);
+        }
+        String redisHost = args[0];
+        int redisPort = Integer.parseInt(args[1]);
+        int topN = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_TOP_N;
+
+        RedisDirectory redisDir = new RedisDirectory(redisHost, redisPort,
+                System.getProperty("redir.password"));
+        redisDir.setHashDirectoryMetadata(System.getProperty("redir.hashMetadata",
+                RedisDirectory.DEFAULT_HASH_DIRECTORY_METADATA));
+        redisDir.setHashFileData(
+                System.getProperty("redir.hashData", RedisDirectory.DEFAULT_HASH_FILE_DATA));
+        try {
+            RedisDirAnalyzer analyzer = new RedisDirAnalyzer(redisDir).setTopN(topN)
+                    .setBatchPauseMs(Long.getLong("redir.batchPauseMs", DEFAULT_BATCH_PAUSE_MS))
+                    .setDataBatchSize(
+                            Integer.getInteger("redir.dataBatchSize", DEFAULT_DATA_BATCH_SIZE));
+            System.out.println(analyzer.analyze());
+        } finally {
+            redisDir.destroy();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.github.ddth.com.redir.tools;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.ddth.com.redir.RedisDirectory;
+import com.github.ddth.com.redir.RedisDirectory.RedisIndexInput;
+import com.github.ddth.com.redir.RedisDirectory.RedisIndexOutput;
+
+/**
+ * Exports a {@link RedisDirectory} to a local {@link Directory} (e.g.
+ * {@link FSDirectory}), or imports it back.
+ * 
+ * <p>
+ * Files of the latest commit are transferred in parallel, each one streamed
+ * with multi-block pipelined reads/writes. The {@code segments_N} file is
+ * transferred last, so the target only sees the new commit when all its files
+ * are in place. Memory usage is bounded by
+ * {@code numThreads * batchBlocks * BLOCK_SIZE}.
+ * </p>
+ * 
+ * <p>
+ * Transfer is resumable: files that already exist at the target with the same
+ * length are skipped (Lucene index files are write-once), partially
+ * transferred files are removed and transferred again.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.1.3
+ */
+public class RedisDirBackup {
+
+    private final Logger LOGGER = LoggerFactory.getLogger(RedisDirBackup.class);
+
+    public final static int DEFAULT_NUM_THREADS = 4;
+    public final static int DEFAULT_BATCH_BLOCKS = 16;
+
+    private RedisDirectory redisDir;
+    private Directory localDir;
+    private int numThreads = DEFAULT_NUM_THREADS;
+    private int batchBlocks = DEFAULT_BATCH_BLOCKS;
+
+    public RedisDirBackup(RedisDirectory redisDir, Directory localDir) {
+        this.redisDir = redisDir;
+        this.localDir = localDir;
+    }
+
+    public RedisDirectory getRedisDir() {
+        return redisDir;
+    }
+
+    public Directory getLocalDir() {
+        return localDir;
+    }
+
+    /**
+     * Number of files transferred in parallel (also bounded by
+     * {@link RedisDirectory#getIoConcurrency()}, files are transferred by
+     * {@link RedisDirectory#getIoExecutor()}).
+     * 
+     * @return
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public RedisDirBackup setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+        return this;
+    }
+
+    /**
+     * Number of blocks read/written with one round-trip.
+     * 
+     * @return
+     */
+    public int getBatchBlocks() {
+        return batchBlocks;
+    }
+
+    public RedisDirBackup setBatchBlocks(int batchBlocks) {
+        this.batchBlocks = Math.max(1, batchBlocks);
+        return this;
+    }
+
+    /**
+     * Exports the latest commit of the Redis directory to the local directory.
+     * 
+     * @return
+     * @throws IOException
+     */
+    public Stats exportTo() throws IOException {
+        return transfer(redisDir, localDir);
+    }
+
+    /**
+     * Imports the latest commit of the local directory to the Redis directory.
+     * 
+     * @return
+     * @throws IOException
+     */
+    public Stats importFrom() throws IOException {
+        return transfer(localDir, redisDir);
+    }
+
+    private Stats transfer(final Directory from, final Directory to) throws IOException {
+        final Stats stats = new Stats();
+        SegmentInfos sis = SegmentInfos.readLatestCommit(from);
+        String segmentsFile = sis.getSegmentsFileName();
+        Collection<String> files = sis.files(false);
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final String name : files) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    transferFile(from, to, name, stats);
+                    return null;
+                }
+            });
+        }
+        redisDir.getIoExecutor().invokeAll(tasks, numThreads);
+        to.sync(files);
+
+        transferFile(from, to, segmentsFile, stats);
+        to.sync(Collections.singleton(segmentsFile));
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Transferred [" + segmentsFile + "]: " + stats);
+        }
+        return stats;
+    }
+
+    private void transferFile(Directory from, Directory to, String name, Stats stats)
+            throws IOException {
+        long length = from.fileLength(name);
+        long existingLength = fileLength(to, name);
+        if (existingLength == length) {
+            stats.filesSkipped.incrementAndGet();
+            return;
+        }
+        if (existingLength >= 0) {
+            to.deleteFile(name);
+        }
+
+        long t1 = System.currentTimeMillis();
+        try (IndexInput in = from.openInput(name, IOContext.READONCE);
+                IndexOutput out = to.createOutput(name, IOContext.DEFAULT)) {
+            if (in instanceof RedisIndexInput) {
+                ((RedisIndexInput) in).setReadAheadBlocks(batchBlocks);
+            }
+            if (out instanceof RedisIndexOutput) {
+                ((RedisIndexOutput) out).setWriteBatchBlocks(batchBlocks);
+            }
+            out.copyBytes(in, length);
+        }
+        stats.filesTransferred.incrementAndGet();
+        stats.bytesTransferred.addAndGet(length);
+        long t2 = System.currentTimeMillis();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Transferred [" + name + "/" + length + "] in " + (t2 - t1) + " ms");
+        }
+    }
+
+    private static long fileLength(Directory dir, String name) throws IOException {
+        try {
+            return dir.fileLength(name);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Transfer statistics.
+     */
+    public static class Stats {
+        public final AtomicLong filesTransferred = new AtomicLong();
+        public final AtomicLong filesSkipped = new AtomicLong();
+        public final AtomicLong bytesTransferred = new AtomicLong();
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "files transferred: " + filesTransferred + ", files skipped: " + filesSkipped
+                    + ", bytes transferred: " + bytesTransferred;
+        }
+    }
+
+    /*----------------------------------------------------------------------*/
+    private static void printUsage() {
+        System.err.println("Usage: " + RedisDirBackup.class.getName()
+                + " <export|import> <redis-host> <redis-port> <local-dir> [num-threads]");
+        System.err.println("  -Dredir.password=<redis-password>");
+        System.err.println("  -Dredir.hashMetadata=<name> (default: "
+                + RedisDirectory.DEFAULT_HASH_DIRECTORY_METADATA + ")");
+        System.err.println(
+                "  -Dredir.hashData=<name> (default: " + RedisDirectory.DEFAULT_HASH_FILE_DATA + ")");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            printUsage();
+            System.exit(1);
+        }
+        String command = args[0];
+        if (!"export".equals(command) && !"import".equals(command)) {
+            printUsage();
+            System.exit(1);
+        }
+        String redisHost = args[1];
+        int redisPort = Integer.parseInt(args[2]);
+        String localPath = args[3];
+        int numThreads = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_NUM_THREADS;
+
+        RedisDirectory redisDir = new RedisDirectory(redisHost, redisPort,
+                System.getProperty("redir.password"));
+        redisDir.setHashDirectoryMetadata(System.getProperty("redir.hashMetadata",
+                RedisDirectory.DEFAULT_HASH_DIRECTORY_METADATA));
+        redisDir.setHashFileData(
+                System.getProperty("redir.hashData", RedisDirectory.DEFAULT_HASH_FILE_DATA));
+        try (Directory localDir = FSDirectory.open(Paths.get(localPath))) {
+            RedisDirBackup backup = new RedisDirBackup(redisDir, localDir)
+                    .setNumThreads(numThreads);
+            long t1 = System.currentTimeMillis();
+            Stats stats = "export".equals(command) ? backup.exportTo() : backup.importFrom();
+            long t2 = System.currentTimeMillis();
+            System.out.println(stats + " in " + (t2 - t1) / 1000.0 + " sec");
+        } finally {
+            redisDir.destroy();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.github.ddth.com.redir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.ddth.com.redir.RedisDirectory.RedisIndexInput;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Reads of {@link RedisIndexInput} around block boundaries. Blocks are served
+ * from the block cache, no Redis server is needed: the pool is never used.
+ */
+public class RedisIndexInputTest {
+
+    private static final int BLOCK_SIZE = RedisDirectory.BLOCK_SIZE;
+
+    private JedisPool jedisPool;
+    private RedisDirectory dir;
+
+    @Before
+    public void setUp() {
+        jedisPool = new JedisPool("localhost", 1);
+        dir = new RedisDirectory(jedisPool).setBlockCacheSize(64);
+    }
+
+    @After
+    public void tearDown() {
+        dir.destroy();
+        jedisPool.destroy();
+    }
+
+    /**
+     * Stores a file's content in the block cache, last block not padded.
+     */
+    private RedisIndexInput newInput(byte[] content) {
+        FileInfo fileInfo = FileInfo.newInstance("_0.tst").size(content.length);
+        for (int start = 0, blockNum = 0; start < content.length; start += BLOCK_SIZE, blockNum++) {
+            dir.getBlockCache().put(fileInfo.id() + ":" + blockNum, Arrays.copyOfRange(content,
+                    start, Math.min(start + BLOCK_SIZE, content.length)));
+        }
+        return dir.new RedisIndexInput(dir, fileInfo);
+    }
+
+    private static byte[] randomContent(Random random, int length) {
+        byte[] content = new byte[length];
+        random.nextBytes(content);
+        return content;
+    }
+
+    @Test
+    public void testVariableLengthAcrossBoundary() throws IOException {
+        Random random = new Random(1);
+        // the encoded values start 1..9 bytes before the end of block 0
+        for (int k = 1; k <= 9; k++) {
+            byte[] content = randomContent(random, BLOCK_SIZE * 2 + 100);
+            int start = BLOCK_SIZE - k;
+            ByteArrayDataOutput out = new ByteArrayDataOutput(content, start,
+                    content.length - start);
+            out.writeVLong(Long.MAX_VALUE);
+            out.writeVInt(-1);
+            out.writeVInt(300);
+            out.writeVLong(1L << 40);
+            out.writeLong(0x0102030405060708L);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort((short) 0xBEEF);
+
+            try (IndexInput in = newInput(content)) {
+                in.seek(start);
+                assertEquals("k=" + k, Long.MAX_VALUE, in.readVLong());
+                assertEquals("k=" + k, -1, in.readVInt());
+                assertEquals("k=" + k, 300, in.readVInt());
+                assertEquals("k=" + k, 1L << 40, in.readVLong());
+                assertEquals("k=" + k, 0x0102030405060708L, in.readLong());
+                assertEquals("k=" + k, 0xCAFEBABE, in.readInt());
+                assertEquals("k=" + k, (short) 0xBEEF, in.readShort());
+                assertEquals("k=" + k, out.getPosition(), in.getFilePointer());
+            }
+        }
+    }
+
+    @Test
+    public void testSequentialReadsMatchLucene() throws IOException {
+        Random random = new Random(2);
+        byte[] content = new byte[BLOCK_SIZE * 3 + 1234];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(content);
+        long seed = random.nextLong();
+        Random values = new Random(seed);
+        while (out.getPosition() < content.length - 16) {
+            switch (values.nextInt(4)) {
+            case 0:
+                out.writeVInt(values.nextInt() >>> values.nextInt(32));
+                break;
+            case 1:
+                out.writeVLong(values.nextLong() >>> (1 + values.nextInt(63)));
+                break;
+            case 2:
+                out.writeInt(values.nextInt());
+                break;
+            default:
+                out.writeLong(values.nextLong());
+            }
+        }
+        int written = out.getPosition();
+
+        ByteArrayDataInput expected = new ByteArrayDataInput(content);
+        values = new Random(seed);
+        try (IndexInput in = newInput(content)) {
+            while (expected.getPosition() < written) {
+                switch (values.nextInt(4)) {
+                case 0:
+                    values.nextInt();
+                    values.nextInt(32);
+                    assertEquals(expected.readVInt(), in.readVInt());
+                    break;
+                case 1:
+                    values.nextLong();
+                    values.nextInt(63);
+                    assertEquals(expected.readVLong(), in.readVLong());
+                    break;
+                case 2:
+                    values.nextInt();
+                    assertEquals(expected.readInt(), in.readInt());
+                    break;
+                default:
+                    values.nextLong();
+                    assertEquals(expected.readLong(), in.readLong());
+                }
+                assertEquals(expected.getPosition(), in.getFilePointer());
+            }
+        }
+    }
+
+    @Test
+    public void testRandomAccessAcrossBoundary() throws IOException {
+        byte[] content = randomContent(new Random(3), BLOCK_SIZE * 2 + 10);
+        ByteArrayDataInput expected = new ByteArrayDataInput(content);
+        try (IndexInput in = newInput(content)) {
+            RandomAccessInput rai = (RandomAccessInput) in;
+            for (int pos = BLOCK_SIZE - 9; pos <= BLOCK_SIZE + 1; pos++) {
+                expected.setPosition(pos);
+                assertEquals("pos=" + pos, expected.readByte(), rai.readByte(pos));
+                expected.setPosition(pos);
+                assertEquals("pos=" + pos, expected.readShort(), rai.readShort(pos));
+                expected.setPosition(pos);
+                assertEquals("pos=" + pos, expected.readInt(), rai.readInt(pos));
+                expected.setPosition(pos);
+                assertEquals("pos=" + pos, expected.readLong(), rai.readLong(pos));
+            }
+            // positional reads do not move the file pointer
+            assertEquals(0, in.getFilePointer());
+        }
+    }
+
+    @Test
+    public void testSliceAcrossBoundary() throws IOException {
+        byte[] content = randomContent(new Random(4), BLOCK_SIZE * 2 + 10);
+        int sliceStart = BLOCK_SIZE - 3;
+        try (IndexInput in = newInput(content)) {
+            IndexInput slice = in.slice("test", sliceStart, 16);
+            ByteArrayDataInput expected = new ByteArrayDataInput(content, sliceStart, 16);
+            assertEquals(expected.readLong(), slice.readLong());
+            assertEquals(expected.readLong(), slice.readLong());
+            try {
+                slice.readByte();
+                fail("read past the end of the slice");
+            } catch (EOFException e) {
+                // expected
+            }
+            RandomAccessInput rai = (RandomAccessInput) slice;
+            expected.setPosition(sliceStart + 1);
+            assertEquals(expected.readInt(), rai.readInt(1));
+            try {
+                rai.readLong(9);
+                fail("positional read past the end of the slice");
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testReadPastEnd() throws IOException {
+        byte[] content = randomContent(new Random(5), BLOCK_SIZE + 3);
+        try (IndexInput in = newInput(content)) {
+            in.seek(BLOCK_SIZE);
+            try {
+                in.readInt();
+                fail("read past the end of the file");
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.github.ddth.com.redir.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BlockLoaderTest {
+
+    /**
+     * Records the fetched key lists; the first fetch blocks until released.
+     * Block data is the key's bytes, a fresh buffer per fetch; keys starting
+     * with {@code missing} do not exist.
+     */
+    private static class BlockingFetcher implements BlockLoader.Fetcher {
+        final List<List<String>> fetches = Collections
+                .synchronizedList(new ArrayList<List<String>>());
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        volatile String failOnKey;
+
+        @Override
+        public List<byte[]> fetch(List<String> keys) throws IOException {
+            fetches.add(new ArrayList<String>(keys));
+            if (firstStarted.getCount() > 0) {
+                firstStarted.countDown();
+                try {
+                    releaseFirst.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            List<byte[]> result = new ArrayList<byte[]>(keys.size());
+            for (String key : keys) {
+                if (key.equals(failOnKey)) {
+                    throw new IOException("failed: " + key);
+                }
+                result.add(key.startsWith("missing") ? null : key.getBytes());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Loads one key in its own thread.
+     */
+    private static class Loader extends Thread {
+        final BlockLoader blockLoader;
+        final String key;
+        volatile byte[] data;
+        volatile Throwable error;
+        volatile boolean interrupted;
+
+        Loader(BlockLoader blockLoader, String key) {
+            this.blockLoader = blockLoader;
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            try {
+                data = blockLoader.load(key);
+            } catch (Throwable e) {
+                error = e;
+            }
+            interrupted = Thread.currentThread().isInterrupted();
+        }
+
+        Loader begin() {
+            start();
+            return this;
+        }
+    }
+
+    private static void awaitWaiting(Thread t) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (t.getState() != Thread.State.WAITING) {
+            assertTrue("thread not waiting: " + t.getState(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        BlockingFetcher fetcher = new BlockingFetcher();
+        fetcher.releaseFirst.countDown();
+        BlockLoader blockLoader = new BlockLoader(fetcher, 2);
+        assertArrayEquals("k1".getBytes(), blockLoader.load("k1"));
+        assertNull(blockLoader.load("missing1"));
+        assertEquals(2, blockLoader.getNumLoads());
+        assertEquals(2, blockLoader.getNumFetches());
+        assertEquals(0, blockLoader.getNumCoalesced());
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        BlockingFetcher fetcher = new BlockingFetcher();
+        BlockLoader blockLoader = new BlockLoader(fetcher, 2);
+        Loader a = new Loader(blockLoader, "k1").begin();
+        assertTrue(fetcher.firstStarted.await(10, TimeUnit.SECONDS));
+        Loader b = new Loader(blockLoader, "k1").begin();
+        awaitWaiting(b);
+        Loader c = new Loader(blockLoader, "k1").begin();
+        awaitWaiting(c);
+        fetcher.releaseFirst.countDown();
+        a.join();
+        b.join();
+        c.join();
+
+        assertEquals(1, fetcher.fetches.size());
+        assertArrayEquals("k1".getBytes(), a.data);
+        // one shared buffer
+        assertSame(a.data, b.data);
+        assertSame(a.data, c.data);
+        assertEquals(3, blockLoader.getNumLoads());
+        assertEquals(2, blockLoader.getNumCoalesced());
+
+        // not cached once fetched
+        blockLoader.load("k1");
+        assertEquals(2, fetcher.fetches.size());
+    }
+
+    @Test
+    public void testQueuedKeysCombined() throws Exception {
+        BlockingFetcher fetcher = new BlockingFetcher();
+        BlockLoader blockLoader = new BlockLoader(fetcher, 1);
+        Loader a = new Loader(blockLoader, "k1").begin();
+        assertTrue(fetcher.firstStarted.await(10, TimeUnit.SECONDS));
+        List<Loader> loaders = new ArrayList<Loader>();
+        for (String key : new String[] { "k2", "k3", "missing4", "k2" }) {
+            Loader loader = new Loader(blockLoader, key).begin();
+            awaitWaiting(loader);
+            loaders.add(loader);
+        }
+        fetcher.releaseFirst.countDown();
+        a.join();
+        for (Loader loader : loaders) {
+            loader.join();
+            assertNull(loader.error);
+        }
+
+        assertEquals(2, fetcher.fetches.size());
+        assertEquals(Arrays.asList("k1"), fetcher.fetches.get(0));
+        assertEquals(Arrays.asList("k2", "k3", "missing4"), fetcher.fetches.get(1));
+        assertArrayEquals("k2".getBytes(), loaders.get(0).data);
+        assertArrayEquals("k3".getBytes(), loaders.get(1).data);
+        assertNull(loaders.get(2).data);
+        assertSame(loaders.get(0).data, loaders.get(3).data);
+        assertEquals(1, blockLoader.getNumCoalesced());
+    }
+
+    @Test
+    public void testMaxBatchSize() throws Exception {
+        BlockingFetcher fetcher = new BlockingFetcher();
+        BlockLoader blockLoader = new BlockLoader(fetcher, 1).setMaxBatchSize(2);
+        Loader a = new Loader(blockLoader, "k1").begin();
+        assertTrue(fetcher.firstStarted.await(10, TimeUnit.SECONDS));
+        List<Loader> loaders = new ArrayList<Loader>();
+        for (String key : new String[] { "k2", "k3", "k4" }) {
+            Loader loader = new Loader(blockLoader, key).begin();
+            awaitWaiting(loader);
+            loaders.add(loader);
+        }
+        fetcher.releaseFirst.countDown();
+        a.join();
+        for (Loader loader : loaders) {
+            loader.join();
+            assertArrayEquals(loader.key.getBytes(), loader.data);
+        }
+
+        assertEquals(3, fetcher.fetches.size());
+        assertEquals(Arrays.asList("k2", "k3"), fetcher.fetches.get(1));
+        assertEquals(Arrays.asList("k4"), fetcher.fetches.get(2));
+    }
+
+    @Test
+    public void testErrorDeliveredToEveryLoad() throws Exception {
+        BlockingFetcher fetcher = new BlockingFetcher();
+        fetcher.failOnKey = "k3";
+        BlockLoader blockLoader = new BlockLoader(fetcher, 1);
+        Loader a = new Loader(blockLoader, "k1").begin();
+        assertTrue(fetcher.firstStarted.await(10, TimeUnit.SECONDS));
+        Loader b = new Loader(blockLoader, "k2").begin();
+        awaitWaiting(b);
+        Loader c = new Loader(blockLoader, "k3").begin();
+        awaitWaiting(c);
+        Loader d = new Loader(blockLoader, "k3").begin();
+        awaitWaiting(d);
+        fetcher.releaseFirst.countDown();
+        a.join();
+        b.join();
+        c.join();
+        d.join();
+
+        assertNull(a.error);
+        assertTrue(b.error instanceof IOException);
+        assertSame(b.error, c.error);
+        assertSame(b.error, d.error);
+        assertNull(b.data);
+
+        // failed keys are fetched again by later loads
+        fetcher.failOnKey = null;
+        assertArrayEquals("k3".getBytes(), blockLoader.load("k3"));
+        assertEquals(3, fetcher.fetches.size());
+    }
+
+    @Test
+    public void testRuntimeExceptionWrapped() throws Exception {
+        final RuntimeException failure = new IllegalStateException("broken");
+        BlockLoader blockLoader = new BlockLoader(new BlockLoader.Fetcher() {
+            @Override
+            public List<byte[]> fetch(List<String> keys) {
+                throw failure;
+            }
+        }, 1);
+        try {
+            blockLoader.load("k1");
+            throw new AssertionError("IOException expected");
+        } catch (IOException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void testInterruptedWhileWaiting() throws Exception {
+        BlockingFetcher fetcher = new BlockingFetcher();
+        BlockLoader blockLoader = new BlockLoader(fetcher, 1);
+        Loader a = new Loader(blockLoader, "k1").begin();
+        assertTrue(fetcher.firstStarted.await(10, TimeUnit.SECONDS));
+        Loader b = new Loader(blockLoader, "k1").begin();
+        awaitWaiting(b);
+        b.interrupt();
+        b.join();
+        assertTrue(b.error instanceof InterruptedIOException);
+        assertTrue(b.interrupted);
+
+        // the in-flight fetch is not affected
+        fetcher.releaseFirst.countDown();
+        a.join();
+        assertNull(a.error);
+        assertArrayEquals("k1".getBytes(), a.data);
+    }
+}
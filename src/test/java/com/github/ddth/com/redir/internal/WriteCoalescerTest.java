@@ -0,0 +1,264 @@
+package com.github.ddth.com.redir.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.ddth.com.redir.internal.WriteCoalescer.Op;
+
+public class WriteCoalescerTest {
+
+    private final static byte[] HASH = "hash".getBytes();
+
+    private static Op op(String field, String value) {
+        return new Op(HASH, field.getBytes(), value != null ? value.getBytes() : null);
+    }
+
+    /**
+     * Records the batches it receives; the first batch blocks until released.
+     */
+    private static class BlockingWriter implements WriteCoalescer.Writer {
+        final List<List<Op>> batches = Collections.synchronizedList(new ArrayList<List<Op>>());
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        volatile String failOnField;
+
+        @Override
+        public void write(List<Op> ops) throws IOException {
+            batches.add(new ArrayList<Op>(ops));
+            if (firstStarted.getCount() > 0) {
+                firstStarted.countDown();
+                try {
+                    releaseFirst.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            for (Op op : ops) {
+                if (new String(op.field).equals(failOnField)) {
+                    throw new IOException("failed: " + failOnField);
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits one {@link WriteCoalescer#write(List)} call in its own thread.
+     */
+    private static class Submitter extends Thread {
+        final WriteCoalescer coalescer;
+        final List<Op> ops;
+        volatile Throwable error;
+        volatile boolean interrupted;
+
+        Submitter(WriteCoalescer coalescer, Op... ops) {
+            this.coalescer = coalescer;
+            this.ops = Arrays.asList(ops);
+        }
+
+        @Override
+        public void run() {
+            try {
+                coalescer.write(ops);
+            } catch (Throwable e) {
+                error = e;
+            }
+            interrupted = Thread.currentThread().isInterrupted();
+        }
+
+        Submitter begin() {
+            start();
+            return this;
+        }
+    }
+
+    private static void awaitWaiting(Thread t) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (t.getState() != Thread.State.WAITING && t.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue("thread not waiting: " + t.getState(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static List<String> fields(List<Op> ops) {
+        List<String> result = new ArrayList<String>();
+        for (Op op : ops) {
+            result.add(new String(op.field));
+        }
+        return result;
+    }
+
+    @Test
+    public void testSingleWrite() throws Exception {
+        final List<List<Op>> batches = new ArrayList<List<Op>>();
+        WriteCoalescer coalescer = new WriteCoalescer(new WriteCoalescer.Writer() {
+            @Override
+            public void write(List<Op> ops) {
+                batches.add(ops);
+            }
+        }, 2);
+        coalescer.write(Arrays.asList(op("a", "1"), op("b", null)));
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList("a", "b"), fields(batches.get(0)));
+        assertNull(batches.get(0).get(1).value);
+        assertEquals(1, coalescer.getNumWrites());
+        assertEquals(2, coalescer.getNumOps());
+        assertEquals(1, coalescer.getNumBatches());
+    }
+
+    @Test
+    public void testQueuedWritesShareBatch() throws Exception {
+        BlockingWriter writer = new BlockingWriter();
+        WriteCoalescer coalescer = new WriteCoalescer(writer, 1);
+        Submitter a = new Submitter(coalescer, op("a1", "x")).begin();
+        assertTrue(writer.firstStarted.await(10, TimeUnit.SECONDS));
+        Submitter b = new Submitter(coalescer, op("b1", "x"), op("b2", "x"), op("b3", "x"))
+                .begin();
+        awaitWaiting(b);
+        Submitter c = new Submitter(coalescer, op("c1", "x"), op("c2", "x")).begin();
+        awaitWaiting(c);
+        writer.releaseFirst.countDown();
+        a.join();
+        b.join();
+        c.join();
+        assertNull(a.error);
+        assertNull(b.error);
+        assertNull(c.error);
+
+        assertEquals(2, writer.batches.size());
+        assertEquals(Arrays.asList("a1"), fields(writer.batches.get(0)));
+        // each write(List) group is sent whole and in order
+        assertEquals(Arrays.asList("b1", "b2", "b3", "c1", "c2"), fields(writer.batches.get(1)));
+        assertEquals(2, coalescer.getNumBatches());
+        assertEquals(3, coalescer.getNumWrites());
+        assertEquals(6, coalescer.getNumOps());
+    }
+
+    @Test
+    public void testMaxBatchBytes() throws Exception {
+        BlockingWriter writer = new BlockingWriter();
+        // each group below is 6 bytes: one group per batch
+        WriteCoalescer coalescer = new WriteCoalescer(writer, 1).setMaxBatchBytes(10);
+        Submitter a = new Submitter(coalescer, op("a1", "xxxx")).begin();
+        assertTrue(writer.firstStarted.await(10, TimeUnit.SECONDS));
+        Submitter b = new Submitter(coalescer, op("b1", "xxxx")).begin();
+        awaitWaiting(b);
+        Submitter c = new Submitter(coalescer, op("c1", "xxxx")).begin();
+        awaitWaiting(c);
+        // larger than a batch: sent alone, not split
+        Submitter d = new Submitter(coalescer, op("d1", "xxxx"), op("d2", "xxxx")).begin();
+        awaitWaiting(d);
+        writer.releaseFirst.countDown();
+        a.join();
+        b.join();
+        c.join();
+        d.join();
+
+        assertEquals(4, writer.batches.size());
+        assertEquals(Arrays.asList("a1"), fields(writer.batches.get(0)));
+        assertEquals(Arrays.asList("b1"), fields(writer.batches.get(1)));
+        assertEquals(Arrays.asList("c1"), fields(writer.batches.get(2)));
+        assertEquals(Arrays.asList("d1", "d2"), fields(writer.batches.get(3)));
+    }
+
+    @Test
+    public void testErrorDeliveredToEveryGroup() throws Exception {
+        BlockingWriter writer = new BlockingWriter();
+        writer.failOnField = "c1";
+        WriteCoalescer coalescer = new WriteCoalescer(writer, 1);
+        Submitter a = new Submitter(coalescer, op("a1", "x")).begin();
+        assertTrue(writer.firstStarted.await(10, TimeUnit.SECONDS));
+        Submitter b = new Submitter(coalescer, op("b1", "x")).begin();
+        awaitWaiting(b);
+        Submitter c = new Submitter(coalescer, op("c1", "x")).begin();
+        awaitWaiting(c);
+        writer.releaseFirst.countDown();
+        a.join();
+        b.join();
+        c.join();
+
+        assertEquals(2, writer.batches.size());
+        assertNull(a.error);
+        assertTrue(b.error instanceof IOException);
+        assertSame(b.error, c.error);
+
+        // later writes are not affected
+        writer.failOnField = null;
+        coalescer.write(Arrays.asList(op("e1", "x")));
+        assertEquals(3, writer.batches.size());
+    }
+
+    @Test
+    public void testRuntimeExceptionWrapped() throws Exception {
+        final RuntimeException failure = new IllegalStateException("broken");
+        WriteCoalescer coalescer = new WriteCoalescer(new WriteCoalescer.Writer() {
+            @Override
+            public void write(List<Op> ops) {
+                throw failure;
+            }
+        }, 1);
+        try {
+            coalescer.write(Arrays.asList(op("a", "1")));
+            throw new AssertionError("IOException expected");
+        } catch (IOException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void testInterruptedWhileWaiting() throws Exception {
+        BlockingWriter writer = new BlockingWriter();
+        WriteCoalescer coalescer = new WriteCoalescer(writer, 1);
+        Submitter a = new Submitter(coalescer, op("a1", "x")).begin();
+        assertTrue(writer.firstStarted.await(10, TimeUnit.SECONDS));
+        Submitter b = new Submitter(coalescer, op("b1", "x")).begin();
+        awaitWaiting(b);
+        b.interrupt();
+        b.join();
+        assertTrue(b.error instanceof InterruptedIOException);
+        assertTrue(b.interrupted);
+
+        writer.releaseFirst.countDown();
+        a.join();
+        assertNull(a.error);
+        // no batch slot leaked by the interrupted writer
+        coalescer.write(Arrays.asList(op("c1", "x")));
+    }
+
+    @Test
+    public void testInterruptedDuringWindow() throws Exception {
+        final List<List<Op>> batches = Collections.synchronizedList(new ArrayList<List<Op>>());
+        WriteCoalescer coalescer = new WriteCoalescer(new WriteCoalescer.Writer() {
+            @Override
+            public void write(List<Op> ops) {
+                batches.add(ops);
+            }
+        }, 1).setWindowMicros(TimeUnit.SECONDS.toMicros(60));
+        Submitter a = new Submitter(coalescer, op("a1", "x")).begin();
+        awaitWaiting(a);
+        a.interrupt();
+        a.join();
+        assertTrue(a.error instanceof InterruptedIOException);
+        assertTrue(batches.isEmpty());
+
+        // the batch slot taken for the window is given back; writes queued
+        // by the interrupted caller are sent with the next batch
+        coalescer.setWindowMicros(0);
+        coalescer.write(Arrays.asList(op("b1", "x")));
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList("a1", "b1"), fields(batches.get(0)));
+    }
+}
@@ -0,0 +1,200 @@
+package com.github.ddth.com.redir.qnd;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+
+import ch.qos.logback.classic.Level;
+
+import com.github.ddth.com.redir.BlockGarbageCollector;
+import com.github.ddth.com.redir.RedisDirectory;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Reference counting of content-addressed blocks: two files with identical
+ * content share their blocks (one reference each), deleting a file releases
+ * its references, and blocks go away with their last reference. Then
+ * registrations of an abandoned writer (old timestamp, with recorded block
+ * references) and of an active writer are planted: the collector must release
+ * the abandoned writer's references only, keeping blocks still referenced by a
+ * live file.
+ *
+ * <p>
+ * Runs against the Redis server at {@code -Dhost}/{@code -Dport}, in
+ * namespace {@code -Dnamespace} [blockrefs]. Exits with status 1 on the first
+ * failure.
+ * </p>
+ */
+public class QndRedisDirBlockRefs extends BaseQndRedisDir {
+
+    static final String HOST = System.getProperty("host", REDIS_HOST);
+    static final int PORT = Integer.getInteger("port", REDIS_PORT);
+    static final String PASSWORD = System.getProperty("password", REDIS_PASSWORD);
+    static final String NAMESPACE = System.getProperty("namespace", "blockrefs");
+
+    static final int NUM_BLOCKS = 3;
+    static final int FILE_SIZE = RedisDirectory.BLOCK_SIZE * (NUM_BLOCKS - 1) + 1234;
+
+    static Jedis newJedis() {
+        Jedis jedis = new Jedis(HOST, PORT);
+        if (PASSWORD != null) {
+            jedis.auth(PASSWORD);
+        }
+        return jedis;
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    static void writeFile(RedisDirectory dir, String name, byte[] content) throws IOException {
+        try (IndexOutput out = dir.createOutput(name, IOContext.DEFAULT)) {
+            out.writeBytes(content, content.length);
+        }
+    }
+
+    static void verify(RedisDirectory dir, String name, byte[] expected) throws IOException {
+        byte[] actual = new byte[expected.length];
+        try (IndexInput in = dir.openInput(name, IOContext.READONCE)) {
+            in.readBytes(actual, 0, actual.length);
+        }
+        check(Arrays.equals(expected, actual), name + ": content changed");
+    }
+
+    /**
+     * Number of blocks with the given reference count.
+     */
+    static int countRefs(Map<String, String> refs, int count) {
+        int result = 0;
+        for (String value : refs.values()) {
+            if (Long.parseLong(value) == count) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    static String anyBlockWithRefs(Map<String, String> refs, int count) {
+        for (Entry<String, String> entry : refs.entrySet()) {
+            if (Long.parseLong(entry.getValue()) == count) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    static void cleanup(Jedis jedis, RedisDirectory dir) {
+        jedis.del(dir.getHashDirectoryMetadata(), dir.getHashFileData(), dir.getHashBlockRefs(),
+                dir.getHashPendingFiles());
+    }
+
+    public static void main(String args[]) throws Exception {
+        initLoggers(Level.ERROR);
+
+        RedisDirectory DIR = new RedisDirectory(HOST, PORT, PASSWORD);
+        DIR.setHashDirectoryMetadata(NAMESPACE + "_metadata").setHashFileData(NAMESPACE + "_data")
+                .setHashPendingFiles(NAMESPACE + "_pending").setContentAddressed(true);
+        final String HASH_DATA = DIR.getHashFileData();
+        final String HASH_REFS = DIR.getHashBlockRefs();
+        final String HASH_PENDING = DIR.getHashPendingFiles();
+        boolean failed = false;
+        try (Jedis jedis = newJedis()) {
+            cleanup(jedis, DIR);
+            try {
+                Random random = new Random(1);
+                byte[] shared = new byte[FILE_SIZE];
+                random.nextBytes(shared);
+                byte[] other = new byte[FILE_SIZE];
+                random.nextBytes(other);
+
+                writeFile(DIR, "_0.fdt", shared);
+                writeFile(DIR, "_1.fdt", shared);
+                writeFile(DIR, "_2.fdt", other);
+                Map<String, String> refs = jedis.hgetAll(HASH_REFS);
+                check(countRefs(refs, 2) == NUM_BLOCKS && countRefs(refs, 1) == NUM_BLOCKS,
+                        "after write: refs " + refs.values());
+                check(jedis.hlen(HASH_DATA) == 2 * NUM_BLOCKS,
+                        "after write: " + jedis.hlen(HASH_DATA) + " blocks stored");
+                check(jedis.hlen(HASH_PENDING) == 0,
+                        "after write: pending " + jedis.hkeys(HASH_PENDING));
+
+                DIR.deleteFile("_0.fdt");
+                refs = jedis.hgetAll(HASH_REFS);
+                check(countRefs(refs, 1) == 2 * NUM_BLOCKS,
+                        "after first delete: refs " + refs.values());
+                check(jedis.hlen(HASH_DATA) == 2 * NUM_BLOCKS,
+                        "after first delete: " + jedis.hlen(HASH_DATA) + " blocks stored");
+                verify(DIR, "_1.fdt", shared);
+
+                DIR.deleteFile("_1.fdt");
+                refs = jedis.hgetAll(HASH_REFS);
+                check(refs.size() == NUM_BLOCKS && countRefs(refs, 1) == NUM_BLOCKS,
+                        "after last delete: refs " + refs.values());
+                check(jedis.hlen(HASH_DATA) == NUM_BLOCKS,
+                        "after last delete: " + jedis.hlen(HASH_DATA) + " blocks stored");
+                verify(DIR, "_2.fdt", other);
+
+                /*
+                 * Abandoned writer: one reference on a block of its own, one
+                 * on a block of the live file. Active writer: one reference
+                 * on a block of its own.
+                 */
+                String liveBlock = anyBlockWithRefs(refs, 1);
+                String abandonedBlock = RedisDirectory.CONTENT_BLOCK_PREFIX + "abandoned";
+                String activeBlock = RedisDirectory.CONTENT_BLOCK_PREFIX + "active";
+                jedis.hset(HASH_PENDING, "abandoned", "1:" + HASH_DATA);
+                jedis.hset(HASH_PENDING, "abandoned:0", abandonedBlock);
+                jedis.hset(HASH_PENDING, "abandoned:1", liveBlock);
+                jedis.hset(HASH_DATA, abandonedBlock, "abandoned");
+                jedis.hincrBy(HASH_REFS, abandonedBlock, 1);
+                jedis.hincrBy(HASH_REFS, liveBlock, 1);
+                jedis.hset(HASH_PENDING, "active", System.currentTimeMillis() + ":" + HASH_DATA);
+                jedis.hset(HASH_PENDING, "active:0", activeBlock);
+                jedis.hset(HASH_DATA, activeBlock, "active");
+                jedis.hincrBy(HASH_REFS, activeBlock, 1);
+
+                BlockGarbageCollector gc = new BlockGarbageCollector(DIR)
+                        .setPendingGraceMs(60000);
+                BlockGarbageCollector.Result result = gc.runOnce();
+                check(result.abandonedFilesRemoved == 1 && result.blockRefsReleased == 2,
+                        "gc: " + result);
+                check(!jedis.hexists(HASH_DATA, abandonedBlock)
+                        && !jedis.hexists(HASH_REFS, abandonedBlock),
+                        "gc: abandoned block kept");
+                check("1".equals(jedis.hget(HASH_REFS, liveBlock)),
+                        "gc: live block refs " + jedis.hget(HASH_REFS, liveBlock));
+                check(!jedis.hexists(HASH_PENDING, "abandoned")
+                        && !jedis.hexists(HASH_PENDING, "abandoned:0")
+                        && !jedis.hexists(HASH_PENDING, "abandoned:1"),
+                        "gc: abandoned registration kept " + jedis.hkeys(HASH_PENDING));
+                check(jedis.hexists(HASH_PENDING, "active")
+                        && jedis.hexists(HASH_PENDING, "active:0")
+                        && "1".equals(jedis.hget(HASH_REFS, activeBlock))
+                        && jedis.hexists(HASH_DATA, activeBlock),
+                        "gc: active writer's registration or block released");
+                verify(DIR, "_2.fdt", other);
+
+                System.out.println("OK " + result);
+            } catch (Exception e) {
+                failed = true;
+                System.out.println("Failed: " + e);
+            } finally {
+                cleanup(jedis, DIR);
+            }
+        } finally {
+            DIR.destroy();
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+}
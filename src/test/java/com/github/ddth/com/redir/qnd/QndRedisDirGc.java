@@ -0,0 +1,140 @@
+package com.github.ddth.com.redir.qnd;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+
+import ch.qos.logback.classic.Level;
+
+import com.github.ddth.com.redir.BlockGarbageCollector;
+import com.github.ddth.com.redir.RedisDirectory;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Two-run candidate logic of {@link BlockGarbageCollector}: orphan blocks are
+ * only candidates after the first run and are removed by the second one,
+ * unless they stopped being orphans meanwhile (file registered as pending,
+ * content-addressed block referenced again). Blocks of live files, of pending
+ * files and referenced content-addressed blocks are never removed.
+ *
+ * <p>
+ * Runs against the Redis server at {@code -Dhost}/{@code -Dport}, in
+ * namespace {@code -Dnamespace} [gc]. Exits with status 1 on the first
+ * failure.
+ * </p>
+ */
+public class QndRedisDirGc extends BaseQndRedisDir {
+
+    static final String HOST = System.getProperty("host", REDIS_HOST);
+    static final int PORT = Integer.getInteger("port", REDIS_PORT);
+    static final String PASSWORD = System.getProperty("password", REDIS_PASSWORD);
+    static final String NAMESPACE = System.getProperty("namespace", "gc");
+
+    static final String FILE_NAME = "_0.fdt";
+    static final int FILE_SIZE = RedisDirectory.BLOCK_SIZE * 2 + 1234;
+
+    static Jedis newJedis() {
+        Jedis jedis = new Jedis(HOST, PORT);
+        if (PASSWORD != null) {
+            jedis.auth(PASSWORD);
+        }
+        return jedis;
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    static void verify(RedisDirectory dir, byte[] expected) throws IOException {
+        byte[] actual = new byte[expected.length];
+        try (IndexInput in = dir.openInput(FILE_NAME, IOContext.READONCE)) {
+            in.readBytes(actual, 0, actual.length);
+        }
+        check(Arrays.equals(expected, actual), FILE_NAME + ": content changed");
+    }
+
+    static void cleanup(Jedis jedis, RedisDirectory dir) {
+        jedis.del(dir.getHashDirectoryMetadata(), dir.getHashFileData(), dir.getHashBlockRefs(),
+                dir.getHashPendingFiles());
+    }
+
+    public static void main(String args[]) throws Exception {
+        initLoggers(Level.ERROR);
+
+        RedisDirectory DIR = new RedisDirectory(HOST, PORT, PASSWORD);
+        DIR.setHashDirectoryMetadata(NAMESPACE + "_metadata").setHashFileData(NAMESPACE + "_data")
+                .setHashPendingFiles(NAMESPACE + "_pending");
+        final String HASH_DATA = DIR.getHashFileData();
+        final String HASH_REFS = DIR.getHashBlockRefs();
+        final String HASH_PENDING = DIR.getHashPendingFiles();
+        final String P = RedisDirectory.CONTENT_BLOCK_PREFIX;
+        boolean failed = false;
+        try (Jedis jedis = newJedis()) {
+            cleanup(jedis, DIR);
+            try {
+                byte[] content = new byte[FILE_SIZE];
+                new Random(1).nextBytes(content);
+                try (IndexOutput out = DIR.createOutput(FILE_NAME, IOContext.DEFAULT)) {
+                    out.writeBytes(content, content.length);
+                }
+                long liveBlocks = jedis.hlen(HASH_DATA);
+
+                // orphans
+                jedis.hset(HASH_DATA, "orphan:0", "orphan");
+                jedis.hset(HASH_DATA, "orphan:1", "orphan");
+                jedis.hset(HASH_DATA, P + "orphan", "orphan");
+                // orphans in the first run only
+                jedis.hset(HASH_DATA, "late:0", "late");
+                jedis.hset(HASH_DATA, P + "revived", "revived");
+                // never orphans
+                jedis.hset(HASH_PENDING, "pending", System.currentTimeMillis() + ":" + HASH_DATA);
+                jedis.hset(HASH_DATA, "pending:0", "pending");
+                jedis.hset(HASH_DATA, P + "kept", "kept");
+                jedis.hincrBy(HASH_REFS, P + "kept", 1);
+
+                BlockGarbageCollector gc = new BlockGarbageCollector(DIR)
+                        .setPendingGraceMs(60000);
+                BlockGarbageCollector.Result first = gc.runOnce();
+                check(first.blocksRemoved == 0, "first run: " + first);
+                check(first.orphanCandidates == 5, "first run: " + first);
+                check(jedis.hlen(HASH_DATA) == liveBlocks + 7,
+                        "first run: " + jedis.hlen(HASH_DATA) + " blocks left");
+
+                jedis.hset(HASH_PENDING, "late", System.currentTimeMillis() + ":" + HASH_DATA);
+                jedis.hincrBy(HASH_REFS, P + "revived", 1);
+
+                BlockGarbageCollector.Result second = gc.runOnce();
+                check(second.blocksRemoved == 3, "second run: " + second);
+                check(second.orphanCandidates == 0, "second run: " + second);
+                check(!jedis.hexists(HASH_DATA, "orphan:0") && !jedis.hexists(HASH_DATA, "orphan:1")
+                        && !jedis.hexists(HASH_DATA, P + "orphan"), "second run: orphan kept");
+                check(jedis.hexists(HASH_DATA, "late:0") && jedis.hexists(HASH_DATA, P + "revived")
+                        && jedis.hexists(HASH_DATA, "pending:0")
+                        && jedis.hexists(HASH_DATA, P + "kept"),
+                        "second run: non-orphan removed");
+                check(jedis.hlen(HASH_DATA) == liveBlocks + 4,
+                        "second run: " + jedis.hlen(HASH_DATA) + " blocks left");
+                verify(DIR, content);
+
+                System.out.println("OK " + first + " / " + second);
+            } catch (Exception e) {
+                failed = true;
+                System.out.println("Failed: " + e);
+            } finally {
+                cleanup(jedis, DIR);
+            }
+        } finally {
+            DIR.destroy();
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.github.ddth.com.redir.qnd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+
+import ch.qos.logback.classic.Level;
+
+import com.github.ddth.com.redir.IoStats;
+import com.github.ddth.com.redir.RedisDirectory;
+
+/**
+ * Reproducible load test: concurrent indexing (with NRT refreshes and
+ * merges) and searching of a synthetic corpus against a
+ * {@link RedisDirectory}.
+ *
+ * <p>
+ * Runs against the Redis server (or any Redis-compatible stand-in supporting
+ * hashes and Lua scripts) at {@code -Dhost}/{@code -Dport}. The corpus is
+ * generated from {@code -Dseed}, so runs with the same parameters are
+ * comparable. Files of the test namespace are removed before the run.
+ * </p>
+ *
+ * <p>
+ * Parameters (system properties, defaults in brackets): {@code host}
+ * [localhost], {@code port} [6379], {@code password}, {@code namespace}
+ * [loadtest], {@code seed} [1], {@code vocabulary} [50000],
+ * {@code docWords} [100], {@code initialDocs} [10000],
+ * {@code indexThreads} [2], {@code searchThreads} [8],
+ * {@code durationSec} [60], {@code refreshMs} [1000],
+ * {@code blockCacheSize} [0], {@code packThreshold} [0].
+ * </p>
+ *
+ * <p>
+ * Output: one {@code key=value} summary line (throughput, search latency
+ * percentiles, Redis ops per query, heap usage).
+ * </p>
+ */
+public class QndRedisDirLoadTest extends BaseQndRedisDir {
+
+    static final String HOST = System.getProperty("host", REDIS_HOST);
+    static final int PORT = Integer.getInteger("port", REDIS_PORT);
+    static final String PASSWORD = System.getProperty("password", REDIS_PASSWORD);
+    static final String NAMESPACE = System.getProperty("namespace", "loadtest");
+    static final long SEED = Long.getLong("seed", 1);
+    static final int VOCABULARY = Integer.getInteger("vocabulary", 50000);
+    static final int DOC_WORDS = Integer.getInteger("docWords", 100);
+    static final int INITIAL_DOCS = Integer.getInteger("initialDocs", 10000);
+    static final int INDEX_THREADS = Integer.getInteger("indexThreads", 2);
+    static final int SEARCH_THREADS = Integer.getInteger("searchThreads", 8);
+    static final int DURATION_SEC = Integer.getInteger("durationSec", 60);
+    static final int REFRESH_MS = Integer.getInteger("refreshMs", 1000);
+    static final int BLOCK_CACHE_SIZE = Integer.getInteger("blockCacheSize", 0);
+    static final int PACK_THRESHOLD = Integer.getInteger("packThreshold", 0);
+
+    static final AtomicBoolean RUNNING = new AtomicBoolean(true);
+    static final AtomicLong DOCS_INDEXED = new AtomicLong();
+    static final AtomicLong REFRESHES = new AtomicLong();
+    static final AtomicLong QUERIES = new AtomicLong();
+    static final AtomicLong QUERY_REDIS_CALLS = new AtomicLong();
+    static final AtomicLong QUERY_BLOCKS_FETCHED = new AtomicLong();
+    static final AtomicLong ERRORS = new AtomicLong();
+
+    /**
+     * Zipf-like word distribution: low word ids are much more frequent.
+     */
+    static String word(Random random) {
+        double x = Math.pow(random.nextDouble(), 3);
+        return "w" + Integer.toString((int) (x * VOCABULARY), 36);
+    }
+
+    static Document newDocument(Random random, long id) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < DOC_WORDS; i++) {
+            sb.append(word(random)).append(' ');
+        }
+        Document doc = new Document();
+        doc.add(new StringField("id", Long.toString(id, 36), Field.Store.YES));
+        doc.add(new TextField("body", sb.toString(), Field.Store.NO));
+        doc.add(new NumericDocValuesField("timestamp", id));
+        return doc;
+    }
+
+    static Query newQuery(Random random) {
+        switch (random.nextInt(3)) {
+        case 0:
+            return new TermQuery(new Term("body", word(random)));
+        case 1: {
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            builder.add(new TermQuery(new Term("body", word(random))), Occur.MUST);
+            builder.add(new TermQuery(new Term("body", word(random))), Occur.MUST);
+            return builder.build();
+        }
+        default: {
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            for (int i = 0; i < 4; i++) {
+                builder.add(new TermQuery(new Term("body", word(random))), Occur.SHOULD);
+            }
+            return builder.build();
+        }
+        }
+    }
+
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public static void main(String args[]) throws Exception {
+        initLoggers(Level.ERROR);
+
+        final RedisDirectory DIR = new RedisDirectory(HOST, PORT, PASSWORD);
+        DIR.setHashDirectoryMetadata(NAMESPACE + "_metadata").setHashFileData(NAMESPACE + "_data")
+                .setHashBlockRefs(NAMESPACE + "_refs").setBlockCacheSize(BLOCK_CACHE_SIZE)
+                .setPackThreshold(PACK_THRESHOLD);
+        try {
+            for (String name : DIR.listAll()) {
+                DIR.deleteFile(name);
+            }
+
+            IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+            iwc.setOpenMode(OpenMode.CREATE);
+            final IndexWriter iw = new IndexWriter(DIR, iwc);
+
+            long t0 = System.currentTimeMillis();
+            Random random = new Random(SEED);
+            for (int i = 0; i < INITIAL_DOCS; i++) {
+                iw.addDocument(newDocument(random, i));
+            }
+            iw.commit();
+            final AtomicLong NEXT_ID = new AtomicLong(INITIAL_DOCS);
+            long initialLoadMs = System.currentTimeMillis() - t0;
+
+            final SearcherManager sm = new SearcherManager(iw, true, null);
+            List<Thread> threads = new ArrayList<Thread>();
+
+            // indexers: new documents and updates of existing ones
+            for (int t = 0; t < INDEX_THREADS; t++) {
+                final Random r = new Random(SEED * 1000 + t);
+                threads.add(new Thread("indexer-" + t) {
+                    public void run() {
+                        while (RUNNING.get()) {
+                            try {
+                                if (r.nextInt(4) == 0) {
+                                    long id = r.nextInt((int) Math.min(NEXT_ID.get(),
+                                            Integer.MAX_VALUE));
+                                    iw.updateDocument(new Term("id", Long.toString(id, 36)),
+                                            newDocument(r, id));
+                                } else {
+                                    iw.addDocument(newDocument(r, NEXT_ID.getAndIncrement()));
+                                }
+                                DOCS_INDEXED.incrementAndGet();
+                            } catch (Exception e) {
+                                ERRORS.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+            }
+
+            // NRT refresher
+            threads.add(new Thread("refresher") {
+                public void run() {
+                    while (RUNNING.get()) {
+                        try {
+                            Thread.sleep(REFRESH_MS);
+                            sm.maybeRefresh();
+                            REFRESHES.incrementAndGet();
+                        } catch (InterruptedException e) {
+                            return;
+                        } catch (Exception e) {
+                            ERRORS.incrementAndGet();
+                        }
+                    }
+                }
+            });
+
+            // searchers
+            final long[][] LATENCIES = new long[SEARCH_THREADS][];
+            final CountDownLatch SEARCHERS_DONE = new CountDownLatch(SEARCH_THREADS);
+            for (int t = 0; t < SEARCH_THREADS; t++) {
+                final int T = t;
+                final Random r = new Random(SEED * 2000 + t);
+                threads.add(new Thread("searcher-" + t) {
+                    public void run() {
+                        long[] latencies = new long[1024];
+                        int n = 0;
+                        Sort sort = new Sort(new SortField("timestamp", SortField.Type.LONG, true));
+                        try {
+                            while (RUNNING.get()) {
+                                IoStats stats = IoStats.start();
+                                long t1 = System.nanoTime();
+                                try {
+                                    IndexSearcher is = sm.acquire();
+                                    try {
+                                        Query q = newQuery(r);
+                                        if (r.nextBoolean()) {
+                                            is.search(q, 10);
+                                        } else {
+                                            is.search(q, 10, sort);
+                                        }
+                                    } finally {
+                                        sm.release(is);
+                                    }
+                                } catch (IOException e) {
+                                    ERRORS.incrementAndGet();
+                                    continue;
+                                } finally {
+                                    IoStats.stop();
+                                }
+                                if (n == latencies.length) {
+                                    latencies = Arrays.copyOf(latencies, n * 2);
+                                }
+                                latencies[n++] = System.nanoTime() - t1;
+                                QUERIES.incrementAndGet();
+                                QUERY_REDIS_CALLS.addAndGet(stats.getRedisCalls());
+                                QUERY_BLOCKS_FETCHED.addAndGet(stats.getBlocksFetched());
+                            }
+                        } finally {
+                            LATENCIES[T] = Arrays.copyOf(latencies, n);
+                            SEARCHERS_DONE.countDown();
+                        }
+                    }
+                });
+            }
+
+            long t1 = System.currentTimeMillis();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            Thread.sleep(DURATION_SEC * 1000L);
+            RUNNING.set(false);
+            for (Thread thread : threads) {
+                thread.interrupt();
+                thread.join();
+            }
+            SEARCHERS_DONE.await();
+            long elapsedMs = System.currentTimeMillis() - t1;
+
+            long t2 = System.currentTimeMillis();
+            iw.commit();
+            long commitMs = System.currentTimeMillis() - t2;
+            sm.close();
+            iw.close();
+
+            int total = 0;
+            for (long[] l : LATENCIES) {
+                total += l.length;
+            }
+            long[] all = new long[total];
+            int pos = 0;
+            for (long[] l : LATENCIES) {
+                System.arraycopy(l, 0, all, pos, l.length);
+                pos += l.length;
+            }
+            Arrays.sort(all);
+            long queries = QUERIES.get();
+            Runtime rt = Runtime.getRuntime();
+            System.gc();
+            long heapUsedMb = (rt.totalMemory() - rt.freeMemory()) / 1024 / 1024;
+            System.out.println(String.format(Locale.US,
+                    "seed=%d initialDocs=%d initialLoadMs=%d durationMs=%d"
+                            + " docsIndexed=%d indexDocsPerSec=%.1f refreshes=%d"
+                            + " queries=%d queriesPerSec=%.1f"
+                            + " latencyP50Ms=%.2f latencyP90Ms=%.2f latencyP99Ms=%.2f"
+                            + " latencyP999Ms=%.2f latencyMaxMs=%.2f"
+                            + " redisCallsPerQuery=%.2f blocksFetchedPerQuery=%.2f"
+                            + " finalCommitMs=%d errors=%d heapUsedMb=%d heapMaxMb=%d",
+                    SEED, INITIAL_DOCS, initialLoadMs, elapsedMs, DOCS_INDEXED.get(),
+                    DOCS_INDEXED.get() * 1000.0 / elapsedMs, REFRESHES.get(), queries,
+                    queries * 1000.0 / elapsedMs, percentile(all, 0.5) / 1e6,
+                    percentile(all, 0.9) / 1e6, percentile(all, 0.99) / 1e6,
+                    percentile(all, 0.999) / 1e6, percentile(all, 1.0) / 1e6,
+                    queries > 0 ? QUERY_REDIS_CALLS.get() / (double) queries : 0,
+                    queries > 0 ? QUERY_BLOCKS_FETCHED.get() / (double) queries : 0, commitMs,
+                    ERRORS.get(), heapUsedMb, rt.maxMemory() / 1024 / 1024));
+        } finally {
+            DIR.destroy();
+        }
+    }
+
+}
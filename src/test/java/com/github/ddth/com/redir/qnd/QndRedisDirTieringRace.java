@@ -0,0 +1,185 @@
+package com.github.ddth.com.redir.qnd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+
+import ch.qos.logback.classic.Level;
+
+import com.github.ddth.com.redir.FsTierStore;
+import com.github.ddth.com.redir.RedisDirectory;
+import com.github.ddth.com.redir.TierStore;
+
+/**
+ * Concurrent demotions, then concurrent promotions, of the same file: both
+ * callers read the file's metadata before either switches it (they meet at a
+ * barrier inside the tier store), one wins the switch and the other one
+ * cleans up. The file must stay readable, with its content unchanged, after
+ * each round.
+ *
+ * <p>
+ * Runs against the Redis server at {@code -Dhost}/{@code -Dport}, in
+ * namespace {@code -Dnamespace} [tieringrace], for {@code -Drounds} [20]
+ * rounds. Exits with status 1 on the first failure.
+ * </p>
+ */
+public class QndRedisDirTieringRace extends BaseQndRedisDir {
+
+    static final String HOST = System.getProperty("host", REDIS_HOST);
+    static final int PORT = Integer.getInteger("port", REDIS_PORT);
+    static final String PASSWORD = System.getProperty("password", REDIS_PASSWORD);
+    static final String NAMESPACE = System.getProperty("namespace", "tieringrace");
+    static final int ROUNDS = Integer.getInteger("rounds", 20);
+
+    static final String FILE_NAME = "_0.fdt";
+    static final int FILE_SIZE = RedisDirectory.BLOCK_SIZE * 3 + 1234;
+
+    /**
+     * Tier store whose first operation of each caller (object write, or read
+     * of the first block) waits for the other caller.
+     */
+    static class RendezvousTierStore implements TierStore {
+        final TierStore delegate;
+        volatile CyclicBarrier barrier;
+
+        RendezvousTierStore(TierStore delegate) {
+            this.delegate = delegate;
+        }
+
+        void await() throws IOException {
+            CyclicBarrier barrier = this.barrier;
+            if (barrier != null) {
+                try {
+                    barrier.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IOException("Rendezvous failed: " + e, e);
+                }
+            }
+        }
+
+        @Override
+        public void put(String key, InputStream in, long length) throws IOException {
+            await();
+            delegate.put(key, in, length);
+        }
+
+        @Override
+        public void read(String key, long position, byte[] dest, int offset, int length)
+                throws IOException {
+            if (position == 0) {
+                await();
+            }
+            delegate.read(key, position, dest, offset, length);
+        }
+
+        @Override
+        public void delete(String key) throws IOException {
+            delegate.delete(key);
+        }
+    }
+
+    static void verify(RedisDirectory dir, byte[] expected, String step) throws IOException {
+        byte[] actual = new byte[expected.length];
+        try (IndexInput in = dir.openInput(FILE_NAME, IOContext.READONCE)) {
+            in.readBytes(actual, 0, actual.length);
+        }
+        if (!Arrays.equals(expected, actual)) {
+            throw new IllegalStateException(step + ": content changed");
+        }
+    }
+
+    /**
+     * Runs the same operation in two threads, returns the number of callers
+     * that switched the file.
+     */
+    static int race(ExecutorService executor, RendezvousTierStore tierStore,
+            Callable<Boolean> op) throws Exception {
+        tierStore.barrier = new CyclicBarrier(2);
+        try {
+            Future<Boolean> f1 = executor.submit(op);
+            Future<Boolean> f2 = executor.submit(op);
+            return (f1.get() ? 1 : 0) + (f2.get() ? 1 : 0);
+        } finally {
+            tierStore.barrier = null;
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        initLoggers(Level.ERROR);
+
+        Path tierRoot = Files.createTempDirectory("redir-tier");
+        FsTierStore fsTierStore = new FsTierStore(tierRoot);
+        final RendezvousTierStore tierStore = new RendezvousTierStore(fsTierStore);
+        final RedisDirectory DIR = new RedisDirectory(HOST, PORT, PASSWORD);
+        DIR.setHashDirectoryMetadata(NAMESPACE + "_metadata").setHashFileData(NAMESPACE + "_data")
+                .setTierStore(tierStore);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        int failures = 0;
+        try {
+            for (String name : DIR.listAll()) {
+                DIR.deleteFile(name);
+            }
+            byte[] content = new byte[FILE_SIZE];
+            new Random(1).nextBytes(content);
+            try (IndexOutput out = DIR.createOutput(FILE_NAME, IOContext.DEFAULT)) {
+                out.writeBytes(content, content.length);
+            }
+
+            for (int round = 1; round <= ROUNDS; round++) {
+                try {
+                    int demoted = race(executor, tierStore, new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return DIR.demoteFile(FILE_NAME);
+                        }
+                    });
+                    if (demoted != 1) {
+                        throw new IllegalStateException("demoted by " + demoted + " callers");
+                    }
+                    verify(DIR, content, "after demote");
+
+                    int promoted = race(executor, tierStore, new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return DIR.promoteFile(FILE_NAME);
+                        }
+                    });
+                    if (promoted != 1) {
+                        throw new IllegalStateException("promoted by " + promoted + " callers");
+                    }
+                    verify(DIR, content, "after promote");
+                } catch (Exception e) {
+                    failures++;
+                    System.out.println("Round " + round + " failed: " + e);
+                    break;
+                }
+            }
+            String[] objects = tierRoot.toFile().list();
+            System.out.println("rounds=" + ROUNDS + " failures=" + failures
+                    + " tierObjectsLeft=" + (objects != null ? objects.length : 0));
+        } finally {
+            executor.shutdown();
+            for (String name : DIR.listAll()) {
+                DIR.deleteFile(name);
+            }
+            DIR.destroy();
+            fsTierStore.close();
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}